@@ -32,6 +32,7 @@ import {
   Clear,
 } from '@mui/icons-material';
 import { apiService, Distributor, DistributorItem, Item } from '../services/api';
+import { useSyncedList } from '../hooks/useApi';
 
 // Utility function to truncate text
 const truncateText = (text: string, maxLength: number = 25): string => {
@@ -50,9 +51,9 @@ interface PriceFormData {
 }
 
 const DistributorManager: React.FC = () => {
-  const [distributors, setDistributors] = useState<Distributor[]>([]);
+  const [distributors, syncDistributors] = useSyncedList<Distributor>('distributors');
   const [distributorPrices, setDistributorPrices] = useState<DistributorItem[]>([]);
-  const [items, setItems] = useState<Item[]>([]);
+  const [items, syncItems] = useSyncedList<Item>('items');
   const [error, setError] = useState<string | null>(null);
   const [success, setSuccess] = useState<string | null>(null);
   const [distributorDialogOpen, setDistributorDialogOpen] = useState(false);
@@ -86,8 +87,7 @@ const DistributorManager: React.FC = () => {
 
   const fetchDistributors = async () => {
     try {
-      const response = await apiService.getDistributors();
-      setDistributors(response.data);
+      await syncDistributors();
       setError(null);
     } catch (err) {
       setError('Failed to fetch distributors');
@@ -105,8 +105,7 @@ const DistributorManager: React.FC = () => {
 
   const fetchItems = async () => {
     try {
-      const response = await apiService.getItems();
-      setItems(response.data);
+      await syncItems();
     } catch (err) {
       console.error('Failed to fetch items');
     }
@@ -36,6 +36,7 @@ import {
   Clear,
 } from '@mui/icons-material';
 import { apiService, InventoryItem, Item } from '../services/api';
+import { useSyncedList } from '../hooks/useApi';
 
 // Utility function to truncate text
 const truncateText = (text: string, maxLength: number = 25): string => {
@@ -51,7 +52,9 @@ interface InventoryFormData {
 
 const InventoryManager: React.FC = () => {
   const [inventory, setInventory] = useState<InventoryItem[]>([]);
-  const [items, setItems] = useState<Item[]>([]);
+  const [items, syncItems] = useSyncedList<Item>('items');
+  // The full list is kept in step through /sync; the filtered views are fetched whole
+  const [, syncInventory] = useSyncedList<InventoryItem>('inventory');
   const [filterView, setFilterView] = useState<'all' | 'out-of-stock' | 'low-stock' | 'overstocked'>('all');
   const [error, setError] = useState<string | null>(null);
   const [success, setSuccess] = useState<string | null>(null);
@@ -74,21 +77,21 @@ const InventoryManager: React.FC = () => {
 
   const fetchInventory = async () => {
     try {
-      let response;
+      let rows: InventoryItem[];
       switch (filterView) {
         case 'out-of-stock':
-          response = await apiService.getOutOfStockItems();
+          rows = (await apiService.getOutOfStockItems()).data;
           break;
         case 'low-stock':
-          response = await apiService.getLowStockItems();
+          rows = (await apiService.getLowStockItems()).data;
           break;
         case 'overstocked':
-          response = await apiService.getOverstockedItems();
+          rows = (await apiService.getOverstockedItems()).data;
           break;
         default:
-          response = await apiService.getInventory();
+          rows = await syncInventory();
       }
-      setInventory(response.data);
+      setInventory(rows);
       setError(null);
     } catch (err) {
       setError('Failed to fetch inventory');
@@ -103,8 +106,7 @@ const InventoryManager: React.FC = () => {
 
   const fetchItems = async () => {
     try {
-      const response = await apiService.getItems();
-      setItems(response.data);
+      await syncItems();
     } catch (err) {
       console.error('Failed to fetch items');
     }
@@ -198,7 +200,7 @@ const InventoryManager: React.FC = () => {
   const getStockStatus = (item: InventoryItem) => {
     if (item.stock === 0) return { label: 'Out of Stock', color: 'error' as const };
     if (item.stock > item.capacity) return { label: 'Overstocked', color: 'warning' as const };
-    if (item.stock < item.capacity * 0.35) return { label: 'Low Stock', color: 'warning' as const };
+    if (item.stock < item.capacity * item.low_threshold) return { label: 'Low Stock', color: 'warning' as const };
     return { label: 'Good', color: 'success' as const };
   };
 
@@ -274,7 +276,7 @@ const InventoryManager: React.FC = () => {
               Low Stock
             </Typography>
             <Typography variant="h4" color="warning.main">
-              {inventory.filter(item => item.stock < item.capacity * 0.35 && item.stock > 0).length}
+              {inventory.filter(item => item.stock < item.capacity * item.low_threshold && item.stock > 0).length}
             </Typography>
           </CardContent>
         </Card>
@@ -402,6 +404,7 @@ const InventoryManager: React.FC = () => {
               <TableCell>Item Name</TableCell>
               <TableCell align="right">Stock</TableCell>
               <TableCell align="right">Capacity</TableCell>
+              <TableCell align="right">Days of Cover</TableCell>
               <TableCell align="center">Status</TableCell>
               <TableCell align="center">Actions</TableCell>
             </TableRow>
@@ -419,6 +422,11 @@ const InventoryManager: React.FC = () => {
                   </TableCell>
                   <TableCell align="right">{item.stock}</TableCell>
                   <TableCell align="right">{item.capacity}</TableCell>
+                  <TableCell align="right">
+                    <Tooltip title={`${item.consumption_rate ?? 0} units/day`} arrow>
+                      <span>{item.days_of_cover ?? '—'}</span>
+                    </Tooltip>
+                  </TableCell>
                   <TableCell align="center">
                     <Chip
                       label={status.label}
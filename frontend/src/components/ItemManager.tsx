@@ -30,6 +30,7 @@ import {
   Clear,
 } from '@mui/icons-material';
 import { apiService, Item, DistributorItem, ItemDistributor } from '../services/api';
+import { useSyncedList } from '../hooks/useApi';
 
 // Utility function to truncate text
 const truncateText = (text: string, maxLength: number = 25): string => {
@@ -47,7 +48,7 @@ interface CheapestFormData {
 }
 
 const ItemManager: React.FC = () => {
-  const [items, setItems] = useState<Item[]>([]);
+  const [items, syncItems] = useSyncedList<Item>('items');
   const [itemDistributors, setItemDistributors] = useState<ItemDistributor[]>([]);
   const [cheapestResult, setCheapestResult] = useState<any>(null);
   const [error, setError] = useState<string | null>(null);
@@ -79,8 +80,7 @@ const ItemManager: React.FC = () => {
 
   const fetchItems = async () => {
     try {
-      const response = await apiService.getItems();
-      setItems(response.data);
+      await syncItems();
       setError(null);
     } catch (err) {
       setError('Failed to fetch items');
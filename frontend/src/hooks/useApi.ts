@@ -1,5 +1,6 @@
-import { useState, useCallback } from 'react';
+import { useState, useCallback, useRef } from 'react';
 import { getErrorMessage } from '../utils/common';
+import { apiService, SyncDelta, SyncListName } from '../services/api';
 
 /**
  * Custom hook for handling API operations with loading, error, and success states
@@ -90,6 +91,44 @@ export const useAsyncApi = <T = any>() => {
   };
 };
 
+/**
+ * Merge a sync delta into a list: drop deleted ids, replace or add upserted rows, keep id order
+ */
+export const applySyncDelta = <T extends { id: number }>(rows: T[], delta: SyncDelta<T>, full: boolean): T[] => {
+  if (full) {
+    return delta.upserted;
+  }
+  if (delta.upserted.length === 0 && delta.deleted.length === 0) {
+    return rows;
+  }
+  const byId = new Map<number, T>();
+  rows.forEach(row => byId.set(row.id, row));
+  delta.deleted.forEach(id => byId.delete(id));
+  delta.upserted.forEach(row => byId.set(row.id, row));
+  return Array.from(byId.values()).sort((a, b) => a.id - b.id);
+};
+
+/**
+ * Custom hook that keeps a list in step with the server through /sync.
+ * The first refresh fetches the whole list; later ones fetch only the rows changed since.
+ */
+export const useSyncedList = <T extends { id: number }>(list: SyncListName): [T[], () => Promise<T[]>] => {
+  const [rows, setRows] = useState<T[]>([]);
+  const rowsRef = useRef<T[]>([]);
+  const versionRef = useRef<number | null>(null);
+
+  const refresh = useCallback(async () => {
+    const response = await apiService.sync([list], versionRef.current);
+    const delta = response.data[list] as unknown as SyncDelta<T>;
+    rowsRef.current = applySyncDelta(rowsRef.current, delta, response.data.full);
+    versionRef.current = response.data.version;
+    setRows(rowsRef.current);
+    return rowsRef.current;
+  }, [list]);
+
+  return [rows, refresh];
+};
+
 /**
  * Custom hook for form state management
  */
@@ -1,7 +1,9 @@
 import axios from 'axios';
 
-// Use environment variable or default to localhost for development
-const API_BASE_URL = process.env.REACT_APP_API_URL || 'http://localhost:4567';
+// Use environment variable, the serving backend when the build is served from its /app route,
+// or localhost for development
+const API_BASE_URL = process.env.REACT_APP_API_URL
+  || (window.location.pathname.startsWith('/app') ? window.location.origin : 'http://localhost:4567');
 
 const api = axios.create({
   baseURL: API_BASE_URL,
@@ -18,6 +20,9 @@ export interface InventoryItem {
   name: string;
   stock: number;
   capacity: number;
+  low_threshold: number;        // Fraction of capacity below which stock is low
+  consumption_rate: number;     // Units consumed per day, averaged over recent stock changes
+  days_of_cover: number | null; // Days the current stock lasts at that rate; null when nothing is consumed
 }
 
 export interface Distributor {
@@ -46,6 +51,22 @@ export interface ItemDistributor {
   cost: number;
 }
 
+// Delta sync - rows changed in a list since the client's last version
+export type SyncListName = 'items' | 'inventory' | 'distributors';
+
+export interface SyncDelta<T> {
+  upserted: T[];
+  deleted: number[];
+}
+
+export interface SyncResponse {
+  version: number;
+  full: boolean;    // upserted holds the whole list and replaces the client's copy
+  items?: SyncDelta<Item>;
+  inventory?: SyncDelta<InventoryItem>;
+  distributors?: SyncDelta<Distributor>;
+}
+
 // API functions
 export const apiService = {
   // Basic endpoints
@@ -63,10 +84,11 @@ export const apiService = {
   getLowStockItems: () => api.get<InventoryItem[]>('/inventory/low-stock'),
   addInventoryItem: (itemId: number, stock: number, capacity: number) => 
     api.post('/inventory', null, { params: { itemId, stock, capacity } }),
-  updateInventoryItem: (id: number, stock?: number, capacity?: number) => {
+  updateInventoryItem: (id: number, stock?: number, capacity?: number, lowThreshold?: number) => {
     const params: any = {};
     if (stock !== undefined) params.stock = stock;
     if (capacity !== undefined) params.capacity = capacity;
+    if (lowThreshold !== undefined) params.lowThreshold = lowThreshold;
     return api.put(`/inventory/${id}`, null, { params });
   },
   deleteInventoryItem: (id: number) => api.delete(`/inventory/${id}`),
@@ -84,6 +106,12 @@ export const apiService = {
   deleteDistributorPrice: (distributorId: number, itemId: number) => 
     api.delete(`/distributors/${distributorId}/items/${itemId}`),
 
+  // Sync
+  sync: (lists: SyncListName[], since: number | null) =>
+    api.get<SyncResponse>('/sync', {
+      params: since === null ? { lists: lists.join(',') } : { lists: lists.join(','), since },
+    }),
+
   // Special
   getCheapestRestock: (itemId: number, quantity: number) => 
     api.get(`/items/${itemId}/cheapest`, { params: { quantity } }),
@@ -14,10 +14,10 @@ export interface StockStatus {
   color: 'error' | 'warning' | 'success';
 }
 
-export const getStockStatus = (stock: number, capacity: number): StockStatus => {
+export const getStockStatus = (stock: number, capacity: number, lowThreshold: number = 0.35): StockStatus => {
   if (stock === 0) return { label: 'Out of Stock', color: 'error' };
   if (stock > capacity) return { label: 'Overstocked', color: 'warning' };
-  if (stock < capacity * 0.35) return { label: 'Low Stock', color: 'warning' };
+  if (stock < capacity * lowThreshold) return { label: 'Low Stock', color: 'warning' };
   return { label: 'Good', color: 'success' };
 };
 
@@ -0,0 +1,282 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.utils.ConfigUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+import static spark.Spark.stop;
+
+/**
+ * Allocation regression suite for the request path
+ *
+ * Starts the server in this JVM against a freshly reset database, with one streaming client
+ * connected so that writes go through event publishing, and drives each route in turn. For every
+ * route it measures the bytes allocated per request by all server threads (Jetty workers, the
+ * writer, the change feed) using the per-thread allocation counters, and fails the route if it
+ * allocates more than its budget in allocation-budgets.properties.
+ *
+ * Run it on its own - it starts its own server (alloc.port, 4568 by default) and resets
+ * challenge.db. After a change that is meant to allocate more, or less, run it with
+ * -Dalloc.record=true to write the measured figures plus headroom as the new budgets.
+ */
+public class AllocationSuite {
+    private static final int DEFAULT_PORT = 4568;
+    private static final String DEFAULT_BUDGETS = "src/main/resources/allocation-budgets.properties";
+    // Recorded budgets leave this much room for run-to-run noise
+    private static final double BUDGET_HEADROOM = 0.25;
+    // Time for work a request hands to background threads (event delivery) to finish
+    private static final long SETTLE_MS = 20;
+
+    private static String baseUrl;
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // The client threads of this suite, left out of the measurement
+    private static final Set<Long> clientThreads = new HashSet<>();
+
+    private static int totalRoutes = 0;
+    private static int passedRoutes = 0;
+    private static int failedRoutes = 0;
+
+    /**
+     * A route driven by the suite
+     */
+    private static final class Route {
+        final String key;
+        final String method;
+        final IntFunction<String> path;
+        final String accept;
+
+        Route(String key, String method, IntFunction<String> path, String accept) {
+            this.key = key;
+            this.method = method;
+            this.path = path;
+            this.accept = accept;
+        }
+    }
+
+    private static final List<Route> ROUTES = new ArrayList<>();
+    static {
+        // Reads first: the writes add stock history and change log rows the reads would then grow with
+        get("get.items", "/items", null);
+        get("get.inventory", "/inventory", null);
+        get("get.inventory.cbor", "/inventory", "application/cbor");
+        get("get.inventory.low-stock", "/inventory/low-stock", null);
+        get("get.inventory.id", "/inventory/1", null);
+        get("get.inventory.id.history", "/inventory/1/history", null);
+        get("get.distributors", "/distributors", null);
+        get("get.distributors.id.items", "/distributors/1/items", null);
+        get("get.items.id.distributors", "/items/1/distributors", null);
+        get("get.items.id.cheapest", "/items/1/cheapest?quantity=100", null);
+        get("get.items.search", "/items/search?q=choc", null);
+        get("get.stream", "/stream", null);
+        // Writes alternate between two values so that every request changes a row
+        ROUTES.add(new Route("put.inventory.id", "PUT", i -> "/inventory/1?stock=" + (20 + i % 2), null));
+        ROUTES.add(new Route("put.distributors.id.items.id", "PUT",
+                i -> "/distributors/1/items/1?cost=" + (i % 2 == 0 ? "1.25" : "1.5"), null));
+    }
+
+    private static void get(String key, String path, String accept) {
+        ROUTES.add(new Route(key, "GET", i -> path, accept));
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("TOPBLOC BACKEND - ALLOCATION REGRESSION SUITE");
+        System.out.println("=".repeat(70));
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("This JVM does not support per-thread allocation counters");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        int port = ConfigUtils.getInt("alloc.port", DEFAULT_PORT);
+        int warmup = ConfigUtils.getInt("alloc.warmup", 500);
+        int requests = ConfigUtils.getInt("alloc.requests", 200);
+        int batches = ConfigUtils.getInt("alloc.batches", 5);
+        boolean record = ConfigUtils.getBoolean("alloc.record", false);
+        Path budgetFile = Paths.get(ConfigUtils.getString("alloc.budgets", DEFAULT_BUDGETS));
+        Properties budgets = loadBudgets(budgetFile);
+
+        // The server under test, without rate limits so the suite is never throttled
+        baseUrl = "http://localhost:" + port;
+        System.setProperty("server.port", String.valueOf(port));
+        System.setProperty("ratelimit.enabled", "false");
+        Main.main(new String[0]);
+        clientThreads.add(Thread.currentThread().getId());
+        request("GET", "/reset", null);
+        connectStreamingClient();
+
+        Map<String, Long> measured = new HashMap<>();
+        for (Route route : ROUTES) {
+            for (int i = 0; i < warmup; i++) {
+                request(route.method, route.path.apply(i), route.accept);
+            }
+            // The least allocating batch is the one least disturbed by background work
+            long best = Long.MAX_VALUE;
+            for (int b = 0; b < batches; b++) {
+                Map<Long, Long> before = allocatedByThread();
+                for (int i = 0; i < requests; i++) {
+                    request(route.method, route.path.apply(i), route.accept);
+                }
+                Thread.sleep(SETTLE_MS);
+                best = Math.min(best, allocatedSince(before) / requests);
+            }
+            measured.put(route.key, best);
+            check(route, best, budgets.getProperty(route.key), record);
+        }
+
+        if (record) {
+            writeBudgets(budgetFile, measured);
+            System.out.println("\nRecorded budgets for " + measured.size() + " routes in " + budgetFile);
+        }
+        printFinalResults();
+        stop();
+        System.exit(failedRoutes == 0 ? 0 : 1);
+    }
+
+    private static void check(Route route, long bytesPerRequest, String budget, boolean record) {
+        totalRoutes++;
+        String label = route.method + " " + route.path.apply(0)
+                + (route.accept != null ? " (" + route.accept + ")" : "");
+        String figures = formatBytes(bytesPerRequest) + "/request";
+        if (budget == null) {
+            passedRoutes++;
+            System.out.println("NEW  " + label + " - " + figures + ", no budget recorded");
+            return;
+        }
+        long limit = Long.parseLong(budget.trim());
+        if (bytesPerRequest <= limit || record) {
+            passedRoutes++;
+            System.out.println("PASS " + label + " - " + figures + " (budget " + formatBytes(limit) + ")");
+        } else {
+            failedRoutes++;
+            System.out.println("FAIL " + label + " - " + figures + " exceeds budget " + formatBytes(limit)
+                    + " by " + String.format("%.0f%%", (bytesPerRequest - limit) * 100.0 / limit));
+        }
+    }
+
+    // Bytes allocated so far by each live thread other than the suite's own
+    private static Map<Long, Long> allocatedByThread() {
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0 && !clientThreads.contains(ids[i])) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    // Threads started since the snapshot count in full; threads that ended since are lost
+    private static long allocatedSince(Map<Long, Long> before) {
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : allocatedByThread().entrySet()) {
+            total += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+        }
+        return total;
+    }
+
+    // Keep one event stream open, read on its own thread, so writes publish their events
+    private static void connectStreamingClient() throws InterruptedException {
+        Thread reader = new Thread(() -> {
+            try {
+                @SuppressWarnings("deprecation")
+                URL url = new URL(baseUrl + "/stream/events");
+                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                try (Reader in = new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8);
+                     BufferedReader lines = new BufferedReader(in)) {
+                    while (lines.readLine() != null) {
+                        // Drain events
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Streaming client closed: " + e.getMessage());
+            }
+        }, "alloc-stream-client");
+        reader.setDaemon(true);
+        clientThreads.add(reader.getId());
+        reader.start();
+        // Let the server register the client before anything is measured
+        Thread.sleep(500);
+    }
+
+    private static void request(String method, String endpoint, String accept) throws IOException {
+        @SuppressWarnings("deprecation")
+        URL url = new URL(baseUrl + endpoint);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(5000);
+        if (accept != null) {
+            conn.setRequestProperty("Accept", accept);
+        }
+        int status = conn.getResponseCode();
+        // Read the body to the end so the connection is reused
+        try (InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream()) {
+            if (in != null) {
+                in.readAllBytes();
+            }
+        }
+        if (status >= 400) {
+            throw new IOException(method + " " + endpoint + " returned " + status);
+        }
+    }
+
+    private static Properties loadBudgets(Path file) throws IOException {
+        Properties budgets = new Properties();
+        if (Files.exists(file)) {
+            try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                budgets.load(in);
+            }
+        } else {
+            System.out.println("No budget file at " + file + " - every route will be reported as new");
+        }
+        return budgets;
+    }
+
+    // Budgets are written in route order with headroom, rounded up to the next 256 bytes
+    private static void writeBudgets(Path file, Map<String, Long> measured) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("# Bytes allocated per request by the server, checked by AllocationSuite.\n");
+            out.write("# Regenerate with -Dalloc.record=true after an intended change.\n");
+            for (Route route : ROUTES) {
+                long budget = (long) Math.ceil(measured.get(route.key) * (1 + BUDGET_HEADROOM) / 256.0) * 256;
+                out.write(route.key + "=" + budget + "\n");
+            }
+        }
+    }
+
+    private static String formatBytes(long bytes) {
+        return bytes < 1024 ? bytes + " B" : String.format("%.1f KB", bytes / 1024.0);
+    }
+
+    private static void printFinalResults() {
+        System.out.println("\n" + "=".repeat(70));
+        System.out.println("ALLOCATION RESULTS SUMMARY");
+        System.out.println("=".repeat(70));
+        System.out.println("Total Routes: " + totalRoutes);
+        System.out.println("Within Budget: " + passedRoutes);
+        System.out.println("Over Budget: " + failedRoutes);
+        System.out.println("=".repeat(70));
+    }
+}
@@ -0,0 +1,104 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.db.DatabaseManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Insert path benchmark
+ *
+ * Drives the DatabaseManager insert methods directly (no HTTP) from a number of concurrent
+ * workers and reports the throughput of each one, for both successful inserts and each
+ * rejected case. Resets challenge.db before and after, so do not run it while the server is up.
+ *
+ *   java -cp ... com.topbloc.codechallenge.InsertBenchmark [rowsPerPhase] [workers]
+ */
+public class InsertBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        System.out.println("TOPBLOC INSERT BENCHMARK");
+        System.out.println("=".repeat(70));
+        System.out.println("Rows per phase: " + rows + ", workers: " + workers);
+
+        DatabaseManager.connect();
+        DatabaseManager.resetDatabase();
+
+        int[] itemIds = new int[rows];
+        int[] distributorIds = new int[rows];
+        List<String> results = new ArrayList<>();
+
+        results.add(phase("addItem", rows, workers,
+                i -> itemIds[i] = idOf(DatabaseManager.addItem("Bench Item " + i))));
+        results.add(phase("addInventoryItem", rows, workers,
+                i -> idOf(DatabaseManager.addInventoryItem(itemIds[i], i, i + 10))));
+        results.add(phase("addDistributor", rows, workers,
+                i -> distributorIds[i] = idOf(DatabaseManager.addDistributor("Bench Distributor " + i))));
+        results.add(phase("addDistributorPrice", rows, workers,
+                i -> idOf(DatabaseManager.addDistributorPrice(distributorIds[i], itemIds[i], 1.5))));
+
+        // Rejected inserts must come back with their specific message
+        results.add(phase("addItem (duplicate name)", rows, workers,
+                i -> expect(DatabaseManager.addItem("Bench Item " + i), "already exists")));
+        results.add(phase("addInventoryItem (missing item)", rows, workers,
+                i -> expect(DatabaseManager.addInventoryItem(900000 + i, 1, 1), "does not exist")));
+        results.add(phase("addDistributorPrice (missing distributor)", rows, workers,
+                i -> expect(DatabaseManager.addDistributorPrice(900000 + i, itemIds[i], 1.0), "Distributor with ID")));
+        results.add(phase("addDistributorPrice (missing item)", rows, workers,
+                i -> expect(DatabaseManager.addDistributorPrice(distributorIds[i], 900000 + i, 1.0), "Item with ID")));
+        results.add(phase("addDistributorPrice (duplicate)", rows, workers,
+                i -> expect(DatabaseManager.addDistributorPrice(distributorIds[i], itemIds[i], 2.0), "already has a price")));
+
+        DatabaseManager.resetDatabase();
+
+        System.out.println("\n" + "=".repeat(70));
+        System.out.println("BENCHMARK RESULTS");
+        System.out.println("=".repeat(70));
+        results.forEach(System.out::println);
+        System.out.println("=".repeat(70));
+        System.exit(0);
+    }
+
+    private static String phase(String name, int rows, int workers, IntFunction<Integer> call) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        long start = System.nanoTime();
+        for (int w = 0; w < workers; w++) {
+            pool.submit(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < rows) {
+                    if (call.apply(i) < 0) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        return String.format("%-42s %9.1f ops/s %8.1f us/op  unexpected: %d",
+                name, rows / seconds, seconds * 1_000_000 / rows, failures.get());
+    }
+
+    // Parses the id out of a successful insert response, or -1 if it failed
+    private static int idOf(String response) {
+        int at = response.indexOf("\"id\": ");
+        if (!response.contains("\"success\": true") || at < 0) {
+            return -1;
+        }
+        return Integer.parseInt(response.substring(at + 6, response.indexOf('}', at)).trim());
+    }
+
+    private static int expect(String response, String message) {
+        return response.contains("\"success\": false") && response.contains(message) ? 0 : -1;
+    }
+}
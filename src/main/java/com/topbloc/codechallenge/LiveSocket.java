@@ -0,0 +1,362 @@
+package com.topbloc.codechallenge;
+
+import com.topbloc.codechallenge.constants.AppConstants;
+import com.topbloc.codechallenge.db.ChangeEvent;
+import com.topbloc.codechallenge.db.DatabaseManager;
+import com.topbloc.codechallenge.utils.RateLimiter;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocket endpoint carrying change subscriptions and mutations over one connection.
+ *
+ * Clients send JSON requests, each with an id of their choosing; the reply frame carries the
+ * same id. Mutations are queued for the writer without waiting, so a client can pipeline many
+ * of them - they commit together in the next write batch, and their replies may arrive in any
+ * order. Committed changes reach subscribed clients as compact frames, built once per change
+ * and shared by every client; a frame's row is the change log entry (the table's own columns),
+ * not the joined shape the HTTP routes return. Sends never block: a client that falls more than maxPendingFrames
+ * behind is disconnected.
+ */
+@WebSocket
+public class LiveSocket {
+    // Subscription topics besides the table names
+    private static final String TOPIC_CHANGES = "changes";
+    private static final String TOPIC_ALERTS = "alerts";
+    private static final Set<String> TABLES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            AppConstants.Tables.ITEMS, AppConstants.Tables.INVENTORY,
+            AppConstants.Tables.DISTRIBUTORS, AppConstants.Tables.DISTRIBUTOR_PRICES)));
+
+    private static final Map<Session, Client> clients = new ConcurrentHashMap<>();
+    private static volatile RateLimiter rateLimiter;
+    private static volatile int maxPendingFrames = AppConstants.Config.DEFAULT_SOCKET_MAX_PENDING_FRAMES;
+
+    /**
+     * Start delivering committed changes to connected clients. Call once, at startup.
+     * @param limiter Charges each mutation against its client's write limit; null to leave them unlimited
+     * @param pendingFrames Frames a client may have waiting to be sent before it is disconnected
+     */
+    static void start(RateLimiter limiter, int pendingFrames) {
+        rateLimiter = limiter;
+        maxPendingFrames = Math.max(1, pendingFrames);
+        DatabaseManager.subscribeToChanges(LiveSocket::publish);
+    }
+
+    private static final class Client {
+        final Session session;
+        // Identify the client to the rate limiter as HTTP requests do, so its socket and HTTP writes share one budget
+        final String apiKey;
+        final String address;
+        final AtomicInteger pendingFrames = new AtomicInteger();
+        volatile Set<String> tables = Collections.emptySet();
+        volatile boolean alerts;
+
+        Client(Session session, String apiKey, String address) {
+            this.session = session;
+            this.apiKey = apiKey;
+            this.address = address;
+        }
+
+        boolean subscribed() {
+            return alerts || !tables.isEmpty();
+        }
+
+        // Queue a frame without waiting for it to be written
+        void send(String frame) {
+            if (!session.isOpen()) {
+                return;
+            }
+            if (pendingFrames.incrementAndGet() > maxPendingFrames) {
+                session.close(StatusCode.POLICY_VIOLATION, "Client is more than " + maxPendingFrames + " frames behind");
+                return;
+            }
+            WriteCallback callback = new WriteCallback() {
+                @Override
+                public void writeSuccess() {
+                    pendingFrames.decrementAndGet();
+                }
+
+                @Override
+                public void writeFailed(Throwable error) {
+                    pendingFrames.decrementAndGet();
+                    session.close(StatusCode.SERVER_ERROR, "Send failed");
+                }
+            };
+            // Jetty does not allow concurrent sends on one session; the send itself only queues the frame
+            synchronized (this) {
+                try {
+                    session.getRemote().sendString(frame, callback);
+                } catch (RuntimeException e) {
+                    callback.writeFailed(e);
+                }
+            }
+        }
+    }
+
+    @OnWebSocketConnect
+    public void connected(Session session) {
+        UpgradeRequest upgrade = session.getUpgradeRequest();
+        String address = session.getRemoteAddress().getAddress().getHostAddress();
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            address = limiter.clientAddress(address, upgrade.getHeader(AppConstants.Headers.FORWARDED),
+                    upgrade.getHeader(AppConstants.Headers.X_FORWARDED_FOR));
+        }
+        clients.put(session, new Client(session, upgrade.getHeader(AppConstants.Headers.API_KEY), address));
+    }
+
+    @OnWebSocketClose
+    public void closed(Session session, int statusCode, String reason) {
+        clients.remove(session);
+    }
+
+    @OnWebSocketMessage
+    public void message(Session session, String text) {
+        Client client = clients.get(session);
+        if (client == null) {
+            return;
+        }
+        Object id = null;
+        try {
+            Object parsed = new JSONParser().parse(text);
+            if (!(parsed instanceof JSONObject)) {
+                throw new IllegalArgumentException("Request must be a JSON object");
+            }
+            JSONObject request = (JSONObject) parsed;
+            id = request.get("id");
+            handle(client, id, request);
+        } catch (ParseException e) {
+            client.send(reply(id, false, AppConstants.ErrorMessages.INVALID_SOCKET_REQUEST));
+        } catch (IllegalArgumentException e) {
+            client.send(reply(id, false, errorJson(e.getMessage())));
+        }
+    }
+
+    private static void handle(Client client, Object id, JSONObject request) {
+        String op = request.get("op") instanceof String ? (String) request.get("op") : "";
+        switch (op) {
+            case "ping":
+                client.send(reply(id, true, "{\"pong\":" + System.currentTimeMillis() + "}"));
+                return;
+            case "subscribe":
+            case "unsubscribe":
+                updateSubscription(client, op.equals("subscribe"), request.get("topics"));
+                client.send(reply(id, true, subscriptionJson(client)));
+                return;
+            case "inventory.update": {
+                // Parameters are checked before a write token is spent on the request
+                int item = intParam(request, "item", true);
+                Integer stock = intParam(request, "stock", false);
+                Integer capacity = intParam(request, "capacity", false);
+                Double lowThreshold = numberParam(request, "lowThreshold", false);
+                if (!rateLimited(client, id)) {
+                    reply(client, id, DatabaseManager.updateInventoryItemAsync(item, stock, capacity, lowThreshold));
+                }
+                return;
+            }
+            case "price.update": {
+                int distributor = intParam(request, "distributor", true);
+                int item = intParam(request, "item", true);
+                double cost = numberParam(request, "cost", true);
+                if (!rateLimited(client, id)) {
+                    reply(client, id, DatabaseManager.updateDistributorPriceAsync(distributor, item, cost));
+                }
+                return;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown op. Valid ops: subscribe, unsubscribe, inventory.update, price.update, ping");
+        }
+    }
+
+    private static void updateSubscription(Client client, boolean add, Object topics) {
+        if (!(topics instanceof JSONArray)) {
+            throw new IllegalArgumentException("topics must be a list of table names, changes or alerts");
+        }
+        Set<String> tables = new HashSet<>(client.tables);
+        boolean alerts = client.alerts;
+        for (Object topic : (JSONArray) topics) {
+            List<String> matched;
+            if (TOPIC_ALERTS.equals(topic)) {
+                alerts = add;
+                continue;
+            } else if (TOPIC_CHANGES.equals(topic)) {
+                matched = new ArrayList<>(TABLES);
+            } else if (TABLES.contains(topic)) {
+                matched = Collections.singletonList((String) topic);
+            } else {
+                throw new IllegalArgumentException("Unknown topic " + topic + ". Valid topics: changes, alerts, "
+                        + String.join(", ", new TreeSet<>(TABLES)));
+            }
+            if (add) {
+                tables.addAll(matched);
+            } else {
+                tables.removeAll(matched);
+            }
+        }
+        client.tables = Collections.unmodifiableSet(tables);
+        client.alerts = alerts;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String subscriptionJson(Client client) {
+        JSONArray topics = new JSONArray();
+        topics.addAll(new TreeSet<>(client.tables));
+        if (client.alerts) {
+            topics.add(TOPIC_ALERTS);
+        }
+        JSONObject result = new JSONObject();
+        result.put("topics", topics);
+        return result.toJSONString();
+    }
+
+    private static boolean rateLimited(Client client, Object id) {
+        RateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            return false;
+        }
+        long waitNanos = limiter.tryAcquire(limiter.clientId(client.apiKey, client.address), RateLimiter.RouteClass.WRITES);
+        if (waitNanos <= 0) {
+            return false;
+        }
+        long retryAfterMillis = Math.max(1, (waitNanos + 999_999L) / 1_000_000L);
+        client.send("{\"type\":\"reply\",\"id\":" + JSONValue.toJSONString(id) + ",\"ok\":false,\"retryAfterMs\":"
+                + retryAfterMillis + ",\"result\":" + AppConstants.ErrorMessages.SOCKET_RATE_LIMITED + "}");
+        return true;
+    }
+
+    // Reply once the mutation has committed; runs on the writer thread, and only queues the frame
+    private static void reply(Client client, Object id, CompletableFuture<String> result) {
+        result.whenComplete((body, error) -> {
+            if (error != null) {
+                client.send(reply(id, false, errorJson("Database error: " + error.getMessage())));
+            } else {
+                client.send(reply(id, !body.contains("\"success\": false"), body));
+            }
+        });
+    }
+
+    // The result is the body the matching HTTP route returns, embedded as is
+    private static String reply(Object id, boolean ok, String result) {
+        return "{\"type\":\"reply\",\"id\":" + JSONValue.toJSONString(id) + ",\"ok\":" + ok + ",\"result\":" + result + "}";
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String errorJson(String message) {
+        JSONObject error = new JSONObject();
+        error.put("error", message);
+        return error.toJSONString();
+    }
+
+    private static Integer intParam(JSONObject request, String name, boolean required) {
+        Object value = request.get(name);
+        if (value == null && !required) {
+            return null;
+        }
+        if (!(value instanceof Long) || (Long) value != ((Long) value).intValue()) {
+            throw new IllegalArgumentException(name + " must be an integer");
+        }
+        return ((Long) value).intValue();
+    }
+
+    private static Double numberParam(JSONObject request, String name, boolean required) {
+        Object value = request.get(name);
+        if (value == null && !required) {
+            return null;
+        }
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    // Fan committed changes out to the subscribed clients in seq order, on the change tailer thread. As on
+    // the event stream, a long run of changes to one table goes out as one bulk frame, after the alerts
+    // raised within it.
+    private static void publish(List<ChangeEvent> delivered) {
+        if (clients.isEmpty()) {
+            return;
+        }
+        int start = 0;
+        while (start < delivered.size()) {
+            ChangeEvent first = delivered.get(start);
+            if (first.isAlert()) {
+                publishAlert(first);
+                start++;
+                continue;
+            }
+            int end = ChangeEvent.runEnd(delivered, start);
+            int rows = 0;
+            for (int i = start; i < end; i++) {
+                if (!delivered.get(i).isAlert()) {
+                    rows++;
+                }
+            }
+            if (first.op.equals(DatabaseManager.RESET_OP)) {
+                publishFrame(first.table, true, "{\"type\":\"reset\",\"seq\":" + delivered.get(end - 1).seq + "}");
+            } else if (rows > DatabaseManager.BULK_EVENT_THRESHOLD) {
+                for (int i = start; i < end; i++) {
+                    if (delivered.get(i).isAlert()) {
+                        publishAlert(delivered.get(i));
+                    }
+                }
+                publishFrame(first.table, false, "{\"type\":\"bulk\",\"seq\":" + delivered.get(end - 1).seq
+                        + ",\"table\":" + JSONValue.toJSONString(first.table) + ",\"count\":" + rows
+                        + ",\"firstSeq\":" + first.seq + "}");
+            } else {
+                for (int i = start; i < end; i++) {
+                    ChangeEvent change = delivered.get(i);
+                    if (change.isAlert()) {
+                        publishAlert(change);
+                    } else {
+                        publishFrame(change.table, false, "{\"type\":\"change\",\"seq\":" + change.seq + ",\"table\":"
+                                + JSONValue.toJSONString(change.table) + ",\"op\":\"" + change.op + "\",\"row\":" + change.data + "}");
+                    }
+                }
+            }
+            start = end;
+        }
+    }
+
+    // Send one frame to every client subscribed to a table, or for a reset to every subscribed client
+    private static void publishFrame(String table, boolean reset, String frame) {
+        for (Client client : clients.values()) {
+            if (reset ? client.subscribed() : client.tables.contains(table)) {
+                client.send(frame);
+            }
+        }
+    }
+
+    private static void publishAlert(ChangeEvent alert) {
+        String frame = "{\"type\":\"alert\",\"seq\":" + alert.seq + ",\"id\":" + alert.rowId
+                + ",\"alert\":" + alert.data + "}";
+        for (Client client : clients.values()) {
+            if (client.alerts) {
+                client.send(frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.topbloc.codechallenge;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load benchmark for the worker pool configuration
+ *
+ * Holds a number of SSE connections open and measures throughput and latency percentiles of
+ * ordinary GET requests issued at the same time. Open streams hold no Jetty worker, so the
+ * figures should not depend on how many there are.
+ * Run it once against a server started with the stock pool and once against a server
+ * started with the tuned settings to compare, e.g.
+ *
+ * Start the server with rate limiting disabled, since every benchmark request comes from one address:
+ *
+ *   java -Dratelimit.enabled=false -Dserver.threads.max=64 ... com.topbloc.codechallenge.Main
+ *   java -cp ... com.topbloc.codechallenge.LoadBenchmark [streams] [workers] [seconds] [path]
+ */
+public class LoadBenchmark {
+    private static final String HOST = "localhost";
+    private static final int PORT = 4567;
+    private static final String BASE_URL = "http://" + HOST + ":" + PORT;
+
+    public static void main(String[] args) throws Exception {
+        int streams = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String path = args.length > 3 ? args[3] : "/inventory";
+
+        System.out.println("TOPBLOC LOAD BENCHMARK");
+        System.out.println("=".repeat(70));
+        System.out.println("Streams held open: " + streams + ", request workers: " + workers
+                + ", duration: " + seconds + "s, path: " + path);
+
+        // Pin workers with long-lived SSE connections
+        List<Socket> openStreams = new ArrayList<>();
+        int rejectedStreams = 0;
+        for (int i = 0; i < streams; i++) {
+            Socket socket = openStream();
+            if (socket != null) {
+                openStreams.add(socket);
+            } else {
+                rejectedStreams++;
+            }
+        }
+        System.out.println("Streams accepted: " + openStreams.size() + ", rejected: " + rejectedStreams);
+
+        // Drive ordinary requests from a fixed set of workers
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger errors = new AtomicInteger();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            pool.submit(() -> {
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    if (get(path)) {
+                        latencies.add(System.nanoTime() - start);
+                    } else {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(seconds + 30L, TimeUnit.SECONDS);
+
+        for (Socket socket : openStreams) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore - the server will clean up the client on its next heartbeat
+            }
+        }
+
+        printResults(latencies, errors.get(), seconds);
+    }
+
+    private static Socket openStream() {
+        try {
+            Socket socket = new Socket(HOST, PORT);
+            socket.setSoTimeout(1000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /stream/events HTTP/1.1\r\nHost: " + HOST + "\r\nAccept: text/event-stream\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            // Read the status line to see whether the stream was accepted
+            InputStream in = socket.getInputStream();
+            StringBuilder statusLine = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                statusLine.append((char) c);
+            }
+            if (statusLine.toString().contains(" 200")) {
+                return socket;
+            }
+            socket.close();
+        } catch (IOException e) {
+            // Connection refused or timed out counts as rejected
+        }
+        return null;
+    }
+
+    private static boolean get(String path) {
+        try {
+            @SuppressWarnings("deprecation")
+            URL url = new URL(BASE_URL + path);
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(5000);
+            conn.setReadTimeout(5000);
+            int status = conn.getResponseCode();
+            InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    // Drain the body so the connection can be reused
+                }
+                in.close();
+            }
+            return status == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void printResults(List<Long> latencies, int errors, int seconds) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+
+        System.out.println("\n" + "=".repeat(70));
+        System.out.println("BENCHMARK RESULTS");
+        System.out.println("=".repeat(70));
+        System.out.println("Completed requests: " + sorted.size());
+        System.out.println("Failed requests: " + errors);
+        System.out.println("Throughput: " + String.format("%.1f req/s", sorted.size() / (double) seconds));
+        if (!sorted.isEmpty()) {
+            System.out.println("Latency p50: " + formatMillis(percentile(sorted, 0.50)));
+            System.out.println("Latency p95: " + formatMillis(percentile(sorted, 0.95)));
+            System.out.println("Latency p99: " + formatMillis(percentile(sorted, 0.99)));
+            System.out.println("Latency max: " + formatMillis(sorted.get(sorted.size() - 1)));
+        }
+        System.out.println("=".repeat(70));
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.2f ms", nanos / 1_000_000.0);
+    }
+}
@@ -1,25 +1,339 @@
 package com.topbloc.codechallenge;
 
 import com.topbloc.codechallenge.db.DatabaseManager;
-import com.topbloc.codechallenge.utils.TemplateLoader;
+import com.topbloc.codechallenge.utils.EventStream;
+import com.topbloc.codechallenge.utils.StaticAssets;
 import com.topbloc.codechallenge.utils.ResponseUtils;
+import com.topbloc.codechallenge.utils.ConfigUtils;
+import com.topbloc.codechallenge.utils.SingleFlight;
+import com.topbloc.codechallenge.utils.RateLimiter;
 import com.topbloc.codechallenge.constants.AppConstants;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+
+import org.json.simple.JSONObject;
+
+import spark.Request;
+import spark.Response;
+
 import static spark.Spark.*;
 
 public class Main {
+    // Concurrency caps for handlers that hold a worker thread for a long time
+    private static Semaphore streamSlots;
+    // Bytes of events a slow streaming client may fall behind by before it is disconnected
+    private static int streamBufferBytes;
+    private static Semaphore exportSlots;
+    private static int importBatchRows;
+
+    // Per-client request limits, null when rate limiting is disabled
+    private static RateLimiter rateLimiter;
+
+    // Identical GETs that arrive while one is already running share its encoded result
+    private static final SingleFlight<String> readFlights = new SingleFlight<>();
+    private static final SingleFlight<byte[]> binaryFlights = new SingleFlight<>();
+
+    // The dashboard and the built frontend, read and compressed once at startup
+    private static final StaticAssets staticAssets = new StaticAssets();
+
+    /**
+     * Run a read query, sharing the result with identical concurrent requests. The key includes
+     * the data version, so a request never receives a result computed before a change it could see.
+     */
+    private static String coalescedRead(Request req, Supplier<Object> query) {
+        return readFlights.execute(readKey(req), () -> {
+            Object result = query.get();
+            return result == null ? null : result.toString();
+        });
+    }
+
+    /**
+     * Lookup cache counts, plus how many reads ran their query and how many shared the result
+     * of an identical read already in flight
+     */
+    @SuppressWarnings("unchecked")
+    private static String cacheStats() {
+        JSONObject stats = DatabaseManager.getLookupCacheStats();
+        JSONObject coalescing = new JSONObject();
+        coalescing.put("executions", readFlights.executions() + binaryFlights.executions());
+        coalescing.put("joined", readFlights.joined() + binaryFlights.joined());
+        stats.put("readCoalescing", coalescing);
+        return stats.toJSONString();
+    }
+
+    /**
+     * Serve a list query in the encoding the Accept header ranks highest: JSON (the default),
+     * CBOR, or NDJSON streamed row by row. JSON and CBOR results are coalesced; NDJSON is
+     * written straight to the response and counts against the export cap.
+     * @param json Query producing the JSON result
+     * @param query The same query, for the other encodings
+     * @param id Id for a parameterized query
+     */
+    private static Object negotiatedRead(Request req, Response res, Supplier<Object> json,
+                                         DatabaseManager.ListQuery query, int id) {
+        res.header(AppConstants.Headers.VARY, AppConstants.Headers.ACCEPT);
+        String type = ResponseUtils.negotiate(req.headers(AppConstants.Headers.ACCEPT),
+                AppConstants.Headers.CONTENT_TYPE_JSON, AppConstants.Headers.CONTENT_TYPE_CBOR,
+                AppConstants.Headers.CONTENT_TYPE_NDJSON);
+        res.header("Content-Type", type);
+        if (AppConstants.Headers.CONTENT_TYPE_CBOR.equals(type)) {
+            return binaryFlights.execute(readKey(req), () -> DatabaseManager.queryCbor(query, id));
+        }
+        if (AppConstants.Headers.CONTENT_TYPE_NDJSON.equals(type)) {
+            // A stream holds its worker for as long as the client takes to read it, like an export
+            if (!exportSlots.tryAcquire()) {
+                ResponseUtils.setJsonHeaders(res);
+                res.status(503);
+                res.header(AppConstants.Headers.RETRY_AFTER, String.valueOf(AppConstants.Config.BUSY_RETRY_AFTER_SECONDS));
+                return AppConstants.ErrorMessages.TOO_MANY_EXPORTS;
+            }
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(res.raw().getOutputStream(), StandardCharsets.UTF_8));
+                DatabaseManager.streamNdjson(query, id, out);
+            } catch (IOException e) {
+                // Client disconnected mid-stream
+            } finally {
+                exportSlots.release();
+            }
+            return "";
+        }
+        return coalescedRead(req, json);
+    }
+
+    /**
+     * The request body as the servlet container delivers it. Spark's request wrapper copies the
+     * whole body into memory on first read, so read from the request it wraps instead.
+     */
+    private static InputStream uploadStream(Request req) throws IOException {
+        ServletRequest raw = req.raw();
+        while (raw instanceof ServletRequestWrapper) {
+            raw = ((ServletRequestWrapper) raw).getRequest();
+        }
+        return raw.getInputStream();
+    }
+
+    private static String queryStringParam(Request req, String name) throws UnsupportedEncodingException {
+        String query = req.queryString();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (URLDecoder.decode(key, "UTF-8").equals(name)) {
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private static String readKey(Request req) {
+        return req.pathInfo() + "?" + req.queryString() + "@" + DatabaseManager.getDataVersion();
+    }
+
+    private static Object search(Request req, Response res, BiFunction<String, Integer, Object> index) {
+        ResponseUtils.setJsonHeaders(res);
+        String query = req.queryParams("q");
+        if (query == null || query.trim().isEmpty()) {
+            res.status(400);
+            return AppConstants.ErrorMessages.SEARCH_QUERY_REQUIRED;
+        }
+        int limit = AppConstants.Config.DEFAULT_SEARCH_LIMIT;
+        if (req.queryParams("limit") != null) {
+            try {
+                limit = ResponseUtils.parseIntParam(req.queryParams("limit"), "limit");
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit < 1 || limit > AppConstants.Config.MAX_SEARCH_LIMIT) {
+                res.status(400);
+                return AppConstants.ErrorMessages.INVALID_LIMIT;
+            }
+        }
+        res.status(200);
+        return index.apply(query, limit);
+    }
+
+    private static RateLimiter createRateLimiter() {
+        RateLimiter limiter = new RateLimiter(
+                ConfigUtils.getInt("ratelimit.max-clients", AppConstants.Config.DEFAULT_RATE_LIMIT_MAX_CLIENTS),
+                ConfigUtils.getInt("ratelimit.idle-timeout-ms", (int) AppConstants.Config.DEFAULT_RATE_LIMIT_IDLE_MS));
+        limiter.setApiKeys(Arrays.asList(ConfigUtils.getString("ratelimit.api-keys", "").split(",")));
+        limiter.setTrustedProxies(Arrays.asList(ConfigUtils.getString("ratelimit.trusted-proxies", "").split(",")));
+        limiter.setLimit(RateLimiter.RouteClass.READS,
+                ConfigUtils.getInt("ratelimit.reads.per-second", AppConstants.Config.DEFAULT_READS_PER_SECOND),
+                ConfigUtils.getInt("ratelimit.reads.burst", AppConstants.Config.DEFAULT_READS_BURST));
+        limiter.setLimit(RateLimiter.RouteClass.WRITES,
+                ConfigUtils.getInt("ratelimit.writes.per-second", AppConstants.Config.DEFAULT_WRITES_PER_SECOND),
+                ConfigUtils.getInt("ratelimit.writes.burst", AppConstants.Config.DEFAULT_WRITES_BURST));
+        limiter.setLimit(RateLimiter.RouteClass.EXPORTS,
+                ConfigUtils.getInt("ratelimit.exports.per-second", AppConstants.Config.DEFAULT_EXPORTS_PER_SECOND),
+                ConfigUtils.getInt("ratelimit.exports.burst", AppConstants.Config.DEFAULT_EXPORTS_BURST));
+        limiter.setLimit(RateLimiter.RouteClass.STREAMS,
+                ConfigUtils.getInt("ratelimit.streams.per-second", AppConstants.Config.DEFAULT_STREAMS_PER_SECOND),
+                ConfigUtils.getInt("ratelimit.streams.burst", AppConstants.Config.DEFAULT_STREAMS_BURST));
+        return limiter;
+    }
+
+    // Map a request to the rate limit class it is charged against, or null if it is never limited
+    private static RateLimiter.RouteClass routeClassOf(Request req) {
+        String path = req.pathInfo();
+        switch (req.requestMethod()) {
+            case "OPTIONS":
+                return null;
+            case "GET":
+            case "HEAD":
+                // Reset rewrites the whole database
+                if (AppConstants.Endpoints.RESET.equals(path)) {
+                    return RateLimiter.RouteClass.WRITES;
+                }
+                if (AppConstants.Endpoints.STREAM_EVENTS.equals(path)) {
+                    return RateLimiter.RouteClass.STREAMS;
+                }
+                if (AppConstants.Endpoints.EXPORT_CSV.equals(path)) {
+                    return RateLimiter.RouteClass.EXPORTS;
+                }
+                // Verifying the summary reads both tables in full, like an export
+                if (AppConstants.Endpoints.INVENTORY_SUMMARY.equals(path) && "true".equals(req.queryParams("verify"))) {
+                    return RateLimiter.RouteClass.EXPORTS;
+                }
+                return RateLimiter.RouteClass.READS;
+            default:
+                // Bulk imports are limited like exports, not like single-row writes
+                if (AppConstants.Endpoints.IMPORT_CSV.equals(path)) {
+                    return RateLimiter.RouteClass.EXPORTS;
+                }
+                return RateLimiter.RouteClass.WRITES;
+        }
+    }
+
+    // Cache the dashboard template and, if it has been built, the frontend
+    private static void loadStaticAssets(String frontendDir) {
+        try {
+            staticAssets.addResource(AppConstants.Endpoints.STREAM, "/templates/streaming-dashboard.html",
+                    StaticAssets.CACHE_REVALIDATE);
+        } catch (IOException e) {
+            System.out.println("Could not load streaming dashboard template: " + e.getMessage());
+        }
+        Path root = Paths.get(frontendDir);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try {
+            int files = staticAssets.addDirectory(root, AppConstants.Endpoints.APP);
+            System.out.println("Serving " + files + " frontend files from " + root.toAbsolutePath()
+                    + " at " + AppConstants.Endpoints.APP);
+        } catch (IOException e) {
+            System.out.println("Could not load frontend build from " + root.toAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
     public static void main(String[] args) {
-        // Set port
-        port(AppConstants.Config.DEFAULT_PORT);
+        // Set port - instances sharing one database in cluster mode each need their own
+        int serverPort = ConfigUtils.getInt("server.port", AppConstants.Config.DEFAULT_PORT);
+        port(serverPort);
+
+        // Configure the Jetty worker pool. Exports, imports and NDJSON responses are capped below
+        // the pool size so that they can never take every worker away from CRUD calls. Event
+        // streams hold no worker while open; their cap bounds the memory and file descriptors
+        // they use.
+        int maxThreads = ConfigUtils.getInt("server.threads.max", AppConstants.Config.DEFAULT_MAX_THREADS);
+        int minThreads = ConfigUtils.getInt("server.threads.min", AppConstants.Config.DEFAULT_MIN_THREADS);
+        int idleTimeout = ConfigUtils.getInt("server.threads.idle-timeout-ms", AppConstants.Config.DEFAULT_THREAD_IDLE_TIMEOUT_MS);
+        int maxStreams = ConfigUtils.getInt("server.streams.max", AppConstants.Config.DEFAULT_MAX_STREAMS);
+        int maxExports = ConfigUtils.getInt("server.exports.max", AppConstants.Config.DEFAULT_MAX_EXPORTS);
+        threadPool(maxThreads, Math.min(minThreads, maxThreads), idleTimeout);
+        streamSlots = new Semaphore(maxStreams);
+        exportSlots = new Semaphore(maxExports);
+        streamBufferBytes = ConfigUtils.getInt("server.streams.buffer-bytes", AppConstants.Config.DEFAULT_STREAM_BUFFER_BYTES);
+        if (maxExports >= maxThreads) {
+            System.out.println("Warning: server.exports.max (" + maxExports
+                    + ") leaves no workers for regular requests out of " + maxThreads);
+        }
+        System.out.println("Worker pool: " + maxThreads + " threads, up to " + maxStreams
+                + " streams and " + maxExports + " concurrent exports");
         
+        // The WebSocket endpoint has to be mapped before any route or filter
+        webSocket(AppConstants.Endpoints.SOCKET, LiveSocket.class);
+        webSocketIdleTimeoutMillis(ConfigUtils.getInt("server.websocket.idle-timeout-ms",
+                AppConstants.Config.DEFAULT_SOCKET_IDLE_TIMEOUT_MS));
+
         // Enable CORS globally
         before("*", (req, res) -> {
             res.header(AppConstants.Headers.CORS_ORIGIN, AppConstants.Http.ALL_ORIGINS);
             res.header(AppConstants.Headers.CORS_METHODS, AppConstants.Http.ALLOWED_METHODS);
             res.header(AppConstants.Headers.CORS_HEADERS, AppConstants.Http.ALLOWED_HEADERS);
         });
+
+        // Per-client rate limiting, keyed by a configured API key or the client's address. Off unless
+        // asked for: local scripts all share the loopback address, and would share one bucket
+        if (ConfigUtils.getBoolean("ratelimit.enabled", false)) {
+            rateLimiter = createRateLimiter();
+            before("*", (req, res) -> {
+                RateLimiter.RouteClass routeClass = routeClassOf(req);
+                if (routeClass == null) {
+                    return;
+                }
+                String address = rateLimiter.clientAddress(req.ip(), req.headers(AppConstants.Headers.FORWARDED),
+                        req.headers(AppConstants.Headers.X_FORWARDED_FOR));
+                String clientId = rateLimiter.clientId(req.headers(AppConstants.Headers.API_KEY), address);
+                long waitNanos = rateLimiter.tryAcquire(clientId, routeClass);
+                if (waitNanos > 0) {
+                    long retryAfterSeconds = Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L);
+                    res.header(AppConstants.Headers.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+                    ResponseUtils.setJsonHeaders(res);
+                    halt(429, AppConstants.ErrorMessages.RATE_LIMITED);
+                }
+            });
+        }
         
-        DatabaseManager.connect();
+        if (ConfigUtils.getBoolean("cluster.enabled", false)) {
+            DatabaseManager.enableClusterMode(ConfigUtils.getInt("cluster.poll-ms", AppConstants.Config.DEFAULT_CLUSTER_POLL_MS));
+        }
+        if (ConfigUtils.getBoolean("db.read-mirror", false)) {
+            DatabaseManager.enableReadMirror(ConfigUtils.getInt("db.read-mirror.verify-every",
+                    AppConstants.Config.DEFAULT_MIRROR_VERIFY_EVERY));
+        }
+        importBatchRows = Math.max(1, ConfigUtils.getInt("import.batch-rows", AppConstants.Config.DEFAULT_IMPORT_BATCH_ROWS));
+        int changeLogRetainRows = ConfigUtils.getInt("changelog.retain-rows", AppConstants.Config.DEFAULT_CHANGE_LOG_RETAIN_ROWS);
+        DatabaseManager.setStockHistoryPartition(ConfigUtils.getInt("history.partition-ms",
+                AppConstants.Config.DEFAULT_HISTORY_PARTITION_MS));
+        DatabaseManager.setWriteBatchLimit(ConfigUtils.getInt("db.write-batch.max", AppConstants.Config.DEFAULT_WRITE_BATCH_LIMIT));
+        DatabaseManager.setLookupCacheSize(ConfigUtils.getInt("cache.lookups.max-entries",
+                AppConstants.Config.DEFAULT_LOOKUP_CACHE_ENTRIES));
+        try {
+            DatabaseManager.connect();
+        } catch (IllegalStateException e) {
+            // A failed migration or query plan check: refuse to serve a partly migrated schema, or
+            // hot queries falling back to table scans
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        LiveSocket.start(rateLimiter, ConfigUtils.getInt("server.websocket.max-pending-frames",
+                AppConstants.Config.DEFAULT_SOCKET_MAX_PENDING_FRAMES));
+        loadStaticAssets(ConfigUtils.getString("frontend.dir", AppConstants.Config.DEFAULT_FRONTEND_DIR));
         // Don't change this - required for GET and POST requests with the header 'content-type'
         options("/*",
                 (req, res) -> {
@@ -38,7 +352,7 @@ public class Main {
         //TODO: Add your routes here. a couple of examples are below
         get(AppConstants.Endpoints.ITEMS, (req, res) -> {
             ResponseUtils.setJsonHeaders(res);
-            return DatabaseManager.getItems();
+            return negotiatedRead(req, res, DatabaseManager::getItems, DatabaseManager.ListQuery.ITEMS, 0);
         });
         get(AppConstants.Endpoints.VERSION, (req, res) -> {
             return AppConstants.Config.VERSION_STRING;
@@ -48,30 +362,71 @@ public class Main {
         
         // Get all items in inventory with name, ID, stock, and capacity
         get("/inventory", (req, res) -> {
-            res.header("Content-Type", "application/json");
             res.status(200);
-            return DatabaseManager.getAllInventory();
+            return negotiatedRead(req, res, DatabaseManager::getAllInventory, DatabaseManager.ListQuery.INVENTORY, 0);
         });
 
         // Get all items that are out of stock (stock = 0)
         get("/inventory/out-of-stock", (req, res) -> {
             res.header("Content-Type", "application/json");
             res.status(200);
-            return DatabaseManager.getOutOfStockItems();
+            return negotiatedRead(req, res, DatabaseManager::getOutOfStockItems, DatabaseManager.ListQuery.OUT_OF_STOCK, 0);
         });
 
         // Get all items that are overstocked (stock > capacity)
         get("/inventory/overstocked", (req, res) -> {
             res.header("Content-Type", "application/json");
             res.status(200);
-            return DatabaseManager.getOverstockedItems();
+            return negotiatedRead(req, res, DatabaseManager::getOverstockedItems, DatabaseManager.ListQuery.OVERSTOCKED, 0);
         });
 
-        // Get all items that are low on stock (< 35% of capacity)
+        // Get all items that are low on stock (below their threshold, 35% of capacity by default)
         get("/inventory/low-stock", (req, res) -> {
             res.header("Content-Type", "application/json");
             res.status(200);
-            return DatabaseManager.getLowStockItems();
+            return negotiatedRead(req, res, DatabaseManager::getLowStockItems, DatabaseManager.ListQuery.LOW_STOCK, 0);
+        });
+
+        // Total units, capacity, utilization and value; ?verify=true also recomputes them from scratch
+        get(AppConstants.Endpoints.INVENTORY_SUMMARY, (req, res) -> {
+            ResponseUtils.setJsonHeaders(res);
+            String result = "true".equals(req.queryParams("verify"))
+                    ? DatabaseManager.verifyInventorySummary()
+                    : DatabaseManager.getInventorySummary();
+            ResponseUtils.setStatusFromResult(res, result);
+            return result;
+        });
+
+        // Recorded stock levels of an item over time: every point, or min/max/avg per bucket
+        get("/inventory/:id/history", (req, res) -> {
+            ResponseUtils.setJsonHeaders(res);
+            int itemId;
+            long from;
+            long to;
+            long bucketMs;
+            try {
+                itemId = Integer.parseInt(req.params(":id"));
+            } catch (NumberFormatException e) {
+                res.status(400);
+                return AppConstants.ErrorMessages.INVALID_ITEM_ID;
+            }
+            try {
+                String toParam = req.queryParams("to");
+                String fromParam = req.queryParams("from");
+                to = toParam == null ? System.currentTimeMillis() : Long.parseLong(toParam.trim());
+                from = fromParam == null ? to - AppConstants.Config.DEFAULT_HISTORY_RANGE_MS : Long.parseLong(fromParam.trim());
+                bucketMs = ResponseUtils.parseDurationMs(req.queryParams("bucket"));
+            } catch (NumberFormatException e) {
+                res.status(400);
+                return AppConstants.ErrorMessages.INVALID_HISTORY_PARAMS;
+            }
+            if (from > to) {
+                res.status(400);
+                return AppConstants.ErrorMessages.INVALID_HISTORY_PARAMS;
+            }
+            String result = DatabaseManager.getStockHistory(itemId, from, to, bucketMs);
+            ResponseUtils.setStatusFromResult(res, result);
+            return result;
         });
 
         // Get specific item by ID from inventory
@@ -80,7 +435,7 @@ public class Main {
             try {
                 int itemId = Integer.parseInt(req.params(":id"));
                 res.status(200);
-                return DatabaseManager.getInventoryItemById(itemId);
+                return coalescedRead(req, () -> DatabaseManager.getInventoryItemById(itemId));
             } catch (NumberFormatException e) {
                 res.status(400);
                 return "{\"error\": \"Invalid item ID format\"}";
@@ -92,7 +447,7 @@ public class Main {
         get("/distributors", (req, res) -> {
             res.header("Content-Type", "application/json");
             res.status(200);
-            return DatabaseManager.getAllDistributors();
+            return negotiatedRead(req, res, DatabaseManager::getAllDistributors, DatabaseManager.ListQuery.DISTRIBUTORS, 0);
         });
 
         // Get items distributed by a specific distributor
@@ -101,7 +456,8 @@ public class Main {
             try {
                 int distributorId = Integer.parseInt(req.params(":id"));
                 res.status(200);
-                return DatabaseManager.getItemsByDistributor(distributorId);
+                return negotiatedRead(req, res, () -> DatabaseManager.getItemsByDistributor(distributorId),
+                        DatabaseManager.ListQuery.ITEMS_BY_DISTRIBUTOR, distributorId);
             } catch (NumberFormatException e) {
                 res.status(400);
                 return "{\"error\": \"Invalid distributor ID format\"}";
@@ -114,7 +470,8 @@ public class Main {
             try {
                 int itemId = Integer.parseInt(req.params(":id"));
                 res.status(200);
-                return DatabaseManager.getDistributorsByItem(itemId);
+                return negotiatedRead(req, res, () -> DatabaseManager.getDistributorsByItem(itemId),
+                        DatabaseManager.ListQuery.DISTRIBUTORS_BY_ITEM, itemId);
             } catch (NumberFormatException e) {
                 res.status(400);
                 return "{\"error\": \"Invalid item ID format\"}";
@@ -203,6 +560,7 @@ public class Main {
                 int itemId = Integer.parseInt(req.params(":id"));
                 Integer stock = null;
                 Integer capacity = null;
+                Double lowThreshold = null;
                 
                 if (req.queryParams("stock") != null) {
                     stock = Integer.parseInt(req.queryParams("stock"));
@@ -210,8 +568,11 @@ public class Main {
                 if (req.queryParams("capacity") != null) {
                     capacity = Integer.parseInt(req.queryParams("capacity"));
                 }
+                if (req.queryParams("lowThreshold") != null) {
+                    lowThreshold = Double.parseDouble(req.queryParams("lowThreshold"));
+                }
                 
-                String result = DatabaseManager.updateInventoryItem(itemId, stock, capacity);
+                String result = DatabaseManager.updateInventoryItem(itemId, stock, capacity, lowThreshold);
                 if (result.contains("\"success\": false")) {
                     res.status(400);
                 } else {
@@ -220,7 +581,7 @@ public class Main {
                 return result;
             } catch (NumberFormatException e) {
                 res.status(400);
-                return "{\"error\": \"Invalid parameters. stock and capacity must be integers\"}";
+                return "{\"error\": \"Invalid parameters. stock and capacity must be integers, lowThreshold a number\"}";
             }
         });
 
@@ -305,6 +666,64 @@ public class Main {
         });
 
         // ================ SPECIAL ROUTES ================
+        // Prefix and fuzzy name search, served from in-memory indexes
+        get(AppConstants.Endpoints.ITEMS_SEARCH, (req, res) -> search(req, res, DatabaseManager::searchItems));
+        get(AppConstants.Endpoints.DISTRIBUTORS_SEARCH, (req, res) -> search(req, res, DatabaseManager::searchDistributors));
+
+        // Changes to the item, inventory and distributor lists since a client's last sync
+        get(AppConstants.Endpoints.SYNC, (req, res) -> {
+            ResponseUtils.setJsonHeaders(res);
+            Long since = null;
+            String sinceParam = req.queryParams("since");
+            if (sinceParam != null && !sinceParam.trim().isEmpty()) {
+                try {
+                    since = Long.parseLong(sinceParam.trim());
+                } catch (NumberFormatException e) {
+                    since = -1L;
+                }
+                if (since < 0) {
+                    res.status(400);
+                    return AppConstants.ErrorMessages.INVALID_SYNC_VERSION;
+                }
+            }
+            List<DatabaseManager.SyncList> lists = new ArrayList<>();
+            String listsParam = req.queryParams("lists");
+            if (listsParam == null || listsParam.trim().isEmpty()) {
+                lists.addAll(Arrays.asList(DatabaseManager.SyncList.values()));
+            } else {
+                for (String key : listsParam.split(",")) {
+                    DatabaseManager.SyncList list = DatabaseManager.SyncList.fromKey(key.trim());
+                    if (list == null) {
+                        res.status(400);
+                        return AppConstants.ErrorMessages.INVALID_SYNC_LISTS;
+                    }
+                    if (!lists.contains(list)) {
+                        lists.add(list);
+                    }
+                }
+            }
+            String result = DatabaseManager.sync(since, lists);
+            ResponseUtils.setStatusFromResult(res, result);
+            return result;
+        });
+
+        // Schema version, applied migrations and the query plan checks; 500 if a hot query lost its index
+        get(AppConstants.Endpoints.SCHEMA, (req, res) -> {
+            ResponseUtils.setJsonHeaders(res);
+            String result = DatabaseManager.getSchemaStatus();
+            ResponseUtils.setStatusFromResult(res, result);
+            if (result.contains("\"plansOk\":false")) {
+                res.status(500);
+            }
+            return result;
+        });
+
+        // Hit, miss and eviction counts of the distributor catalog and item offer caches
+        get(AppConstants.Endpoints.CACHE_STATS, (req, res) -> {
+            ResponseUtils.setJsonHeaders(res);
+            return cacheStats();
+        });
+
         // Get the cheapest price for restocking an item at a given quantity
         get("/items/:id/cheapest", (req, res) -> {
             
@@ -312,11 +731,57 @@ public class Main {
             try {
                 int itemId = Integer.parseInt(req.params(":id"));
                 int quantity = Integer.parseInt(req.queryParams("quantity"));
+                String asOf = req.queryParams("asOf");
                 res.status(200);
-                return DatabaseManager.getCheapestRestockPrice(itemId, quantity);
+                if (asOf != null) {
+                    long time = Long.parseLong(asOf.trim());
+                    return coalescedRead(req, () -> DatabaseManager.getCheapestRestockPrice(itemId, quantity, time));
+                }
+                return coalescedRead(req, () -> DatabaseManager.getCheapestRestockPrice(itemId, quantity));
+            } catch (NumberFormatException e) {
+                res.status(400);
+                return "{\"error\": \"Invalid parameters. quantity must be an integer, asOf epoch milliseconds\"}";
+            }
+        });
+
+        // How an item's price moved at each distributor over a time range
+        get("/items/:id/price-history", (req, res) -> {
+            ResponseUtils.setJsonHeaders(res);
+            try {
+                int itemId = Integer.parseInt(req.params(":id"));
+                String toParam = req.queryParams("to");
+                String fromParam = req.queryParams("from");
+                long to = toParam == null ? System.currentTimeMillis() : Long.parseLong(toParam.trim());
+                long from = fromParam == null ? to - AppConstants.Config.DEFAULT_HISTORY_RANGE_MS : Long.parseLong(fromParam.trim());
+                if (from > to) {
+                    res.status(400);
+                    return AppConstants.ErrorMessages.INVALID_PRICE_HISTORY_PARAMS;
+                }
+                String result = DatabaseManager.getPriceTrend(itemId, from, to);
+                ResponseUtils.setStatusFromResult(res, result);
+                return result;
             } catch (NumberFormatException e) {
                 res.status(400);
-                return "{\"error\": \"Invalid parameters. quantity must be an integer\"}";
+                return AppConstants.ErrorMessages.INVALID_PRICE_HISTORY_PARAMS;
+            }
+        });
+
+        // The distributor catalog as it stood at a given time
+        get(AppConstants.Endpoints.CATALOG, (req, res) -> {
+            ResponseUtils.setJsonHeaders(res);
+            try {
+                String asOf = req.queryParams("asOf");
+                String distributor = req.queryParams("distributor");
+                String item = req.queryParams("item");
+                long time = asOf == null ? System.currentTimeMillis() : Long.parseLong(asOf.trim());
+                Integer distributorId = distributor == null ? null : Integer.parseInt(distributor.trim());
+                Integer itemId = item == null ? null : Integer.parseInt(item.trim());
+                String result = DatabaseManager.getCatalogAsOf(time, distributorId, itemId);
+                ResponseUtils.setStatusFromResult(res, result);
+                return result;
+            } catch (NumberFormatException e) {
+                res.status(400);
+                return AppConstants.ErrorMessages.INVALID_CATALOG_PARAMS;
             }
         });
 
@@ -329,7 +794,17 @@ public class Main {
                 return "{\"error\": \"Table name is required. Use ?table=tablename\"}";
             }
             
-            String csvData = DatabaseManager.exportTableToCsv(tableName.trim());
+            if (!exportSlots.tryAcquire()) {
+                res.status(503);
+                res.header(AppConstants.Headers.RETRY_AFTER, String.valueOf(AppConstants.Config.BUSY_RETRY_AFTER_SECONDS));
+                return AppConstants.ErrorMessages.TOO_MANY_EXPORTS;
+            }
+            String csvData;
+            try {
+                csvData = DatabaseManager.exportTableToCsv(tableName.trim());
+            } finally {
+                exportSlots.release();
+            }
             if (csvData == null) {
                 res.status(400);
                 return "{\"error\": \"Invalid table name. Valid tables: items, inventory, distributors, distributor_prices\"}";
@@ -341,104 +816,108 @@ public class Main {
             return csvData;
         });
         
+        // Import a CSV upload (same layout as /export/csv) into a table: POST /import/csv?table=name[&mode=upsert]
+        post(AppConstants.Endpoints.IMPORT_CSV, (req, res) -> {
+            ResponseUtils.setJsonHeaders(res);
+            // Query parameters are read from the query string only - asking the servlet would
+            // parse a form-encoded body and consume the upload
+            String tableName = queryStringParam(req, "table");
+            if (tableName == null || tableName.trim().isEmpty()) {
+                res.status(400);
+                return AppConstants.ErrorMessages.TABLE_NAME_REQUIRED;
+            }
+            if (!exportSlots.tryAcquire()) {
+                res.status(503);
+                res.header(AppConstants.Headers.RETRY_AFTER, String.valueOf(AppConstants.Config.BUSY_RETRY_AFTER_SECONDS));
+                return AppConstants.ErrorMessages.TOO_MANY_EXPORTS;
+            }
+            try (Reader in = new InputStreamReader(uploadStream(req), StandardCharsets.UTF_8)) {
+                String result = DatabaseManager.importCsv(tableName.trim(), in, "upsert".equals(queryStringParam(req, "mode")),
+                        importBatchRows);
+                ResponseUtils.setStatusFromResult(res, result);
+                return result;
+            } finally {
+                exportSlots.release();
+            }
+        });
+
         // ================ STREAMING ROUTES ================
-        // Server-Sent Events (SSE) endpoint for real-time database updates
-        get("/stream/events", (req, res) -> {
-            res.header("Content-Type", "text/event-stream");
-            res.header("Cache-Control", "no-cache");
-            res.header("Connection", "keep-alive");
-            res.header("Access-Control-Allow-Origin", "*");
-            res.header("Access-Control-Allow-Headers", "Cache-Control");
+        // Server-Sent Events (SSE) endpoint for real-time database updates. The connection is
+        // detached from its worker thread and written with non-blocking output, see EventStream.
+        get(AppConstants.Endpoints.STREAM_EVENTS, (req, res) -> {
+            if (!streamSlots.tryAcquire()) {
+                res.status(503);
+                res.header(AppConstants.Headers.RETRY_AFTER, String.valueOf(AppConstants.Config.BUSY_RETRY_AFTER_SECONDS));
+                return AppConstants.ErrorMessages.TOO_MANY_STREAMS;
+            }
+            ResponseUtils.setSseHeaders(res);
+            res.status(200);
             
             // Generate unique client ID
             String clientId = "client_" + System.currentTimeMillis() + "_" + Math.random();
             
+            EventStream stream;
             try {
-                java.io.PrintWriter writer = new java.io.PrintWriter(res.raw().getOutputStream());
-                
-                // Send initial connection event
-                writer.write("event: connected\n");
-                writer.write("data: {\"clientId\": \"" + clientId + "\", \"message\": \"Connected to TopBloc live updates\"}\n\n");
-                writer.flush();
-                
-                // Create streaming client with simplified sender
-                DatabaseManager.StreamingClient client = new DatabaseManager.StreamingClient(
-                    clientId,
-                    java.util.concurrent.CompletableFuture.completedFuture(null),
-                    (data) -> {
-                        try {
-                            writer.write("event: update\n");
-                            writer.write(data);
-                            writer.flush();
-                        } catch (Exception e) {
-                            System.out.println("Failed to write to client " + clientId + ": " + e.getMessage());
-                            throw new RuntimeException(e);
-                        }
-                    }
-                );
-                
-                // Add client to the streaming pool
-                DatabaseManager.addStreamingClient(client);
-                
-                // Send periodic heartbeat to keep connection alive and detect disconnects
-                Thread heartbeatThread = new Thread(() -> {
-                    try {
-                        while (!Thread.currentThread().isInterrupted()) {
-                            Thread.sleep(15000); // 15 seconds
-                            try {
-                                writer.write("event: heartbeat\n");
-                                writer.write("data: {\"timestamp\": " + System.currentTimeMillis() + "}\n\n");
-                                writer.flush();
-                                
-                                // Update client activity to prevent stale cleanup
-                                client.updateActivity();
-                                
-                            } catch (Exception e) {
-                                // Client disconnected
-                                DatabaseManager.removeStreamingClient(clientId);
-                                Thread.currentThread().interrupt();
-                                break;
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        DatabaseManager.removeStreamingClient(clientId);
-                        Thread.currentThread().interrupt();
-                    }
+                stream = EventStream.open(req.raw(), res.raw(), streamBufferBytes, () -> {
+                    DatabaseManager.removeStreamingClient(clientId);
+                    streamSlots.release();
                 });
-                heartbeatThread.setDaemon(true);
-                heartbeatThread.start();
-                
-                // This will keep the connection open indefinitely
-                // The client disconnect will be handled by the heartbeat failure
-                while (!heartbeatThread.isInterrupted()) {
-                    Thread.sleep(5000);
-                    // Check if heartbeat thread is still alive
-                    if (!heartbeatThread.isAlive()) {
-                        break;
-                    }
-                }
-                
-            } catch (Exception e) {
-                DatabaseManager.removeStreamingClient(clientId);
+            } catch (IOException | IllegalStateException e) {
+                streamSlots.release();
                 res.status(500);
                 return "{\"error\": \"Failed to establish streaming connection: " + e.getMessage() + "\"}";
-            } finally {
-                DatabaseManager.removeStreamingClient(clientId);
             }
+            stream.send("event: connected\n"
+                    + "data: {\"clientId\": \"" + clientId + "\", \"message\": \"Connected to TopBloc live updates\"}\n\n");
             
+            // Removing the client from the pool (a failed send, stale cleanup) ends the stream
+            CompletableFuture<Void> removed = new CompletableFuture<>();
+            removed.thenRun(stream::close);
+            DatabaseManager.addStreamingClient(new DatabaseManager.StreamingClient(clientId, removed, stream::send));
+            if (!stream.isOpen()) {
+                // The client went away before it was added
+                DatabaseManager.removeStreamingClient(clientId);
+            }
             return "";
         });
         
         // Simple streaming dashboard endpoint
-        get("/stream", (req, res) -> {
-            res.header("Content-Type", "text/html");
-            return TemplateLoader.getStreamingDashboard();
+        get(AppConstants.Endpoints.STREAM, (req, res) -> {
+            StaticAssets.Asset dashboard = staticAssets.get(AppConstants.Endpoints.STREAM);
+            if (dashboard == null) {
+                res.status(500);
+                ResponseUtils.setHtmlHeaders(res);
+                return AppConstants.ErrorMessages.DASHBOARD_UNAVAILABLE;
+            }
+            return StaticAssets.serve(req, res, dashboard);
+        });
+
+        // ================ FRONTEND ROUTES ================
+
+        // The React build, when frontend.dir points at one. Paths without a file extension are
+        // client-side routes and get index.html.
+        get(AppConstants.Endpoints.APP, (req, res) -> {
+            res.redirect(AppConstants.Endpoints.APP + "/");
+            return "";
+        });
+        get(AppConstants.Endpoints.APP + "/*", (req, res) -> {
+            String path = req.pathInfo();
+            StaticAssets.Asset asset = staticAssets.get(path.endsWith("/") ? path + "index.html" : path);
+            if (asset == null && path.lastIndexOf('.') < path.lastIndexOf('/')) {
+                asset = staticAssets.get(AppConstants.Endpoints.APP + "/index.html");
+            }
+            if (asset == null) {
+                res.status(404);
+                ResponseUtils.setJsonHeaders(res);
+                return AppConstants.ErrorMessages.ASSET_NOT_FOUND;
+            }
+            return StaticAssets.serve(req, res, asset);
         });
         
         // Wait for initialization and start server
         awaitInitialization();
-        System.out.println("TopBloc server started on http://localhost:4567");
-        System.out.println("Live updates dashboard: http://localhost:4567/stream");
+        System.out.println("TopBloc server started on http://localhost:" + serverPort);
+        System.out.println("Live updates dashboard: http://localhost:" + serverPort + "/stream");
         
         // Start periodic cleanup task for streaming clients
         Thread cleanupTask = new Thread(() -> {
@@ -446,6 +925,15 @@ public class Main {
                 try {
                     Thread.sleep(30000); // Clean up every 30 seconds
                     DatabaseManager.cleanupStaleClients();
+                    if (rateLimiter != null) {
+                        rateLimiter.evictIdle();
+                    }
+                    try {
+                        DatabaseManager.pruneChangeLog(changeLogRetainRows);
+                        DatabaseManager.compactStockHistory();
+                    } catch (RuntimeException e) {
+                        System.out.println("Change log maintenance failed: " + e.getMessage());
+                    }
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -455,5 +943,20 @@ public class Main {
         cleanupTask.setDaemon(true);
         cleanupTask.start();
         System.out.println("Started periodic client cleanup task");
+
+        // One thread sends every stream its heartbeat, which also finds clients that went away
+        Thread heartbeatTask = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(AppConstants.Config.HEARTBEAT_INTERVAL_MS);
+                    DatabaseManager.sendHeartbeat();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }, "stream-heartbeat");
+        heartbeatTask.setDaemon(true);
+        heartbeatTask.start();
     }
 }
\ No newline at end of file
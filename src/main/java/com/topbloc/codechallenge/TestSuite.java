@@ -1,12 +1,24 @@
 package com.topbloc.codechallenge;
 
+import com.topbloc.codechallenge.constants.AppConstants;
+import com.topbloc.codechallenge.utils.ConfigUtils;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Comprehensive Test Suite for TopBloc Backend Code Challenge
@@ -38,14 +50,31 @@ public class TestSuite {
         
         // Run all test categories
         testBasicEndpoints();
+        testSchema();
         testInventoryEndpoints();
         testDistributorEndpoints();
         testPostEndpoints();
         testPutEndpoints();
         testDeleteEndpoints();
         testSpecialEndpoints();
+        testSearchEndpoints();
+        testContentNegotiation();
+        testCsvImport();
+        testDeltaSync();
+        testStockHistory();
+        testPriceHistory();
+        testLookupCache();
+        testInventorySummary();
+        testStockAlerts();
+        testLiveSocket();
+        testStaticAssets();
+        testReadAfterWrite();
+        testWriteIsolation();
+        testReadCoalescing();
+        resetDatabase();
         testEdgeCases();
         testSecurityAndValidation();
+        testRateLimits();
         
         // Print final results
         printFinalResults();
@@ -65,6 +94,19 @@ public class TestSuite {
         testEndpoint("GET /reset", "GET", "/reset", null, 200, "OK");
     }
 
+    // ================ SCHEMA ================
+    private static void testSchema() {
+        printSection("SCHEMA");
+
+        // GET /schema - Every migration has been applied, including after the reset above
+        testEndpoint("GET /schema - No pending migrations", "GET", "/schema", null, 200, "\"pending\":0");
+        testEndpoint("GET /schema - Latest migration recorded", "GET", "/schema", null, 200, "Capture every inventory column");
+
+        // GET /schema - The hot lookup queries are still served by their indexes
+        testEndpoint("GET /schema - Query plans use their indexes", "GET", "/schema", null, 200, "\"plansOk\":true");
+        testEndpoint("GET /schema - Price lookup index checked", "GET", "/schema", null, 200, "idx_distributor_prices_item_cost");
+    }
+
     // ================ INVENTORY ENDPOINTS ================
     private static void testInventoryEndpoints() {
         printSection("INVENTORY ENDPOINTS");
@@ -229,6 +271,11 @@ public class TestSuite {
         
         // PUT /inventory/:id - Non-existent ID
         testEndpoint("PUT /inventory - Non-existent", "PUT", "/inventory/999?stock=25", null, 200, "not found");
+
+        // PUT /inventory - A stock decrease feeds the consumption estimate (28 units over a 7-day window)
+        makeRequest("PUT", "/inventory/3?stock=70", null);
+        makeRequest("PUT", "/inventory/3?stock=42", null);
+        testEndpoint("PUT /inventory - Days of cover", "GET", "/inventory/3", null, 200, "\"days_of_cover\":10.5");
         
         // PUT /distributors/:distributorId/items/:itemId - Valid
         testEndpoint("PUT /distributors/items - Valid", "PUT", "/distributors/1/items/1?cost=3.00", null, 200, "success");
@@ -297,6 +344,500 @@ public class TestSuite {
         testEndpoint("GET /items/cheapest - Invalid item format", "GET", "/items/abc/cheapest?quantity=100", null, 400, "Invalid");
     }
 
+    // ================ CSV IMPORT ================
+    private static void testCsvImport() {
+        printSection("CSV IMPORT");
+
+        // POST /import/csv - Valid rows are kept, duplicates reported by line
+        testEndpoint("POST /import/csv - Partial import", "POST", "/import/csv?table=distributors",
+                "name\nImported Distributor\nCandy Corp\n", 200, "\"accepted\":1");
+
+        // POST /import/csv - Validation errors are reported
+        testEndpoint("POST /import/csv - Invalid row", "POST", "/import/csv?table=inventory",
+                "item,stock,capacity\n1,-5,10\n", 200, "Stock cannot be negative");
+
+        // POST /import/csv - Unknown table
+        testEndpoint("POST /import/csv - Invalid table", "POST", "/import/csv?table=users", "name\n", 400, "Invalid table name");
+    }
+
+    // ================ DELTA SYNC ================
+    private static void testDeltaSync() {
+        printSection("DELTA SYNC");
+
+        // GET /sync - Without a version the whole list is sent
+        testEndpoint("GET /sync - Full", "GET", "/sync?lists=distributors", null, 200, "\"full\":true");
+
+        // GET /sync - With a version only the rows changed since are sent
+        long version = extractVersion(makeRequest("GET", "/sync?lists=distributors", null));
+        makeRequest("POST", "/distributors?name=Synced%20Distributor", null);
+        testEndpoint("GET /sync - Delta", "GET", "/sync?lists=distributors&since=" + version, null, 200, "\"full\":false");
+        testEndpoint("GET /sync - Delta rows", "GET", "/sync?lists=distributors&since=" + version, null, 200, "Synced Distributor");
+
+        // GET /sync - Invalid version
+        testEndpoint("GET /sync - Invalid since", "GET", "/sync?since=abc", null, 400, "since must be a version");
+    }
+
+    // ================ STOCK HISTORY ================
+    private static void testStockHistory() {
+        printSection("STOCK HISTORY");
+
+        // GET /inventory/:id/history - Every stock change is recorded
+        makeRequest("PUT", "/inventory/1?stock=4321", null);
+        testEndpoint("GET /inventory/:id/history - Raw", "GET", "/inventory/1/history", null, 200, ",4321]");
+
+        // GET /inventory/:id/history - Downsampled
+        testEndpoint("GET /inventory/:id/history - Buckets", "GET", "/inventory/1/history?bucket=1h", null, 200, "\"max\":4321");
+
+        // GET /inventory/:id/history - Millisecond buckets over the default 30 days are too many
+        testEndpoint("GET /inventory/:id/history - Too many buckets", "GET", "/inventory/1/history?bucket=1", null, 400, "buckets in range");
+
+        // GET /inventory/:id/history - Invalid bucket
+        testEndpoint("GET /inventory/:id/history - Invalid bucket", "GET", "/inventory/1/history?bucket=soon", null, 400, "bucket a duration");
+    }
+
+    // ================ PRICE HISTORY ================
+    private static void testPriceHistory() {
+        printSection("PRICE HISTORY");
+
+        // GET /catalog - Current prices have an open validity interval
+        testEndpoint("GET /catalog - Current", "GET", "/catalog?item=1", null, 200, "\"valid_to\":null");
+
+        // GET /reset - A reset starts each price's history over instead of adding to it, in cluster
+        // mode too, where the tables are dropped and rebuilt in place
+        makeRequest("GET", "/reset", null);
+        makeRequest("GET", "/reset", null);
+        testOccurrences("GET /catalog - One version after resets", "/catalog?item=1", "\"valid_to\":null", 1);
+
+        // GET /items/:id/price-history - A price change closes the old version and opens a new one
+        makeRequest("PUT", "/distributors/1/items/1?cost=7.25", null);
+        testEndpoint("GET /items/:id/price-history - Trend", "GET", "/items/1/price-history", null, 200, "\"cost\":7.25");
+
+        // GET /catalog - Invalid time
+        testEndpoint("GET /catalog - Invalid asOf", "GET", "/catalog?asOf=yesterday", null, 400, "asOf must be epoch milliseconds");
+    }
+
+    // ================ SEARCH ENDPOINTS ================
+    private static void testSearchEndpoints() {
+        printSection("SEARCH ENDPOINTS");
+        
+        // GET /items/search - Prefix match
+        testEndpoint("GET /items/search - Prefix", "GET", "/items/search?q=gum", null, 200, "Gummy Bears");
+        
+        // GET /items/search - Typo tolerant match
+        testEndpoint("GET /items/search - Fuzzy", "GET", "/items/search?q=snikers", null, 200, "Snickers");
+        
+        // GET /items/search - Missing query
+        testEndpoint("GET /items/search - Missing query", "GET", "/items/search", null, 400, "Search query is required");
+        
+        // GET /items/search - Invalid limit
+        testEndpoint("GET /items/search - Invalid limit", "GET", "/items/search?q=a&limit=abc", null, 400, "limit must be an integer");
+        
+        // GET /distributors/search - Word prefix match
+        testEndpoint("GET /distributors/search - Word prefix", "GET", "/distributors/search?q=sweet", null, 200, "The Sweet Suite");
+    }
+
+    // ================ CONTENT NEGOTIATION ================
+    private static void testContentNegotiation() {
+        printSection("CONTENT NEGOTIATION");
+
+        // GET /inventory - CBOR when asked for; column names are sent once, ahead of the rows
+        testAccept("GET /inventory - CBOR", "/inventory", "application/cbor", true, "columns");
+
+        // GET /items/:id/distributors - CBOR preferred over JSON by quality
+        testAccept("GET /items/:id/distributors - CBOR by quality", "/items/1/distributors",
+                "application/json;q=0.5, application/cbor", true, "Candy Corp");
+
+        // GET /inventory/low-stock - NDJSON, one object per line
+        testAccept("GET /inventory/low-stock - NDJSON", "/inventory/low-stock", "application/x-ndjson", true, "{\"");
+
+        // GET /distributors/:id/items - JSON stays the default
+        testAccept("GET /distributors/:id/items - JSON default", "/distributors/1/items", "*/*", false, "\"cost\":");
+    }
+
+    private static void testAccept(String testName, String endpoint, String accept, boolean binary, String expectedContent) {
+        totalTests++;
+        String response = makeRequest("GET", endpoint, null, accept);
+        // A JSON list starts with '[', the other encodings do not
+        if (response.contains(expectedContent) && binary != response.startsWith("[")) {
+            passedTests++;
+            System.out.println("PASS " + testName);
+        } else {
+            failedTests++;
+            System.out.println("FAIL " + testName);
+            System.out.println("   Expected: " + expectedContent);
+        }
+    }
+
+    private static void testOccurrences(String testName, String endpoint, String text, int expected) {
+        totalTests++;
+        int count = countOccurrences(makeRequest("GET", endpoint, null), text);
+        if (count == expected) {
+            passedTests++;
+            System.out.println("PASS " + testName);
+        } else {
+            failedTests++;
+            System.out.println("FAIL " + testName);
+            System.out.println("   Expected " + expected + " of " + text + ", got " + count);
+        }
+    }
+
+    private static int countOccurrences(String response, String text) {
+        int count = 0;
+        for (int i = response.indexOf(text); i >= 0; i = response.indexOf(text, i + text.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    // ================ LOOKUP CACHE ================
+    private static void testLookupCache() {
+        printSection("LOOKUP CACHE");
+
+        // Load both lookups into the cache, then change a price they contain
+        makeRequest("GET", "/distributors/1/items", null);
+        makeRequest("GET", "/items/2/distributors", null);
+        makeRequest("PUT", "/distributors/1/items/2?cost=3.33", null);
+
+        // GET /distributors/:id/items - The update invalidated the distributor's catalog
+        testEndpoint("GET /distributors/:id/items - After price change", "GET", "/distributors/1/items", null, 200, "\"cost\":3.33");
+
+        // GET /items/:id/distributors - And the item's offers
+        testEndpoint("GET /items/:id/distributors - After price change", "GET", "/items/2/distributors", null, 200, "\"cost\":3.33");
+
+        // GET /cache/stats - Hits, misses and evictions of both caches
+        testEndpoint("GET /cache/stats", "GET", "/cache/stats", null, 200, "\"itemsByDistributor\":{");
+
+        makeRequest("PUT", "/distributors/1/items/2?cost=0.46", null);
+    }
+
+    // ================ INVENTORY SUMMARY ================
+    private static void testInventorySummary() {
+        printSection("INVENTORY SUMMARY");
+
+        // GET /inventory/summary - Running totals and value
+        testEndpoint("GET /inventory/summary", "GET", "/inventory/summary", null, 200, "\"value_at_cheapest\":");
+
+        // Change stock and a price, then check the running totals against a full recompute
+        makeRequest("PUT", "/inventory/1?stock=77", null);
+        makeRequest("PUT", "/distributors/1/items/1?cost=0.79", null);
+        testEndpoint("GET /inventory/summary?verify=true - After writes", "GET", "/inventory/summary?verify=true", null, 200, "\"consistent\":true");
+
+        makeRequest("PUT", "/distributors/1/items/1?cost=0.81", null);
+    }
+
+    // ================ STOCK ALERTS ================
+    private static void testStockAlerts() {
+        printSection("STOCK ALERTS");
+
+        // PUT /inventory/:id - Threshold outside 0 to 1
+        testEndpoint("PUT /inventory - Invalid low threshold", "PUT", "/inventory/15?lowThreshold=2", null, 400, "between 0 and 1");
+
+        // Raising Peach Rings' threshold (stock 20 of 30) makes it low, and streams the transition
+        testStreamEvent("SSE stock-alert - ok to low", "stock-alert", "PUT", "/inventory/15?lowThreshold=0.8", "\"to\":\"low\"");
+
+        // GET /inventory/low-stock - Uses the item's own threshold
+        testEndpoint("GET /inventory/low-stock - Per-item threshold", "GET", "/inventory/low-stock", null, 200, "Peach Rings");
+
+        makeRequest("PUT", "/inventory/15?lowThreshold=0.35", null);
+
+        // A threshold-only change still shows up in the row's update event
+        testStreamEvent("SSE update - Threshold change", "update", "PUT", "/inventory/15?lowThreshold=0.3", "low_threshold\\\":0.3");
+        makeRequest("PUT", "/inventory/15?lowThreshold=0.35", null);
+    }
+
+    // Connect to the event stream, make a request, and expect an event of the given type to follow
+    private static void testStreamEvent(String testName, String eventType, String method, String endpoint, String expectedContent) {
+        totalTests++;
+        HttpURLConnection conn = null;
+        try {
+            @SuppressWarnings("deprecation")
+            URL url = new URL(BASE_URL + "/stream/events");
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setReadTimeout(5000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
+            String event = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("event: ")) {
+                    event = line.substring(7);
+                } else if (line.startsWith("data: ") && "connected".equals(event)) {
+                    // The server registers the client just after greeting it
+                    Thread.sleep(300);
+                    makeRequest(method, endpoint, null);
+                } else if (line.startsWith("data: ") && eventType.equals(event) && line.contains(expectedContent)) {
+                    passedTests++;
+                    System.out.println("PASS " + testName);
+                    return;
+                }
+            }
+            failedTests++;
+            System.out.println("FAIL " + testName + " - Stream ended");
+        } catch (IOException | InterruptedException e) {
+            failedTests++;
+            System.out.println("FAIL " + testName + " - No " + eventType + " event with " + expectedContent + ": " + e.getMessage());
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    // ================ LIVE SOCKET ================
+    private static void testLiveSocket() {
+        printSection("LIVE SOCKET");
+
+        // Subscribe and pipeline two updates without waiting: both replies and their change frames come back
+        testSocket("WS /ws - Pipelined inventory updates",
+                new String[]{
+                    "{\"id\":1,\"op\":\"subscribe\",\"topics\":[\"inventory\"]}",
+                    "{\"id\":2,\"op\":\"inventory.update\",\"item\":15,\"stock\":21}",
+                    "{\"id\":3,\"op\":\"inventory.update\",\"item\":15,\"stock\":20}"
+                },
+                "\"id\":1,\"ok\":true", "\"id\":2,\"ok\":true", "\"id\":3,\"ok\":true", "\"type\":\"change\"");
+
+        // price.update - Same result as PUT /distributors/:distributorId/items/:itemId
+        testSocket("WS /ws - Price update",
+                new String[]{"{\"id\":\"p\",\"op\":\"price.update\",\"distributor\":1,\"item\":1,\"cost\":0.81}"},
+                "\"id\":\"p\",\"ok\":true");
+
+        // A malformed parameter is rejected with the request's id
+        testSocket("WS /ws - Invalid parameter",
+                new String[]{"{\"id\":4,\"op\":\"inventory.update\",\"item\":15,\"stock\":\"ten\"}"},
+                "\"id\":4,\"ok\":false", "stock must be an integer");
+    }
+
+    // Open a socket, send every request at once, and expect each of the given strings in some frame
+    private static void testSocket(String testName, String[] requests, String... expected) {
+        totalTests++;
+        List<String> frames = new CopyOnWriteArrayList<>();
+        WebSocket socket = null;
+        try {
+            socket = HttpClient.newHttpClient().newWebSocketBuilder()
+                    .buildAsync(URI.create(BASE_URL.replace("http", "ws") + "/ws"), new WebSocket.Listener() {
+                        private final StringBuilder partial = new StringBuilder();
+
+                        @Override
+                        public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+                            partial.append(data);
+                            if (last) {
+                                frames.add(partial.toString());
+                                partial.setLength(0);
+                            }
+                            ws.request(1);
+                            return null;
+                        }
+                    }).get(5, TimeUnit.SECONDS);
+            for (String request : requests) {
+                socket.sendText(request, true).get(5, TimeUnit.SECONDS);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                String missing = null;
+                for (String content : expected) {
+                    if (frames.stream().noneMatch(frame -> frame.contains(content))) {
+                        missing = content;
+                        break;
+                    }
+                }
+                if (missing == null) {
+                    passedTests++;
+                    System.out.println("PASS " + testName);
+                    return;
+                }
+                Thread.sleep(50);
+            }
+            failedTests++;
+            System.out.println("FAIL " + testName);
+            System.out.println("   Expected frames containing: " + String.join(", ", expected));
+            System.out.println("   Got: " + frames);
+        } catch (Exception e) {
+            failedTests++;
+            System.out.println("FAIL " + testName + " - Error: " + e.getMessage());
+        } finally {
+            if (socket != null) {
+                socket.sendClose(WebSocket.NORMAL_CLOSURE, "");
+            }
+        }
+    }
+
+    // ================ STATIC ASSETS ================
+    private static void testStaticAssets() {
+        printSection("STATIC ASSETS");
+
+        // GET /stream - Dashboard served from the asset cache
+        testEndpoint("GET /stream - Dashboard", "GET", "/stream", null, 200, "<html");
+
+        // GET /stream - Revalidating with the ETag it was sent gets 304 and no body
+        testConditionalGet("GET /stream - If-None-Match", "/stream");
+    }
+
+    private static void testConditionalGet(String testName, String endpoint) {
+        totalTests++;
+        try {
+            @SuppressWarnings("deprecation")
+            URL url = new URL(BASE_URL + endpoint);
+            HttpURLConnection first = (HttpURLConnection) url.openConnection();
+            String etag = first.getHeaderField("ETag");
+            first.getInputStream().close();
+            HttpURLConnection second = (HttpURLConnection) url.openConnection();
+            if (etag != null) {
+                second.setRequestProperty("If-None-Match", etag);
+            }
+            int status = second.getResponseCode();
+            if (etag != null && status == 304) {
+                passedTests++;
+                System.out.println("PASS " + testName);
+            } else {
+                failedTests++;
+                System.out.println("FAIL " + testName);
+                System.out.println("   Expected: 304 for ETag " + etag + ", got " + status);
+            }
+        } catch (IOException e) {
+            failedTests++;
+            System.out.println("FAIL " + testName + " - Error: " + e.getMessage());
+        }
+    }
+
+    // ================ READ AFTER WRITE ================
+    // Every read must reflect the write acknowledged just before it. Run the suite against a server
+    // started with -Ddb.read-mirror=true as well, where the reads come from the in-memory mirror.
+    private static void testReadAfterWrite() {
+        printSection("READ AFTER WRITE");
+        String itemName = "Read After Write Item";
+        String distributorName = "Read After Write Distributor";
+
+        // POST /items, then GET /items
+        int itemId = extractIdFromResponse(makeRequest("POST", "/items?name=" + urlEncode(itemName), null));
+        testEndpoint("GET /items - After insert", "GET", "/items", null, 200, itemName);
+
+        // POST /inventory, then GET /inventory/:id
+        makeRequest("POST", "/inventory?itemId=" + itemId + "&stock=7&capacity=40", null);
+        testEndpoint("GET /inventory/:id - After insert", "GET", "/inventory/" + itemId, null, 200, "\"stock\":7");
+
+        // PUT /inventory/:id, then GET /inventory/out-of-stock
+        makeRequest("PUT", "/inventory/" + itemId + "?stock=0", null);
+        testEndpoint("GET /inventory/out-of-stock - After update", "GET", "/inventory/out-of-stock", null, 200, itemName);
+
+        // POST /distributors and a price, then GET /distributors/:id/items
+        int distributorId = extractIdFromResponse(makeRequest("POST", "/distributors?name=" + urlEncode(distributorName), null));
+        makeRequest("POST", "/distributors/" + distributorId + "/items?itemId=" + itemId + "&cost=1.25", null);
+        testEndpoint("GET /distributors/:id/items - After insert", "GET", "/distributors/" + distributorId + "/items", null, 200, "\"cost\":1.25");
+
+        // PUT the price, then GET /items/:id/distributors
+        makeRequest("PUT", "/distributors/" + distributorId + "/items/" + itemId + "?cost=2.5", null);
+        testEndpoint("GET /items/:id/distributors - After update", "GET", "/items/" + itemId + "/distributors", null, 200, "\"cost\":2.5");
+
+        // DELETE /distributors/:id takes its prices with it
+        makeRequest("DELETE", "/distributors/" + distributorId, null);
+        testOccurrences("GET /distributors - After delete", "/distributors", distributorName, 0);
+        testOccurrences("GET /items/:id/distributors - After cascade", "/items/" + itemId + "/distributors", "\"cost\"", 0);
+
+        // DELETE /inventory/:id, then GET /inventory/:id
+        makeRequest("DELETE", "/inventory/" + itemId, null);
+        testEndpoint("GET /inventory/:id - After delete", "GET", "/inventory/" + itemId, null, 200, "[]");
+    }
+
+    // ================ WRITE ISOLATION ================
+    // A large import commits one batch of rows at a time; a GET running while a batch is open
+    // must see either none of the batch or all of it, never the rows inserted so far
+    private static void testWriteIsolation() {
+        printSection("WRITE ISOLATION");
+        int batchRows = Math.max(1, ConfigUtils.getInt("import.batch-rows", AppConstants.Config.DEFAULT_IMPORT_BATCH_ROWS));
+        int batches = 4;
+        int firstId = 1001;
+        StringBuilder csv = new StringBuilder("id,name\n");
+        for (int id = firstId; id < firstId + batches * batchRows; id++) {
+            csv.append(id).append(",Isolation Distributor ").append(id).append('\n');
+        }
+
+        String[] imported = new String[1];
+        Thread importer = new Thread(() -> imported[0] = makeRequest("POST", "/import/csv?table=distributors", csv.toString()));
+        importer.start();
+
+        // Every listing taken while the import runs must hold whole batches: a count in between
+        // means the GET saw rows of a batch that had not committed yet
+        int partial = 0;
+        while (importer.isAlive()) {
+            int rows = countOccurrences(makeRequest("GET", "/distributors", null), "Isolation Distributor");
+            if (rows % batchRows != 0) {
+                partial++;
+            }
+        }
+        try {
+            importer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        testCondition("GET /distributors - During an import",
+                partial == 0 && imported[0] != null && imported[0].contains("\"accepted\":" + batches * batchRows),
+                partial + " listings held part of a batch; import returned " + imported[0]);
+    }
+
+    // ================ READ COALESCING ================
+    // Identical GETs that overlap share one query; a write in between must still be seen by the next
+    // round. Runs after the write isolation import, so /distributors is large enough to overlap.
+    private static void testReadCoalescing() {
+        printSection("READ COALESCING");
+        String stats = makeRequest("GET", "/cache/stats", null);
+        long joined = extractCount(stats, "joined");
+
+        // GET /distributors - Concurrent identical requests share one result
+        List<String> first = concurrentGets("/distributors", 16);
+        long joinedAfter = extractCount(makeRequest("GET", "/cache/stats", null), "joined");
+        testCondition("GET /distributors - Concurrent requests coalesced",
+                joinedAfter > joined && first.stream().distinct().count() == 1,
+                (joinedAfter - joined) + " requests joined, " + first.stream().distinct().count() + " distinct responses");
+
+        // GET /distributors - A write after the round is in every response of the next
+        String name = "Coalescing Distributor";
+        makeRequest("POST", "/distributors?name=" + urlEncode(name), null);
+        List<String> second = concurrentGets("/distributors", 16);
+        testCondition("GET /distributors - Write seen by the next round",
+                second.stream().allMatch(response -> response.contains(name)),
+                second.stream().filter(response -> !response.contains(name)).count() + " responses missed the new distributor");
+    }
+
+    // Send the same GET from several threads at once and collect the responses
+    private static List<String> concurrentGets(String endpoint, int count) {
+        List<String> responses = new CopyOnWriteArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    responses.add(makeRequest("GET", endpoint, null));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return responses;
+    }
+
+    private static void testCondition(String testName, boolean passed, String detail) {
+        totalTests++;
+        if (passed) {
+            passedTests++;
+            System.out.println("PASS " + testName);
+        } else {
+            failedTests++;
+            System.out.println("FAIL " + testName);
+            System.out.println("   " + detail);
+        }
+    }
+
     // ================ EDGE CASES ================
     private static void testEdgeCases() {
         printSection("EDGE CASES & BOUNDARY CONDITIONS");
@@ -346,6 +887,79 @@ public class TestSuite {
         testEndpoint("Null chars - Item name", "POST", "/items?name=test%00null", null, 200, "success");
     }
 
+    // ================ RATE LIMITING ================
+    // Runs when the suite is given the server's rate limit settings, e.g. both started with
+    // -Dratelimit.enabled=true -Dratelimit.reads.per-second=0 -Dratelimit.writes.per-second=0
+    // -Dratelimit.api-keys=suite-key, so that only exports are limited (1/s, burst 5 by default)
+    private static void testRateLimits() {
+        printSection("RATE LIMITING");
+        String[] apiKeys = ConfigUtils.getString("ratelimit.api-keys", "").split(",");
+        if (!ConfigUtils.getBoolean("ratelimit.enabled", false) || apiKeys[0].trim().isEmpty()) {
+            System.out.println("Skipped: run the server and the suite with -Dratelimit.enabled=true and -Dratelimit.api-keys");
+            return;
+        }
+        String apiKey = apiKeys[0].trim();
+        int burst = ConfigUtils.getInt("ratelimit.exports.burst", AppConstants.Config.DEFAULT_EXPORTS_BURST);
+        String endpoint = "/export/csv?table=distributors";
+
+        // GET /export/csv - One more export than the burst allows is refused, with the wait in Retry-After
+        HttpURLConnection last = null;
+        for (int i = 0; i <= burst; i++) {
+            last = limitedRequest(endpoint, null);
+        }
+        testRateLimited("GET /export/csv - Over the burst", last, 429);
+
+        // GET /export/csv - An allow-listed API key is charged to a bucket of its own
+        testRateLimited("GET /export/csv - Allow-listed API key", limitedRequest(endpoint, apiKey), 200);
+
+        // GET /export/csv - Any other key is charged to the caller's address like no key at all
+        testRateLimited("GET /export/csv - Unknown API key", limitedRequest(endpoint, "not-" + apiKey), 429);
+
+        // GET /export/csv - Admitted again once Retry-After has passed
+        try {
+            Thread.sleep(Long.parseLong(last.getHeaderField("Retry-After")) * 1000);
+        } catch (InterruptedException | NumberFormatException e) {
+            Thread.currentThread().interrupt();
+        }
+        testRateLimited("GET /export/csv - After Retry-After", limitedRequest(endpoint, null), 200);
+    }
+
+    private static HttpURLConnection limitedRequest(String endpoint, String apiKey) {
+        try {
+            @SuppressWarnings("deprecation")
+            URL url = new URL(BASE_URL + endpoint);
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            if (apiKey != null) {
+                conn.setRequestProperty("X-API-Key", apiKey);
+            }
+            conn.getResponseCode();
+            return conn;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void testRateLimited(String testName, HttpURLConnection response, int expectedStatus) {
+        totalTests++;
+        try {
+            int status = response.getResponseCode();
+            String retryAfter = response.getHeaderField("Retry-After");
+            // A refusal must say how long to wait
+            boolean retryAfterOk = expectedStatus != 429 || (retryAfter != null && Integer.parseInt(retryAfter) >= 1);
+            if (status == expectedStatus && retryAfterOk) {
+                passedTests++;
+                System.out.println("PASS " + testName);
+            } else {
+                failedTests++;
+                System.out.println("FAIL " + testName);
+                System.out.println("   Expected: " + expectedStatus + ", got " + status + " with Retry-After " + retryAfter);
+            }
+        } catch (IOException | NumberFormatException e) {
+            failedTests++;
+            System.out.println("FAIL " + testName + " - Error: " + e.getMessage());
+        }
+    }
+
     // ================ UTILITY METHODS ================
     private static void testEndpoint(String testName, String method, String endpoint, String body, int expectedStatus, String expectedContent) {
         totalTests++;
@@ -381,6 +995,10 @@ public class TestSuite {
     }
 
     private static String makeRequest(String method, String endpoint, String body) {
+        return makeRequest(method, endpoint, body, null);
+    }
+
+    private static String makeRequest(String method, String endpoint, String body, String accept) {
         try {
             @SuppressWarnings("deprecation")
             URL url = new URL(BASE_URL + endpoint);
@@ -388,6 +1006,9 @@ public class TestSuite {
             conn.setRequestMethod(method);
             conn.setConnectTimeout(5000);
             conn.setReadTimeout(5000);
+            if (accept != null) {
+                conn.setRequestProperty("Accept", accept);
+            }
             
             if (body != null) {
                 conn.setDoOutput(true);
@@ -491,6 +1112,34 @@ public class TestSuite {
         return 1; // Fallback to item ID 1
     }
 
+    private static long extractVersion(String response) {
+        try {
+            // Extract the version from a sync response like {"version":12,...}
+            int versionIndex = response.indexOf("\"version\":");
+            if (versionIndex != -1) {
+                String versionStr = response.substring(versionIndex + 10).split("[,}]")[0].trim();
+                return Long.parseLong(versionStr);
+            }
+        } catch (Exception e) {
+            // Fallback
+        }
+        return 0;
+    }
+
+    private static long extractCount(String response, String key) {
+        try {
+            // Extract a counter from a stats response like {"readCoalescing":{"joined":3,...}}
+            int keyIndex = response.indexOf("\"" + key + "\":");
+            if (keyIndex != -1) {
+                String countStr = response.substring(keyIndex + key.length() + 3).split("[,}]")[0].trim();
+                return Long.parseLong(countStr);
+            }
+        } catch (Exception e) {
+            // Fallback
+        }
+        return 0;
+    }
+
     private static int extractIdFromResponse(String response) {
         try {
             // Extract ID from success response like {"success": true, "id": 123}
@@ -21,6 +21,21 @@ public final class AppConstants {
         public static final String TABLE_NAME_REQUIRED = "{\"error\": \"Table name is required. Use ?table=tablename\"}";
         public static final String INVALID_TABLE_NAME = "{\"error\": \"Invalid table name. Valid tables: items, inventory, distributors, distributor_prices\"}";
         public static final String INVALID_QUANTITY = "{\"error\": \"Invalid parameters. quantity must be an integer\"}";
+        public static final String SEARCH_QUERY_REQUIRED = "{\"error\": \"Search query is required. Use ?q=text\"}";
+        public static final String INVALID_LIMIT = "{\"error\": \"Invalid parameters. limit must be an integer between 1 and 100\"}";
+        public static final String RATE_LIMITED = "{\"error\": \"Rate limit exceeded. Retry after the time given in the Retry-After header\"}";
+        public static final String TOO_MANY_STREAMS = "{\"error\": \"Too many streaming connections. Try again later\"}";
+        public static final String TOO_MANY_EXPORTS = "{\"error\": \"Too many exports in progress. Try again later\"}";
+        public static final String INVALID_SYNC_VERSION = "{\"error\": \"Invalid parameters. since must be a version returned by /sync\"}";
+        public static final String INVALID_HISTORY_PARAMS = "{\"error\": \"Invalid parameters. from and to must be epoch milliseconds with from <= to, bucket a duration such as 3600000, 15m, 1h or 1d\"}";
+        public static final String INVALID_PRICE_HISTORY_PARAMS = "{\"error\": \"Invalid parameters. from and to must be epoch milliseconds with from <= to\"}";
+        public static final String INVALID_CATALOG_PARAMS = "{\"error\": \"Invalid parameters. asOf must be epoch milliseconds, distributor and item integers\"}";
+        public static final String ASSET_NOT_FOUND = "{\"error\": \"Asset not found\"}";
+        public static final String DASHBOARD_UNAVAILABLE = "<!DOCTYPE html><html><head><title>Error</title></head><body>"
+                + "<h1>Template Loading Error</h1><p>Could not load streaming dashboard template</p></body></html>";
+        public static final String INVALID_SOCKET_REQUEST = "{\"error\": \"Invalid request. Send a JSON object with an id and an op\"}";
+        public static final String SOCKET_RATE_LIMITED = "{\"error\": \"Rate limit exceeded. Retry after retryAfterMs\"}";
+        public static final String INVALID_SYNC_LISTS = "{\"error\": \"Invalid lists. Valid lists: items, inventory, distributors\"}";
     }
     
     // HTTP Headers
@@ -29,18 +44,26 @@ public final class AppConstants {
         public static final String CONTENT_TYPE_HTML = "text/html";
         public static final String CONTENT_TYPE_CSV = "text/csv";
         public static final String CONTENT_TYPE_SSE = "text/event-stream";
+        public static final String CONTENT_TYPE_CBOR = "application/cbor";
+        public static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+        public static final String ACCEPT = "Accept";
+        public static final String VARY = "Vary";
         public static final String CACHE_CONTROL = "Cache-Control";
         public static final String CONNECTION = "Connection";
         public static final String CORS_ORIGIN = "Access-Control-Allow-Origin";
         public static final String CORS_METHODS = "Access-Control-Allow-Methods";
         public static final String CORS_HEADERS = "Access-Control-Allow-Headers";
+        public static final String RETRY_AFTER = "Retry-After";
+        public static final String API_KEY = "X-API-Key";
+        public static final String FORWARDED = "Forwarded";
+        public static final String X_FORWARDED_FOR = "X-Forwarded-For";
     }
     
     // HTTP Methods and Values
     public static final class Http {
         public static final String ALL_ORIGINS = "*";
         public static final String ALLOWED_METHODS = "GET, POST, PUT, DELETE, OPTIONS";
-        public static final String ALLOWED_HEADERS = "Content-Type, Authorization";
+        public static final String ALLOWED_HEADERS = "Content-Type, Authorization, X-API-Key";
         public static final String NO_CACHE = "no-cache";
         public static final String KEEP_ALIVE = "keep-alive";
     }
@@ -55,6 +78,16 @@ public final class AppConstants {
         public static final String STREAM = "/stream";
         public static final String STREAM_EVENTS = "/stream/events";
         public static final String EXPORT_CSV = "/export/csv";
+        public static final String IMPORT_CSV = "/import/csv";
+        public static final String ITEMS_SEARCH = "/items/search";
+        public static final String DISTRIBUTORS_SEARCH = "/distributors/search";
+        public static final String SYNC = "/sync";
+        public static final String CATALOG = "/catalog";
+        public static final String APP = "/app";
+        public static final String CACHE_STATS = "/cache/stats";
+        public static final String INVENTORY_SUMMARY = "/inventory/summary";
+        public static final String SOCKET = "/ws";
+        public static final String SCHEMA = "/schema";
     }
     
     // Database Tables
@@ -73,5 +106,39 @@ public final class AppConstants {
         public static final long CLEANUP_INTERVAL_MS = 30000; // 30 seconds
         public static final long HEARTBEAT_INTERVAL_MS = 15000; // 15 seconds
         public static final int MAX_EVENTS_DISPLAY = 50;
+
+        // Worker pool and concurrency caps - overridable, see ConfigUtils
+        public static final int DEFAULT_MAX_THREADS = 200;
+        public static final int DEFAULT_MIN_THREADS = 8;
+        public static final int DEFAULT_THREAD_IDLE_TIMEOUT_MS = 60000;
+        public static final int DEFAULT_MAX_STREAMS = 20000;
+        public static final int DEFAULT_STREAM_BUFFER_BYTES = 64 * 1024;
+        public static final int DEFAULT_SOCKET_MAX_PENDING_FRAMES = 1024;
+        public static final int DEFAULT_SOCKET_IDLE_TIMEOUT_MS = 300000; // 5 minutes
+        public static final int DEFAULT_MAX_EXPORTS = 8;
+        public static final int BUSY_RETRY_AFTER_SECONDS = 5;
+        public static final int DEFAULT_MIRROR_VERIFY_EVERY = 100;
+        public static final int DEFAULT_WRITE_BATCH_LIMIT = 256;
+        public static final int DEFAULT_LOOKUP_CACHE_ENTRIES = 1024;
+        public static final int DEFAULT_IMPORT_BATCH_ROWS = 5000;
+        public static final int DEFAULT_CHANGE_LOG_RETAIN_ROWS = 100000;
+        public static final int DEFAULT_CLUSTER_POLL_MS = 100;
+        public static final int DEFAULT_HISTORY_PARTITION_MS = 86400000; // 1 day
+        public static final long DEFAULT_HISTORY_RANGE_MS = 30L * 86400000; // 30 days
+        public static final String DEFAULT_FRONTEND_DIR = "frontend/build";
+        public static final int DEFAULT_SEARCH_LIMIT = 10;
+        public static final int MAX_SEARCH_LIMIT = 100;
+
+        // Per-client rate limits (requests per second / burst) - overridable, see ConfigUtils
+        public static final int DEFAULT_READS_PER_SECOND = 100;
+        public static final int DEFAULT_READS_BURST = 200;
+        public static final int DEFAULT_WRITES_PER_SECOND = 20;
+        public static final int DEFAULT_WRITES_BURST = 50;
+        public static final int DEFAULT_EXPORTS_PER_SECOND = 1;
+        public static final int DEFAULT_EXPORTS_BURST = 5;
+        public static final int DEFAULT_STREAMS_PER_SECOND = 1;
+        public static final int DEFAULT_STREAMS_BURST = 10;
+        public static final int DEFAULT_RATE_LIMIT_MAX_CLIENTS = 10000;
+        public static final long DEFAULT_RATE_LIMIT_IDLE_MS = 300000; // 5 minutes
     }
 }
@@ -0,0 +1,60 @@
+package com.topbloc.codechallenge.db;
+
+import java.util.List;
+
+/**
+ * One committed row change, as captured in change_log by the table triggers.
+ */
+public final class ChangeEvent {
+    /** Position in the change log; strictly increasing in commit order */
+    public final long seq;
+    /** Table that changed: items, inventory, distributors or distributor_prices */
+    public final String table;
+    /**
+     * INSERT, UPDATE or DELETE - or RESET, with table "database" and row id 0, when the database was
+     * reset, or ALERT, with table "inventory", when an inventory row changed stock state
+     */
+    public final String op;
+    /** Id of the changed row */
+    public final int rowId;
+    /** The row as a JSON object of its columns - the new values, or the old ones for a DELETE; for an ALERT, the transition */
+    public final String data;
+    /** Commit time in epoch milliseconds */
+    public final long timestamp;
+
+    ChangeEvent(long seq, String table, String op, int rowId, String data, long timestamp) {
+        this.seq = seq;
+        this.table = table;
+        this.op = op;
+        this.rowId = rowId;
+        this.data = data;
+        this.timestamp = timestamp;
+    }
+
+    public boolean isAlert() {
+        return op.equals(DatabaseManager.ALERT_OP);
+    }
+
+    /**
+     * Where the run of row changes to one table that starts at start ends, for grouping a delivery
+     * into bulk summaries. Alerts between the run's row changes belong to it; alerts after them do not.
+     * @param delivered Changes in seq order
+     * @param start Index of a row change, not an alert
+     * @return the index after the run's last row change
+     */
+    public static int runEnd(List<ChangeEvent> delivered, int start) {
+        String table = delivered.get(start).table;
+        int end = start + 1;
+        for (int i = start + 1; i < delivered.size(); i++) {
+            ChangeEvent change = delivered.get(i);
+            if (change.isAlert()) {
+                continue;
+            }
+            if (!change.table.equals(table)) {
+                break;
+            }
+            end = i + 1;
+        }
+        return end;
+    }
+}
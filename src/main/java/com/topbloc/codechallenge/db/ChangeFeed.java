@@ -0,0 +1,182 @@
+package com.topbloc.codechallenge.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Tails change_log and hands new entries to subscribers in commit order.
+ *
+ * The tailer thread reads through its own connection, so it only ever sees committed rows. It
+ * is woken after every commit made by this process and also polls on an interval, which picks
+ * up writes made outside the write queue, such as those from another process. Subscribers receive each batch of new events on the
+ * tailer thread and must not block.
+ */
+final class ChangeFeed {
+    private static final String READ_SQL = "SELECT seq, table_name, op, row_id, data, changed_at "
+            + "FROM change_log WHERE seq > ? ORDER BY seq LIMIT ?";
+
+    private final Supplier<String> url;
+    private volatile long pollIntervalMs;
+    private final int batchSize;
+    private final List<Consumer<List<ChangeEvent>>> subscribers = new CopyOnWriteArrayList<>();
+    private final Semaphore wakeups = new Semaphore(0);
+    private final Object positionLock = new Object();
+    private long position;
+    private volatile boolean reopen;
+    private Thread tailer;
+
+    /**
+     * @param url Supplies the JDBC url of the database to tail, read whenever the tailer connects
+     * @param pollIntervalMs Longest time between reads when nothing wakes the tailer
+     * @param batchSize Maximum events read (and delivered) at once
+     */
+    ChangeFeed(Supplier<String> url, long pollIntervalMs, int batchSize) {
+        this.url = url;
+        this.pollIntervalMs = pollIntervalMs;
+        this.batchSize = batchSize;
+    }
+
+    void subscribe(Consumer<List<ChangeEvent>> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    void setPollInterval(long pollIntervalMs) {
+        this.pollIntervalMs = Math.max(1, pollIntervalMs);
+    }
+
+
+    /**
+     * Follow the database behind conn, starting the tailer on the first call. Called whenever the
+     * database is opened or replaced: the tailer reconnects, and if the log now ends before the
+     * last delivered event (a reset cleared it) it continues from the new end.
+     * On the first call it starts from the end, so history is never replayed.
+     * @param conn Connection used to read the current end of the log
+     */
+    synchronized void follow(Connection conn) {
+        long end = lastSeq(conn);
+        synchronized (positionLock) {
+            if (tailer == null || end < position) {
+                position = end;
+            }
+        }
+        reopen = true;
+        if (tailer == null) {
+            tailer = new Thread(this::run, "change-tailer");
+            tailer.setDaemon(true);
+            tailer.start();
+        }
+    }
+
+    /**
+     * @return the sequence number of the last delivered event
+     */
+    long position() {
+        synchronized (positionLock) {
+            return position;
+        }
+    }
+
+    /**
+     * Ask the tailer to read now instead of at its next poll
+     */
+    void wake() {
+        if (wakeups.availablePermits() == 0) {
+            wakeups.release();
+        }
+    }
+
+    static long lastSeq(Connection conn) {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(seq), 0) FROM change_log")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            // The log does not exist until the schema is created and migrated
+            if (!String.valueOf(e.getMessage()).contains("no such table")) {
+                System.out.println("Could not read change log position: " + e.getMessage());
+            }
+            return 0;
+        }
+    }
+
+    private void run() {
+        Connection reader = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                wakeups.tryAcquire(pollIntervalMs, TimeUnit.MILLISECONDS);
+                wakeups.drainPermits();
+                if (reopen) {
+                    // The database file may have been recreated
+                    reopen = false;
+                    close(reader);
+                    reader = null;
+                }
+                if (reader == null) {
+                    reader = DatabaseManager.openConnection(url.get());
+                }
+                drain(reader);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (SQLException e) {
+                if (!String.valueOf(e.getMessage()).contains("no such table")) {
+                    System.out.println("Change log read failed, reconnecting: " + e.getMessage());
+                }
+                close(reader);
+                reader = null;
+            }
+        }
+        close(reader);
+    }
+
+    // Deliver everything committed since the last read, batch by batch
+    private void drain(Connection reader) throws SQLException {
+        try (PreparedStatement pstmt = reader.prepareStatement(READ_SQL)) {
+            while (true) {
+                List<ChangeEvent> events = new ArrayList<>();
+                synchronized (positionLock) {
+                    pstmt.setLong(1, position);
+                    pstmt.setInt(2, batchSize);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            events.add(new ChangeEvent(rs.getLong(1), rs.getString(2), rs.getString(3),
+                                    rs.getInt(4), rs.getString(5), rs.getLong(6)));
+                        }
+                    }
+                    if (events.isEmpty()) {
+                        return;
+                    }
+                    position = events.get(events.size() - 1).seq;
+                }
+                for (Consumer<List<ChangeEvent>> subscriber : subscribers) {
+                    try {
+                        subscriber.accept(events);
+                    } catch (RuntimeException e) {
+                        System.out.println("Change subscriber failed: " + e.getMessage());
+                    }
+                }
+                if (events.size() < batchSize) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -2,12 +2,35 @@ package com.topbloc.codechallenge.db;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import com.topbloc.codechallenge.utils.CborWriter;
+import com.topbloc.codechallenge.utils.CsvReader;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -16,12 +39,145 @@ public class DatabaseManager {
     private static final String dbName = "challenge.db";
     private static String connectionString;
     private static Connection conn;
+
+    // Bumped after every committed change so read results can be tied to the data they were computed from
+    private static final AtomicLong dataVersion = new AtomicLong();
+
+    // All mutations run on one writer thread and are committed in batches
+    private static final int DEFAULT_WRITE_BATCH_LIMIT = 256;
+    private static final WriteQueue writeQueue = new WriteQueue(() -> conn, new WriteHooks(), DEFAULT_WRITE_BATCH_LIMIT);
+
+    // Committed row changes are captured by triggers into change_log and read back by one tailer thread
+    private static final int CHANGE_FEED_POLL_MS = 500;
+    private static final int CHANGE_FEED_BATCH = 512;
+    private static final ChangeFeed changeFeed = new ChangeFeed(() -> connectionString, CHANGE_FEED_POLL_MS, CHANGE_FEED_BATCH);
+    // A run of more changes than this to one table in a single delivery reaches streaming clients as one BULK event
+    public static final int BULK_EVENT_THRESHOLD = 50;
+    // Change log operation recorded when the database is reset
+    public static final String RESET_OP = "RESET";
+    // Change log operation recorded when an inventory row moves to another stock state
+    public static final String ALERT_OP = "ALERT";
+    static {
+        changeFeed.subscribe(DatabaseManager::publishChanges);
+    }
+
+    // Cluster mode - several processes share challenge.db, see enableClusterMode()
+    private static volatile boolean clusterMode;
+    // Change log ranges committed by this process (start exclusive, end inclusive), oldest first
+    private static final Deque<long[]> localChangeRanges = new ConcurrentLinkedDeque<>();
+    private static long batchStartSeq;
+    private static long[] committingRange;
+
+    // In-memory name indexes behind the search endpoints
+    private static final NameSearchIndex itemSearch = new NameSearchIndex();
+    private static final NameSearchIndex distributorSearch = new NameSearchIndex();
+
+    // Encoded results of the two catalog lookups by id, kept current by the price, item and
+    // distributor mutations
+    private static final int DEFAULT_LOOKUP_CACHE_ENTRIES = 1024;
+    private static final LookupCache itemsByDistributor = new LookupCache(DEFAULT_LOOKUP_CACHE_ENTRIES);
+    private static final LookupCache distributorsByItem = new LookupCache(DEFAULT_LOOKUP_CACHE_ENTRIES);
+
+    // Window of the consumption rate average: consumption this many days ago weighs 1/e as much as today's
+    public static final double CONSUMPTION_WINDOW_DAYS = 7.0;
+    // Fraction of capacity below which stock is low, for rows without a threshold of their own
+    public static final double DEFAULT_LOW_STOCK_THRESHOLD = 0.35;
+    private static final double DAY_MS = 86400000.0;
+    // The stored rate decayed over the days since the last stock change, which consumed nothing
+    private static final String CURRENT_RATE_SQL = "(inv.consumption_rate * exp((COALESCE(inv.rate_updated_at, "
+            + SchemaMigrations.NOW_MS_SQL + ") - " + SchemaMigrations.NOW_MS_SQL + ") / " + (CONSUMPTION_WINDOW_DAYS * DAY_MS) + "))";
+    // Columns of an inventory row as the routes return it: units consumed per day, and the days
+    // the current stock lasts at that rate (null when nothing is being consumed)
+    static final String INVENTORY_COLUMNS = "SELECT i.id, i.name, inv.stock, inv.capacity, inv.low_threshold, "
+            + "ROUND(" + CURRENT_RATE_SQL + ", 3) AS consumption_rate, "
+            + "CASE WHEN " + CURRENT_RATE_SQL + " > 0.0005 THEN ROUND(inv.stock / " + CURRENT_RATE_SQL + ", 1) END AS days_of_cover ";
+
+    // Hot lookup queries - shared with SchemaMigrations so their query plans can be verified
+    static final String ALL_ITEMS_SQL = "SELECT * FROM items";
+    static final String ALL_INVENTORY_SQL = INVENTORY_COLUMNS +
+            "FROM items i " +
+            "JOIN inventory inv ON i.id = inv.item " +
+            "ORDER BY i.id";
+    static final String OUT_OF_STOCK_SQL = INVENTORY_COLUMNS +
+                "FROM items i " +
+                "JOIN inventory inv ON i.id = inv.item " +
+                "WHERE inv.stock = 0 " +
+                "ORDER BY i.id";
+    static final String OVERSTOCKED_SQL = INVENTORY_COLUMNS +
+            "FROM items i " +
+            "JOIN inventory inv ON i.id = inv.item " +
+            "WHERE inv.stock > inv.capacity " +
+            "ORDER BY i.id";
+    static final String LOW_STOCK_SQL = INVENTORY_COLUMNS +
+            "FROM items i " +
+            "JOIN inventory inv ON i.id = inv.item " +
+            "WHERE inv.stock > 0 AND inv.stock < (inv.capacity * inv.low_threshold) " +
+            "ORDER BY i.id";
+    static final String ALL_DISTRIBUTORS_SQL = "SELECT id, name FROM distributors ORDER BY id";
+    static final String ITEMS_BY_DISTRIBUTOR_SQL = "SELECT i.id, i.name, dp.cost " +
+                "FROM items i " +
+                "JOIN distributor_prices dp ON i.id = dp.item " +
+                "WHERE dp.distributor = ? " +
+                "ORDER BY i.id";
+    static final String DISTRIBUTORS_BY_ITEM_SQL = "SELECT d.id, d.name, dp.cost " +
+                "FROM distributors d " +
+                "JOIN distributor_prices dp ON d.id = dp.distributor " +
+                "WHERE dp.item = ? " +
+                "ORDER BY dp.cost ASC";
+    static final String CHEAPEST_RESTOCK_SQL = "SELECT d.id, d.name, dp.cost, (dp.cost * ?) as total_cost " +
+                "FROM distributors d " +
+                "JOIN distributor_prices dp ON d.id = dp.distributor " +
+                "WHERE dp.item = ? " +
+                "ORDER BY dp.cost ASC " +
+                "LIMIT 1";
+
+    // Prices in effect at a time: the interval index narrows the versions, the exact bounds filter them
+    static final String PRICES_AS_OF_SQL = "SELECT h.distributor, d.name AS distributor_name, h.item, i.name AS item_name, " +
+                "h.cost, h.valid_from, h.valid_to " +
+                "FROM price_history_intervals r " +
+                "JOIN price_history h ON h.id = r.id " +
+                "LEFT JOIN distributors d ON d.id = h.distributor " +
+                "LEFT JOIN items i ON i.id = h.item " +
+                "WHERE r.valid_from <= ? AND r.valid_to >= ? " +
+                "AND h.valid_from <= ? AND (h.valid_to IS NULL OR h.valid_to > ?) ";
+    static final String PRICE_TREND_SQL = "SELECT h.distributor, d.name, h.cost, h.valid_from, h.valid_to " +
+                "FROM price_history h " +
+                "LEFT JOIN distributors d ON d.id = h.distributor " +
+                "WHERE h.item = ? AND h.valid_from <= ? AND (h.valid_to IS NULL OR h.valid_to > ?) " +
+                "ORDER BY h.distributor, h.valid_from";
+
+    /**
+     * The list queries, for the routes that can serve them in more than one encoding.
+     * A query marked parameterized takes one integer id.
+     */
+    public enum ListQuery {
+        ITEMS(ALL_ITEMS_SQL, false),
+        INVENTORY(ALL_INVENTORY_SQL, false),
+        OUT_OF_STOCK(OUT_OF_STOCK_SQL, false),
+        OVERSTOCKED(OVERSTOCKED_SQL, false),
+        LOW_STOCK(LOW_STOCK_SQL, false),
+        DISTRIBUTORS(ALL_DISTRIBUTORS_SQL, false),
+        ITEMS_BY_DISTRIBUTOR(ITEMS_BY_DISTRIBUTOR_SQL, true),
+        DISTRIBUTORS_BY_ITEM(DISTRIBUTORS_BY_ITEM_SQL, true);
+
+        final String sql;
+        final boolean parameterized;
+
+        ListQuery(String sql, boolean parameterized) {
+            this.sql = sql;
+            this.parameterized = parameterized;
+        }
+    }
+
+    // Rows written between flushes of an NDJSON response
+    private static final int NDJSON_FLUSH_ROWS = 256;
     
     // Streaming infrastructure
     private static final List<StreamingClient> streamingClients = new CopyOnWriteArrayList<>();
     
     public static class StreamingClient {
         public final String id;
+        // Completed when the client is removed from the pool
         public final CompletableFuture<Void> future;
         public final java.util.function.Consumer<String> sender;
         public final long createdAt;
@@ -53,28 +209,478 @@ public class DatabaseManager {
 
     public static void connect() {
         try {
-            Connection connection = DriverManager.getConnection(connectionString);
+            Connection connection = openConnection(connectionString);
             System.out.println("Connection to SQLite has been established.");
             conn = connection;
+            // Readers have connections of their own; in WAL mode they never wait for the writer, or
+            // it for them, and each keeps seeing the last commit while a write batch is open
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode = WAL");
+            }
+            SchemaMigrations.migrate(conn);
+            onDatabaseReplaced();
         } catch (SQLException e) {
             System.out.println(e.getMessage());
         }
     }
-    // Schema function to reset the database if needed - do not change
+
+    /**
+     * Run as one of several processes sharing challenge.db. The database is in WAL mode, so readers
+     * in one process do not block writers in another. Every instance already streams all
+     * committed changes from the shared change log; in cluster mode it also resyncs its own derived
+     * state (search indexes, read mirror, data version) for rows changed by other instances, and
+     * rebuilds it when another instance resets the database. Must be called before connect().
+     * @param pollIntervalMs Longest delay before a change made by another instance is seen
+     */
+    public static void enableClusterMode(int pollIntervalMs) {
+        clusterMode = true;
+        changeFeed.setPollInterval(pollIntervalMs);
+        changeFeed.subscribe(DatabaseManager::syncPeerChanges);
+    }
+
+    /**
+     * Open a connection with foreign key enforcement on. SQLite leaves it off per connection by
+     * default; the insert paths rely on it to reject rows that reference a missing parent, and
+     * it makes the ON DELETE CASCADE clauses in the schema take effect.
+     * @param url JDBC url of the database
+     * @return the open connection
+     */
+    static Connection openConnection(String url) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA foreign_keys = ON");
+        }
+        return connection;
+    }
+
+    // Reset snapshot - captured after the first full reset and restored in place on later resets
+    private static File resetTemplate;
+    private static String resetTemplateFingerprint;
+
     public static void resetDatabase() {
-        try {
-            conn.close();
+        // Runs on the writer thread on its own, so no write batch can be using the connection it replaces
+        writeQueue.submitExclusive(() -> {
+            doResetDatabase();
+            return null;
+        });
+    }
+
+    // Put the database back to its seeded state. After the first full rebuild (schema, seed data and
+    // migrations) the result is kept as a template file, and later resets restore it in place with
+    // SQLite's backup API; the rebuild runs again if the template is missing or does not apply.
+    private static synchronized void doResetDatabase() {
+        long carriedSeq = ChangeFeed.lastSeq(conn);
+        if (resetTemplate != null && restoreFromTemplate()) {
+            onDatabaseReplaced();
+            markReset(carriedSeq);
+            return;
+        }
+        // Read connections, and in cluster mode other instances, have the file open, so it is rebuilt
+        // in place rather than replaced
+        dropTables();
+        applySchema();
+        seedDatabase();
+        SchemaMigrations.migrate(conn);
+        captureResetTemplate();
+        onDatabaseReplaced();
+        markReset(carriedSeq);
+    }
+
+    // Continue the change log sequence across a reset and record the reset in it, so that sync
+    // clients and other instances holding an older version learn their copy is gone
+    private static void markReset(long carriedSeq) {
+        long seq = Math.max(carriedSeq, ChangeFeed.lastSeq(conn)) + 1;
+        if (clusterMode) {
+            localChangeRanges.add(new long[]{seq - 1, seq});
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "INSERT INTO change_log (seq, table_name, op, row_id, data) VALUES (?, 'database', ?, 0, '{}')")) {
+            pstmt.setLong(1, seq);
+            pstmt.setString(2, RESET_OP);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.out.println("Could not record reset in change log: " + e.getMessage());
+        }
+        changeFeed.wake();
+    }
+
+    // Rebuild everything derived from the database after its contents were replaced wholesale
+    private static void onDatabaseReplaced() {
+        ReadMirror.rebuild(databasePath());
+        rebuildSearchIndexes();
+        clearLookupCaches();
+        localChangeRanges.clear();
+        closeSnapshotConnections();
+        changeFeed.follow(conn);
+        dataVersion.incrementAndGet();
+    }
+
+    // Runs on the writer thread around every write batch
+    private static final class WriteHooks implements WriteQueue.BatchListener {
+        @Override
+        public void begun(Connection connection) {
+            if (clusterMode) {
+                batchStartSeq = ChangeFeed.lastSeq(connection);
+            }
+        }
+
+        @Override
+        public void committing(Connection connection) {
+            // Recorded before the commit makes the entries visible, so the tailer always knows them as ours
+            if (clusterMode) {
+                long end = ChangeFeed.lastSeq(connection);
+                if (end > batchStartSeq) {
+                    committingRange = new long[]{batchStartSeq, end};
+                    localChangeRanges.add(committingRange);
+                }
+            }
+        }
+
+        @Override
+        public void applying() {
+            ReadMirror.beginReplay();
+        }
+
+        @Override
+        public void committed() {
+            committingRange = null;
+            try {
+                ReadMirror.verifyIfDue(conn, databasePath());
+            } finally {
+                ReadMirror.endReplay();
+            }
+            dataVersion.incrementAndGet();
+            changeFeed.wake();
+        }
+
+        @Override
+        public void rolledBack() {
+            if (committingRange != null) {
+                localChangeRanges.removeLastOccurrence(committingRange);
+                committingRange = null;
+            }
+            onDatabaseReplaced();
+        }
+    }
+
+    // Drop everything so the file can be rebuilt in place. That includes the tables the migrations
+    // own (history, running totals and the rest), which would otherwise keep their rows when the
+    // migrations run again. Virtual tables go first, taking their shadow tables with them; foreign
+    // keys are off meanwhile so the drops need no particular order.
+    private static void dropTables() {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA foreign_keys = OFF");
+            try {
+                for (String table : userTables("sql LIKE 'CREATE VIRTUAL TABLE%'")) {
+                    stmt.execute("DROP TABLE IF EXISTS \"" + table + "\"");
+                }
+                for (String table : userTables("1")) {
+                    stmt.execute("DROP TABLE IF EXISTS \"" + table + "\"");
+                }
+            } finally {
+                stmt.execute("PRAGMA foreign_keys = ON");
+            }
         } catch (SQLException e) {
             System.out.println(e.getMessage());
         }
-        File dbFile = new File(dbName);
-        if (dbFile.exists()) {
-            dbFile.delete();
+    }
+
+    private static List<String> userTables(String condition) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' "
+                     + "AND name NOT LIKE 'sqlite\\_%' ESCAPE '\\' AND " + condition)) {
+            while (rs.next()) {
+                tables.add(rs.getString(1));
+            }
+        }
+        return tables;
+    }
+
+    // Cluster mode: another instance reset the database
+    private static void onResetByPeer() {
+        writeQueue.submitExclusive(() -> {
+            System.out.println("Database was reset by another instance, resyncing");
+            onDatabaseReplaced();
+            return null;
+        });
+    }
+
+    // Cluster mode: bring derived state up to date with rows other instances changed. The rows are
+    // re-read on the writer thread, so they are applied in order with this process's own writes.
+    private static void syncPeerChanges(List<ChangeEvent> changes) {
+        Map<String, ChangeEvent> rows = new LinkedHashMap<>();
+        for (ChangeEvent change : changes) {
+            if (isLocalChange(change.seq)) {
+                continue;
+            }
+            if (change.op.equals(RESET_OP)) {
+                // The rebuild reads every row, including those changed later in this delivery
+                onResetByPeer();
+                return;
+            }
+            if (change.op.equals(ALERT_OP)) {
+                // Comes with the row change that caused it
+                continue;
+            }
+            rows.putIfAbsent(change.table + ":" + change.rowId, change);
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        writeQueue.submit(() -> {
+            boolean catalogChanged = false;
+            for (ChangeEvent change : rows.values()) {
+                resyncRow(change.table, change.rowId);
+                catalogChanged |= !change.table.equals("inventory");
+            }
+            // A peer's change event does not say which catalogs a row was in before it changed
+            if (catalogChanged) {
+                clearLookupCaches();
+            }
+            return null;
+        });
+    }
+
+    private static boolean isLocalChange(long seq) {
+        long[] range;
+        while ((range = localChangeRanges.peek()) != null && range[1] < seq) {
+            localChangeRanges.poll();
+        }
+        return range != null && seq > range[0];
+    }
+
+    // Copy one row's current state from the file into the read mirror and search index
+    private static void resyncRow(String table, int id) {
+        NameSearchIndex index = table.equals("items") ? itemSearch : table.equals("distributors") ? distributorSearch : null;
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT * FROM " + table + " WHERE id = ?")) {
+            pstmt.setInt(1, id);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    mirrorWrite("DELETE FROM " + table + " WHERE id = ?", id);
+                    if (index != null) {
+                        unindexName(index, id);
+                    }
+                    return;
+                }
+                List<String> columns = columnNames(rs);
+                Object[] values = new Object[columns.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = rs.getObject(i + 1);
+                }
+                // An upsert rather than INSERT OR REPLACE, whose delete would cascade to child rows
+                mirrorWrite("INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES ("
+                        + String.join(", ", Collections.nCopies(columns.size(), "?")) + ") ON CONFLICT(id) DO UPDATE SET "
+                        + columns.stream().map(column -> column + " = excluded." + column).collect(Collectors.joining(", ")),
+                        values);
+                if (index != null) {
+                    indexName(index, id, rs.getString("name"));
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Could not resync " + table + " row " + id + ": " + e.getMessage());
+        }
+    }
+
+    private static void rebuildSearchIndexes() {
+        itemSearch.clear();
+        distributorSearch.clear();
+        try {
+            ResultSet items = conn.createStatement().executeQuery("SELECT id, name FROM items");
+            while (items.next()) {
+                itemSearch.put(items.getInt("id"), items.getString("name"));
+            }
+            ResultSet distributors = conn.createStatement().executeQuery("SELECT id, name FROM distributors");
+            while (distributors.next()) {
+                distributorSearch.put(distributors.getInt("id"), distributors.getString("name"));
+            }
+        } catch (SQLException e) {
+            System.out.println("Could not build search indexes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a counter that increases after every committed change to the database
+     */
+    public static long getDataVersion() {
+        return dataVersion.get();
+    }
+
+    /**
+     * Serve read queries from an in-memory copy of the database, kept in step with every mutation.
+     * Must be called before connect().
+     * @param verifyEveryWrites Number of mirrored writes between consistency checks against the file
+     */
+    public static void enableReadMirror(int verifyEveryWrites) {
+        ReadMirror.enable(verifyEveryWrites);
+    }
+
+    /**
+     * Set how many queued mutations may be committed together in one transaction
+     * @param maxOperations Maximum batch size
+     */
+    public static void setWriteBatchLimit(int maxOperations) {
+        writeQueue.setMaxBatch(maxOperations);
+    }
+
+    /**
+     * Set how many results each catalog lookup cache keeps (see getItemsByDistributor)
+     * @param maxEntries Entries per cache; 0 disables caching
+     */
+    public static void setLookupCacheSize(int maxEntries) {
+        itemsByDistributor.resize(maxEntries);
+        distributorsByItem.resize(maxEntries);
+    }
+
+    /**
+     * @return size, hit, miss, eviction and invalidation counts of the catalog lookup caches
+     */
+    @SuppressWarnings("unchecked")
+    public static JSONObject getLookupCacheStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("itemsByDistributor", itemsByDistributor.stats());
+        stats.put("distributorsByItem", distributorsByItem.stats());
+        return stats;
+    }
+
+    private static void clearLookupCaches() {
+        itemsByDistributor.clear();
+        distributorsByItem.clear();
+    }
+
+    // Invalidations run once the write commits, so a reader can never cache the state before it
+    private static void invalidatePriceLookups(int distributorId, int itemId) {
+        writeQueue.afterCommit(() -> {
+            itemsByDistributor.invalidate(distributorId);
+            distributorsByItem.invalidate(itemId);
+        });
+    }
+
+    // An item's name is in the catalog of every distributor that sells it, and the other way round
+    private static void invalidateItemLookups(int itemId, List<Integer> distributorIds) {
+        writeQueue.afterCommit(() -> {
+            distributorsByItem.invalidate(itemId);
+            for (int distributorId : distributorIds) {
+                itemsByDistributor.invalidate(distributorId);
+            }
+        });
+    }
+
+    private static void invalidateDistributorLookups(int distributorId, List<Integer> itemIds) {
+        writeQueue.afterCommit(() -> {
+            itemsByDistributor.invalidate(distributorId);
+            for (int itemId : itemIds) {
+                distributorsByItem.invalidate(itemId);
+            }
+        });
+    }
+
+    // Ids on the other side of the price rows of one distributor or item, e.g. the distributors selling an item
+    private static List<Integer> pricedCounterparts(String column, String byColumn, int id) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "SELECT " + column + " FROM distributor_prices WHERE " + byColumn + " = ?")) {
+            pstmt.setInt(1, id);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getInt(1));
+                }
+            }
+        }
+        return ids;
+    }
+
+    // Run a read-only query on the in-memory mirror when enabled, otherwise on a pooled read
+    // connection of the file (see readCommitted). Either way it sees only committed writes, and
+    // each batch in full or not at all.
+    private static <T> T read(CommittedRead<T> read) throws SQLException {
+        if (ReadMirror.isEnabled()) {
+            Lock lock = ReadMirror.readLock();
+            lock.lock();
+            try {
+                Connection mirror = ReadMirror.connection();
+                if (mirror != null) {
+                    return read.read(mirror);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return readCommitted(read);
+    }
+
+    private static JSONArray queryJson(String sql) throws SQLException {
+        return read(connection -> {
+            try (Statement stmt = connection.createStatement()) {
+                return convertResultSetToJson(stmt.executeQuery(sql));
+            }
+        });
+    }
+
+    // Replayed once the write has committed, so mirror reads never see it early; dropped with the
+    // operation if its savepoint is rolled back
+    private static void mirrorWrite(String sql, Object... params) {
+        String dbPath = databasePath();
+        writeQueue.afterCommit(() -> ReadMirror.write(dbPath, sql, params));
+    }
+
+    // Search index changes wait for the commit in the same way
+    private static void indexName(NameSearchIndex index, int id, String name) {
+        writeQueue.afterCommit(() -> index.put(id, name));
+    }
+
+    private static void unindexName(NameSearchIndex index, int id) {
+        writeQueue.afterCommit(() -> index.remove(id));
+    }
+
+    private static String databasePath() {
+        return connectionString.substring(jdbcPrefix.length());
+    }
+
+    private static void captureResetTemplate() {
+        try {
+            File template = File.createTempFile("challenge-reset-", ".db");
+            template.deleteOnExit();
+            conn.createStatement().executeUpdate("backup to '" + template.getAbsolutePath() + "'");
+            resetTemplateFingerprint = databaseFingerprint(conn);
+            resetTemplate = template;
+            System.out.println("Captured reset template: " + template.getAbsolutePath());
+        } catch (IOException | SQLException e) {
+            System.out.println("Could not capture reset template: " + e.getMessage());
+            resetTemplate = null;
+        }
+    }
+
+    // Restores the template into a fresh connection. The old connection is swapped out and closed
+    // first because a leaked, partially-read statement on it would make the restore a silent no-op.
+    private static boolean restoreFromTemplate() {
+        Connection previous = conn;
+        try {
+            Connection fresh = openConnection(connectionString);
+            conn = fresh;
+            previous.close();
+            fresh.createStatement().executeUpdate("restore from '" + resetTemplate.getAbsolutePath() + "'");
+            if (!resetTemplateFingerprint.equals(databaseFingerprint(fresh))) {
+                System.out.println("Reset template restore did not apply, falling back to full reset");
+                return false;
+            }
+            System.out.println("Database restored from reset template");
+            return true;
+        } catch (SQLException e) {
+            System.out.println("Reset template restore failed, falling back to full reset: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Cheap content summary used to check that two copies of the database hold the same rows
+    static String databaseFingerprint(Connection connection) throws SQLException {
+        String sql = "SELECT (SELECT COUNT(*) || ':' || IFNULL(SUM(id), 0) || ':' || IFNULL(SUM(id * LENGTH(name)), 0) FROM items) || '/' || "
+                + "(SELECT COUNT(*) || ':' || IFNULL(SUM(item * stock), 0) || ':' || IFNULL(SUM(item * capacity), 0) FROM inventory) || '/' || "
+                + "(SELECT COUNT(*) || ':' || IFNULL(SUM(id), 0) || ':' || IFNULL(SUM(id * LENGTH(name)), 0) FROM distributors) || '/' || "
+                + "(SELECT COUNT(*) || ':' || IFNULL(SUM(distributor * item), 0) || ':' || IFNULL(SUM(item * cost), 0) FROM distributor_prices)";
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getString(1) : "";
         }
-        connectionString = jdbcPrefix + dbFile.getAbsolutePath();
-        connect();
-        applySchema();
-        seedDatabase();
     }
 
     // Schema function to reset the database if needed - do not change
@@ -143,9 +749,19 @@ public class DatabaseManager {
     // Helper methods to convert ResultSet to JSON - change if desired, but should not be required
     @SuppressWarnings("unchecked")
     private static JSONArray convertResultSetToJson(ResultSet rs) throws SQLException{
+        List<String> colNames = columnNames(rs);
+
+        JSONArray jsonArray = new JSONArray();
+        while (rs.next()) {
+            jsonArray.add(convertRowToJson(rs, colNames));
+        }
+        return jsonArray;
+    }
+
+    private static List<String> columnNames(ResultSet rs) throws SQLException {
         ResultSetMetaData md = rs.getMetaData();
         int columns = md.getColumnCount();
-        List<String> colNames = IntStream.range(0, columns)
+        return IntStream.range(0, columns)
                 .mapToObj(i -> {
                     try {
                         return md.getColumnName(i + 1);
@@ -155,12 +771,6 @@ public class DatabaseManager {
                     return null;
                 })
                 .collect(Collectors.toList());
-
-        JSONArray jsonArray = new JSONArray();
-        while (rs.next()) {
-            jsonArray.add(convertRowToJson(rs, colNames));
-        }
-        return jsonArray;
     }
 
     @SuppressWarnings("unchecked")
@@ -172,12 +782,105 @@ public class DatabaseManager {
         return obj;
     }
 
+    /**
+     * Encode a result set as CBOR: a map holding "columns" (the column names, once) and "rows"
+     * (one array of values per row, in column order). Values are written straight from the
+     * result set, so numbers stay binary instead of going through decimal text.
+     * @param rs Result set to encode
+     * @return CBOR bytes
+     */
+    private static byte[] convertResultSetToCbor(ResultSet rs) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        int columns = md.getColumnCount();
+        CborWriter cbor = new CborWriter(1024);
+        cbor.startMap(2).writeString("columns").startArray(columns);
+        for (String name : columnNames(rs)) {
+            cbor.writeString(name);
+        }
+        cbor.writeString("rows").startIndefiniteArray();
+        while (rs.next()) {
+            cbor.startArray(columns);
+            for (int i = 1; i <= columns; i++) {
+                cbor.writeValue(rs.getObject(i));
+            }
+        }
+        return cbor.end().toByteArray();
+    }
+
+    /**
+     * Run a list query and encode it as CBOR (see convertResultSetToCbor). A failed query
+     * encodes as an empty result, like the JSON versions.
+     * @param query List query to run
+     * @param id Id for a parameterized query, ignored otherwise
+     * @return CBOR bytes
+     */
+    public static byte[] queryCbor(ListQuery query, int id) {
+        try {
+            return read(connection -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(query.sql)) {
+                    if (query.parameterized) {
+                        pstmt.setInt(1, id);
+                    }
+                    return convertResultSetToCbor(pstmt.executeQuery());
+                }
+            });
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+            return new CborWriter(16).startMap(2)
+                    .writeString("columns").startArray(0)
+                    .writeString("rows").startArray(0)
+                    .toByteArray();
+        }
+    }
+
+    /**
+     * Run a list query and write it as NDJSON, one JSON object per line, as rows come off the
+     * cursor. The writer is flushed every NDJSON_FLUSH_ROWS rows, so the client can start on
+     * the first rows while the rest are read and memory use does not grow with the result.
+     * A query failure is written as a final {"error": ...} line.
+     * @param query List query to run
+     * @param id Id for a parameterized query, ignored otherwise
+     * @param out Destination, flushed before returning
+     * @return Number of rows written
+     * @throws IOException if the client goes away
+     */
+    public static int streamNdjson(ListQuery query, int id, Writer out) throws IOException {
+        int[] rows = {0};
+        try {
+            read(connection -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(query.sql)) {
+                    if (query.parameterized) {
+                        pstmt.setInt(1, id);
+                    }
+                    ResultSet rs = pstmt.executeQuery();
+                    List<String> colNames = columnNames(rs);
+                    while (rs.next()) {
+                        out.write(convertRowToJson(rs, colNames).toJSONString());
+                        out.write('\n');
+                        if (++rows[0] % NDJSON_FLUSH_ROWS == 0) {
+                            out.flush();
+                        }
+                    }
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+            out.write("{\"error\": \"Database error: " + String.valueOf(e.getMessage()).replace("\"", "'") + "\"}\n");
+        }
+        out.flush();
+        return rows[0];
+    }
+
     // Controller functions - add your routes here. getItems is provided as an example
     public static JSONArray getItems() {
-        String sql = "SELECT * FROM items";
+        String sql = ALL_ITEMS_SQL;
         try {
-            ResultSet set = conn.createStatement().executeQuery(sql);
-            return convertResultSetToJson(set);
+            return queryJson(sql);
         } catch (SQLException e) {
             System.out.println(e.getMessage());
             return null;
@@ -186,13 +889,9 @@ public class DatabaseManager {
 
     // ================ INVENTORY GET METHODS ================
     public static JSONArray getAllInventory() {
-        String sql = "SELECT i.id, i.name, inv.stock, inv.capacity " +
-                    "FROM items i " +
-                    "JOIN inventory inv ON i.id = inv.item " +
-                    "ORDER BY i.id";
+        String sql = ALL_INVENTORY_SQL;
         try {
-            ResultSet set = conn.createStatement().executeQuery(sql);
-            return convertResultSetToJson(set);
+            return queryJson(sql);
         } catch (SQLException e) {
             System.out.println(e.getMessage());
             return new JSONArray();
@@ -200,14 +899,9 @@ public class DatabaseManager {
     }
 
     public static JSONArray getOutOfStockItems() {
-        String sql = "SELECT i.id, i.name, inv.stock, inv.capacity " +
-                    "FROM items i " +
-                    "JOIN inventory inv ON i.id = inv.item " +
-                    "WHERE inv.stock = 0 " +
-                    "ORDER BY i.id";
+        String sql = OUT_OF_STOCK_SQL;
         try {
-            ResultSet set = conn.createStatement().executeQuery(sql);
-            return convertResultSetToJson(set);
+            return queryJson(sql);
         } catch (SQLException e) {
             System.out.println(e.getMessage());
             return new JSONArray();
@@ -215,14 +909,9 @@ public class DatabaseManager {
     }
 
     public static JSONArray getOverstockedItems() {
-        String sql = "SELECT i.id, i.name, inv.stock, inv.capacity " +
-                    "FROM items i " +
-                    "JOIN inventory inv ON i.id = inv.item " +
-                    "WHERE inv.stock > inv.capacity " +
-                    "ORDER BY i.id";
+        String sql = OVERSTOCKED_SQL;
         try {
-            ResultSet set = conn.createStatement().executeQuery(sql);
-            return convertResultSetToJson(set);
+            return queryJson(sql);
         } catch (SQLException e) {
             System.out.println(e.getMessage());
             return new JSONArray();
@@ -230,14 +919,9 @@ public class DatabaseManager {
     }
 
     public static JSONArray getLowStockItems() {
-        String sql = "SELECT i.id, i.name, inv.stock, inv.capacity " +
-                    "FROM items i " +
-                    "JOIN inventory inv ON i.id = inv.item " +
-                    "WHERE inv.stock > 0 AND inv.stock < (inv.capacity * 0.35) " +
-                    "ORDER BY i.id";
+        String sql = LOW_STOCK_SQL;
         try {
-            ResultSet set = conn.createStatement().executeQuery(sql);
-            return convertResultSetToJson(set);
+            return queryJson(sql);
         } catch (SQLException e) {
             System.out.println(e.getMessage());
             return new JSONArray();
@@ -245,15 +929,17 @@ public class DatabaseManager {
     }
 
     public static JSONArray getInventoryItemById(int itemId) {
-        String sql = "SELECT i.id, i.name, inv.stock, inv.capacity " +
+        String sql = INVENTORY_COLUMNS +
                     "FROM items i " +
                     "JOIN inventory inv ON i.id = inv.item " +
                     "WHERE i.id = ?";
         try {
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, itemId);
-            ResultSet set = pstmt.executeQuery();
-            return convertResultSetToJson(set);
+            return read(connection -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setInt(1, itemId);
+                    return convertResultSetToJson(pstmt.executeQuery());
+                }
+            });
         } catch (SQLException e) {
             System.out.println(e.getMessage());
             return new JSONArray();
@@ -262,78 +948,69 @@ public class DatabaseManager {
 
     // ================ DISTRIBUTOR GET METHODS ================
     public static JSONArray getAllDistributors() {
-        String sql = "SELECT id, name FROM distributors ORDER BY id";
+        String sql = ALL_DISTRIBUTORS_SQL;
         try {
-            ResultSet set = conn.createStatement().executeQuery(sql);
-            return convertResultSetToJson(set);
+            return queryJson(sql);
         } catch (SQLException e) {
             System.out.println(e.getMessage());
             return new JSONArray();
         }
     }
 
-    public static JSONArray getItemsByDistributor(int distributorId) {
-        String sql = "SELECT i.id, i.name, dp.cost " +
-                    "FROM items i " +
-                    "JOIN distributor_prices dp ON i.id = dp.item " +
-                    "WHERE dp.distributor = ? " +
-                    "ORDER BY i.id";
-        try {
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, distributorId);
-            ResultSet set = pstmt.executeQuery();
-            return convertResultSetToJson(set);
-        } catch (SQLException e) {
-            System.out.println(e.getMessage());
-            return new JSONArray();
-        }
+    /**
+     * A distributor's catalog as a JSON array, served from the lookup cache when it holds it
+     */
+    public static String getItemsByDistributor(int distributorId) {
+        return cachedLookup(itemsByDistributor, ITEMS_BY_DISTRIBUTOR_SQL, distributorId);
     }
 
-    public static JSONArray getDistributorsByItem(int itemId) {
-        String sql = "SELECT d.id, d.name, dp.cost " +
-                    "FROM distributors d " +
-                    "JOIN distributor_prices dp ON d.id = dp.distributor " +
-                    "WHERE dp.item = ? " +
-                    "ORDER BY dp.cost ASC";
+    /**
+     * An item's offers from every distributor as a JSON array, served from the lookup cache when it holds it
+     */
+    public static String getDistributorsByItem(int itemId) {
+        return cachedLookup(distributorsByItem, DISTRIBUTORS_BY_ITEM_SQL, itemId);
+    }
+
+    private static String cachedLookup(LookupCache cache, String sql, int id) {
+        String cached = cache.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        // Only committed rows may be cached: a batch that rolls back drops the invalidations it queued,
+        // so a result built from its rows would stay cached until evicted
+        long stamp = cache.stamp(id);
         try {
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, itemId);
-            ResultSet set = pstmt.executeQuery();
-            return convertResultSetToJson(set);
+            String result = readCommitted(connection -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setInt(1, id);
+                    return convertResultSetToJson(pstmt.executeQuery()).toJSONString();
+                }
+            });
+            cache.put(id, result, stamp);
+            return result;
         } catch (SQLException e) {
             System.out.println(e.getMessage());
-            return new JSONArray();
+            return "[]";
         }
     }
 
     // ================ POST METHODS ================
     public static String addItem(String name) {
-        String sql = "INSERT INTO items (name) VALUES (?)";
-        try {
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+        return writeQueue.submit(() -> doAddItem(name));
+    }
+
+    private static String doAddItem(String name) {
+        String sql = "INSERT INTO items (name) VALUES (?) RETURNING id";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, name);
-            int rowsAffected = pstmt.executeUpdate();
-            
-            if (rowsAffected > 0) {
-                // For SQLite, we can use a simpler approach to get the last ID
-                try {
-                    Statement stmt = conn.createStatement();
-                    ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()");
-                    if (rs.next()) {
-                        int id = rs.getInt(1);
-                        String result = "{\"success\": true, \"message\": \"Item added successfully\", \"id\": " + id + "}";
-                        
-                        // Broadcast the update
-                        broadcastUpdate("INSERT", "items", 
-                            "{\"id\": " + id + ", \"name\": \"" + name.replace("\"", "\\\"") + "\"}");
-                        
-                        return result;
-                    }
-                } catch (SQLException e) {
-                    // If getting the ID fails, still return success since the insert worked
-                    System.out.println("Warning: Could not get inserted ID: " + e.getMessage());
-                    return "{\"success\": true, \"message\": \"Item added successfully\"}";
-                }
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                int id = rs.getInt(1);
+                String result = "{\"success\": true, \"message\": \"Item added successfully\", \"id\": " + id + "}";
+                mirrorWrite("INSERT INTO items (id, name) VALUES (?, ?)", id, name);
+                indexName(itemSearch, id, name);
+
+                return result;
             }
             return "{\"success\": false, \"message\": \"Failed to add item\"}";
         } catch (SQLException e) {
@@ -346,6 +1023,10 @@ public class DatabaseManager {
     }
 
     public static String addInventoryItem(int itemId, int stock, int capacity) {
+        return writeQueue.submit(() -> doAddInventoryItem(itemId, stock, capacity));
+    }
+
+    private static String doAddInventoryItem(int itemId, int stock, int capacity) {
         // Validate non-negative values
         if (stock < 0) {
             return "{\"success\": false, \"message\": \"Stock cannot be negative\"}";
@@ -353,42 +1034,29 @@ public class DatabaseManager {
         if (capacity < 0) {
             return "{\"success\": false, \"message\": \"Capacity cannot be negative\"}";
         }
-        
-        // First check if item exists
-        String checkItemSql = "SELECT id FROM items WHERE id = ?";
-        String insertSql = "INSERT INTO inventory (item, stock, capacity) VALUES (?, ?, ?)";
-        
-        try {
-            PreparedStatement checkStmt = conn.prepareStatement(checkItemSql);
-            checkStmt.setInt(1, itemId);
-            ResultSet rs = checkStmt.executeQuery();
-            
-            if (!rs.next()) {
-                return "{\"success\": false, \"message\": \"Item with ID " + itemId + " does not exist\"}";
-            }
-            
-            PreparedStatement pstmt = conn.prepareStatement(insertSql);
+
+        // The item foreign key and the unique item column do the existence and duplicate checks
+        long now = System.currentTimeMillis();
+        String sql = "INSERT INTO inventory (item, stock, capacity, rate_updated_at) VALUES (?, ?, ?, ?) RETURNING id";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, itemId);
             pstmt.setInt(2, stock);
             pstmt.setInt(3, capacity);
-            int rowsAffected = pstmt.executeUpdate();
-            
-            if (rowsAffected > 0) {
-                Statement stmt = conn.createStatement();
-                ResultSet lastIdRs = stmt.executeQuery("SELECT last_insert_rowid()");
-                if (lastIdRs.next()) {
-                    int id = lastIdRs.getInt(1);
-                    String result = "{\"success\": true, \"message\": \"Inventory item added successfully\", \"id\": " + id + "}";
-                    
-                    // Broadcast the update
-                    broadcastUpdate("INSERT", "inventory", 
-                        "{\"id\": " + id + ", \"itemId\": " + itemId + ", \"stock\": " + stock + ", \"capacity\": " + capacity + "}");
-                    
-                    return result;
-                }
+            pstmt.setLong(4, now);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                int id = rs.getInt(1);
+                String result = "{\"success\": true, \"message\": \"Inventory item added successfully\", \"id\": " + id + "}";
+                mirrorWrite("INSERT INTO inventory (id, item, stock, capacity, rate_updated_at) VALUES (?, ?, ?, ?, ?)",
+                        id, itemId, stock, capacity, now);
+
+                return result;
             }
             return "{\"success\": false, \"message\": \"Failed to add inventory item\"}";
         } catch (SQLException e) {
+            if (e.getMessage().contains("FOREIGN KEY constraint failed")) {
+                return "{\"success\": false, \"message\": \"Item with ID " + itemId + " does not exist\"}";
+            }
             if (e.getMessage().contains("UNIQUE constraint failed")) {
                 return "{\"success\": false, \"message\": \"Inventory item for this product already exists\"}";
             }
@@ -398,25 +1066,21 @@ public class DatabaseManager {
     }
 
     public static String addDistributor(String name) {
-        String sql = "INSERT INTO distributors (name) VALUES (?)";
-        try {
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+        return writeQueue.submit(() -> doAddDistributor(name));
+    }
+
+    private static String doAddDistributor(String name) {
+        String sql = "INSERT INTO distributors (name) VALUES (?) RETURNING id";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, name);
-            int rowsAffected = pstmt.executeUpdate();
-            
-            if (rowsAffected > 0) {
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()");
-                if (rs.next()) {
-                    int id = rs.getInt(1);
-                    String result = "{\"success\": true, \"message\": \"Distributor added successfully\", \"id\": " + id + "}";
-                    
-                    // Broadcast the update
-                    broadcastUpdate("INSERT", "distributors", 
-                        "{\"id\": " + id + ", \"name\": \"" + name.replace("\"", "\\\"") + "\"}");
-                    
-                    return result;
-                }
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                int id = rs.getInt(1);
+                String result = "{\"success\": true, \"message\": \"Distributor added successfully\", \"id\": " + id + "}";
+                mirrorWrite("INSERT INTO distributors (id, name) VALUES (?, ?)", id, name);
+                indexName(distributorSearch, id, name);
+
+                return result;
             }
             return "{\"success\": false, \"message\": \"Failed to add distributor\"}";
         } catch (SQLException e) {
@@ -429,75 +1093,90 @@ public class DatabaseManager {
     }
 
     public static String addDistributorPrice(int distributorId, int itemId, double cost) {
+        return writeQueue.submit(() -> doAddDistributorPrice(distributorId, itemId, cost));
+    }
+
+    private static String doAddDistributorPrice(int distributorId, int itemId, double cost) {
         // Validate non-negative cost
         if (cost < 0) {
             return "{\"success\": false, \"message\": \"Cost cannot be negative\"}";
         }
-        
-        // Check if distributor and item exist
-        String checkDistributorSql = "SELECT id FROM distributors WHERE id = ?";
-        String checkItemSql = "SELECT id FROM items WHERE id = ?";
-        String checkExistingSql = "SELECT id FROM distributor_prices WHERE distributor = ? AND item = ?";
-        String insertSql = "INSERT INTO distributor_prices (distributor, item, cost) VALUES (?, ?, ?)";
-        
-        try {
-            PreparedStatement checkDistStmt = conn.prepareStatement(checkDistributorSql);
-            checkDistStmt.setInt(1, distributorId);
-            ResultSet rs1 = checkDistStmt.executeQuery();
-            
-            if (!rs1.next()) {
-                return "{\"success\": false, \"message\": \"Distributor with ID " + distributorId + " does not exist\"}";
-            }
-            
-            PreparedStatement checkItemStmt = conn.prepareStatement(checkItemSql);
-            checkItemStmt.setInt(1, itemId);
-            ResultSet rs2 = checkItemStmt.executeQuery();
-            
-            if (!rs2.next()) {
-                return "{\"success\": false, \"message\": \"Item with ID " + itemId + " does not exist\"}";
-            }
-            
-            // Check if this distributor already has a price for this item
-            PreparedStatement checkExistingStmt = conn.prepareStatement(checkExistingSql);
-            checkExistingStmt.setInt(1, distributorId);
-            checkExistingStmt.setInt(2, itemId);
-            ResultSet rs3 = checkExistingStmt.executeQuery();
-            
-            if (rs3.next()) {
-                return "{\"success\": false, \"message\": \"This distributor already has a price for this item. Use update instead.\"}";
-            }
-            
-            PreparedStatement pstmt = conn.prepareStatement(insertSql);
+
+        // The foreign keys and UNIQUE(distributor, item) do the existence and duplicate checks
+        String sql = "INSERT INTO distributor_prices (distributor, item, cost) VALUES (?, ?, ?) RETURNING id";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, distributorId);
             pstmt.setInt(2, itemId);
             pstmt.setDouble(3, cost);
-            int rowsAffected = pstmt.executeUpdate();
-            
-            if (rowsAffected > 0) {
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()");
-                if (rs.next()) {
-                    int id = rs.getInt(1);
-                    broadcastUpdate("INSERT", "distributor_prices", 
-                        "{\"id\":" + id + ",\"distributor_id\":" + distributorId + ",\"item_id\":" + itemId + ",\"cost\":" + cost + "}");
-                    return "{\"success\": true, \"message\": \"Distributor price added successfully\", \"id\": " + id + "}";
-                }
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                int id = rs.getInt(1);
+                mirrorWrite("INSERT INTO distributor_prices (id, distributor, item, cost) VALUES (?, ?, ?, ?)", id, distributorId, itemId, cost);
+                invalidatePriceLookups(distributorId, itemId);
+                return "{\"success\": true, \"message\": \"Distributor price added successfully\", \"id\": " + id + "}";
             }
             return "{\"success\": false, \"message\": \"Failed to add distributor price\"}";
         } catch (SQLException e) {
+            if (e.getMessage().contains("FOREIGN KEY constraint failed")) {
+                return missingPriceParent(distributorId, itemId);
+            }
+            if (e.getMessage().contains("UNIQUE constraint failed")) {
+                return "{\"success\": false, \"message\": \"This distributor already has a price for this item. Use update instead.\"}";
+            }
             System.out.println(e.getMessage());
             return "{\"success\": false, \"message\": \"Database error: " + e.getMessage() + "\"}";
         }
     }
 
+    // SQLite does not say which foreign key failed, so the rejected path looks it up (distributor first, as before)
+    private static String missingPriceParent(int distributorId, int itemId) {
+        return "{\"success\": false, \"message\": \"" + missingParentMessage(distributorId, itemId) + "\"}";
+    }
+
+    private static String missingParentMessage(int distributorId, int itemId) {
+        String sql = "SELECT EXISTS(SELECT 1 FROM distributors WHERE id = ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, distributorId);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next() && rs.getInt(1) == 0) {
+                return "Distributor with ID " + distributorId + " does not exist";
+            }
+            return "Item with ID " + itemId + " does not exist";
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+            return "Database error: " + String.valueOf(e.getMessage()).replace("\"", "'");
+        }
+    }
+
     // ================ PUT METHODS ================
-    public static String updateInventoryItem(int itemId, Integer stock, Integer capacity) {
+    /**
+     * Update an item's inventory row. Parameters left null keep their current value.
+     * @param lowThreshold Fraction of capacity (0 to 1) below which the item's stock is low
+     */
+    public static String updateInventoryItem(int itemId, Integer stock, Integer capacity, Double lowThreshold) {
+        return writeQueue.submit(() -> doUpdateInventoryItem(itemId, stock, capacity, lowThreshold));
+    }
+
+    /**
+     * updateInventoryItem without waiting, so that a client can pipeline updates into one write batch
+     * @return completes with the result once the update has committed
+     */
+    public static CompletableFuture<String> updateInventoryItemAsync(int itemId, Integer stock, Integer capacity,
+                                                                     Double lowThreshold) {
+        return writeQueue.submitAsync(() -> doUpdateInventoryItem(itemId, stock, capacity, lowThreshold));
+    }
+
+    private static String doUpdateInventoryItem(int itemId, Integer stock, Integer capacity, Double lowThreshold) {
         StringBuilder sql = new StringBuilder("UPDATE inventory SET ");
         boolean hasStock = stock != null;
         boolean hasCapacity = capacity != null;
+        boolean hasThreshold = lowThreshold != null;
         
-        if (!hasStock && !hasCapacity) {
-            return "{\"success\": false, \"message\": \"At least one parameter (stock or capacity) must be provided\"}";
+        if (!hasStock && !hasCapacity && !hasThreshold) {
+            return "{\"success\": false, \"message\": \"At least one parameter (stock, capacity or lowThreshold) must be provided\"}";
+        }
+        if (hasThreshold && !(lowThreshold >= 0 && lowThreshold <= 1)) {
+            return "{\"success\": false, \"message\": \"Low stock threshold must be between 0 and 1\"}";
         }
         
         // Validate non-negative values
@@ -508,39 +1187,48 @@ public class DatabaseManager {
             return "{\"success\": false, \"message\": \"Capacity cannot be negative\"}";
         }
         
-        if (hasStock) {
-            sql.append("stock = ?");
-        }
-        if (hasCapacity) {
-            if (hasStock) sql.append(", ");
-            sql.append("capacity = ?");
-        }
-        sql.append(" WHERE item = ?");
-        
         try {
-            PreparedStatement pstmt = conn.prepareStatement(sql.toString());
-            int paramIndex = 1;
-            
+            List<Object> params = new ArrayList<>();
             if (hasStock) {
-                pstmt.setInt(paramIndex++, stock);
+                // Fold the change into the consumption estimate - one row read, no history scan
+                String previousSql = "SELECT stock, consumption_rate, rate_updated_at FROM inventory WHERE item = ?";
+                try (PreparedStatement previous = conn.prepareStatement(previousSql)) {
+                    previous.setInt(1, itemId);
+                    ResultSet rs = previous.executeQuery();
+                    if (!rs.next()) {
+                        return "{\"success\": false, \"message\": \"Inventory item with ID " + itemId + " not found\"}";
+                    }
+                    long now = System.currentTimeMillis();
+                    long lastAt = rs.getLong(3);
+                    double rate = rs.wasNull() ? 0 : nextConsumptionRate(rs.getDouble(2), now - lastAt, rs.getInt(1) - stock);
+                    sql.append("stock = ?, consumption_rate = ?, rate_updated_at = ?");
+                    params.add(stock);
+                    params.add(rate);
+                    params.add(now);
+                }
             }
             if (hasCapacity) {
-                pstmt.setInt(paramIndex++, capacity);
+                if (hasStock) sql.append(", ");
+                sql.append("capacity = ?");
+                params.add(capacity);
             }
-            pstmt.setInt(paramIndex, itemId);
-            
+            if (hasThreshold) {
+                if (hasStock || hasCapacity) sql.append(", ");
+                sql.append("low_threshold = ?");
+                params.add(lowThreshold);
+            }
+            sql.append(" WHERE item = ?");
+            params.add(itemId);
+
+            PreparedStatement pstmt = conn.prepareStatement(sql.toString());
+            for (int i = 0; i < params.size(); i++) {
+                pstmt.setObject(i + 1, params.get(i));
+            }
+
             int rowsAffected = pstmt.executeUpdate();
             if (rowsAffected > 0) {
                 String result = "{\"success\": true, \"message\": \"Inventory item updated successfully\"}";
-                
-                // Broadcast the update
-                StringBuilder updateData = new StringBuilder("{\"itemId\": " + itemId);
-                if (hasStock) updateData.append(", \"stock\": ").append(stock);
-                if (hasCapacity) updateData.append(", \"capacity\": ").append(capacity);
-                updateData.append("}");
-                
-                broadcastUpdate("UPDATE", "inventory", updateData.toString());
-                
+                mirrorWrite(sql.toString(), params.toArray());
                 return result;
             } else {
                 return "{\"success\": false, \"message\": \"Inventory item with ID " + itemId + " not found\"}";
@@ -551,7 +1239,40 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * Exponentially weighted consumption rate in units per day, for irregularly spaced stock changes.
+     * Over an interval of dt days in which the stock fell by d, the old rate decays by e^(-dt/W)
+     * and the interval's own rate d/dt fills the remaining weight, W being CONSUMPTION_WINDOW_DAYS.
+     * Increases are restocks and count as no consumption. Changes in the same instant add d/W, the
+     * limit as dt approaches 0.
+     * @param rate Rate after the previous stock change
+     * @param elapsedMs Time since the previous stock change
+     * @param consumed Stock before the change minus stock after it
+     * @return the rate after this change
+     */
+    static double nextConsumptionRate(double rate, long elapsedMs, int consumed) {
+        double days = Math.max(0, elapsedMs) / DAY_MS;
+        double decay = Math.exp(-days / CONSUMPTION_WINDOW_DAYS);
+        double units = Math.max(0, consumed);
+        if (days < 1e-9) {
+            return rate + units / CONSUMPTION_WINDOW_DAYS;
+        }
+        return rate * decay + (units / days) * (1 - decay);
+    }
+
     public static String updateDistributorPrice(int distributorId, int itemId, double cost) {
+        return writeQueue.submit(() -> doUpdateDistributorPrice(distributorId, itemId, cost));
+    }
+
+    /**
+     * updateDistributorPrice without waiting, so that a client can pipeline updates into one write batch
+     * @return completes with the result once the update has committed
+     */
+    public static CompletableFuture<String> updateDistributorPriceAsync(int distributorId, int itemId, double cost) {
+        return writeQueue.submitAsync(() -> doUpdateDistributorPrice(distributorId, itemId, cost));
+    }
+
+    private static String doUpdateDistributorPrice(int distributorId, int itemId, double cost) {
         // Validate non-negative cost
         if (cost < 0) {
             return "{\"success\": false, \"message\": \"Cost cannot be negative\"}";
@@ -566,8 +1287,8 @@ public class DatabaseManager {
             
             int rowsAffected = pstmt.executeUpdate();
             if (rowsAffected > 0) {
-                broadcastUpdate("UPDATE", "distributor_prices", 
-                    "{\"distributor_id\":" + distributorId + ",\"item_id\":" + itemId + ",\"cost\":" + cost + "}");
+                mirrorWrite(sql, cost, distributorId, itemId);
+                invalidatePriceLookups(distributorId, itemId);
                 return "{\"success\": true, \"message\": \"Distributor price updated successfully\"}";
             } else {
                 return "{\"success\": false, \"message\": \"No price record found for distributor " + distributorId + " and item " + itemId + "\"}";
@@ -580,6 +1301,10 @@ public class DatabaseManager {
 
     // ================ DELETE METHODS ================
     public static String deleteInventoryItem(int itemId) {
+        return writeQueue.submit(() -> doDeleteInventoryItem(itemId));
+    }
+
+    private static String doDeleteInventoryItem(int itemId) {
         String sql = "DELETE FROM inventory WHERE item = ?";
         try {
             PreparedStatement pstmt = conn.prepareStatement(sql);
@@ -587,7 +1312,7 @@ public class DatabaseManager {
             
             int rowsAffected = pstmt.executeUpdate();
             if (rowsAffected > 0) {
-                broadcastUpdate("DELETE", "inventory", "{\"item_id\":" + itemId + "}");
+                mirrorWrite(sql, itemId);
                 return "{\"success\": true, \"message\": \"Inventory item deleted successfully\"}";
             } else {
                 return "{\"success\": false, \"message\": \"Inventory item with ID " + itemId + " not found\"}";
@@ -599,14 +1324,22 @@ public class DatabaseManager {
     }
 
     public static String deleteDistributor(int distributorId) {
+        return writeQueue.submit(() -> doDeleteDistributor(distributorId));
+    }
+
+    private static String doDeleteDistributor(int distributorId) {
         String sql = "DELETE FROM distributors WHERE id = ?";
         try {
+            // Read before the cascade removes the prices
+            List<Integer> itemIds = pricedCounterparts("item", "distributor", distributorId);
             PreparedStatement pstmt = conn.prepareStatement(sql);
             pstmt.setInt(1, distributorId);
             
             int rowsAffected = pstmt.executeUpdate();
             if (rowsAffected > 0) {
-                broadcastUpdate("DELETE", "distributors", "{\"id\":" + distributorId + "}");
+                mirrorWrite(sql, distributorId);
+                unindexName(distributorSearch, distributorId);
+                invalidateDistributorLookups(distributorId, itemIds);
                 return "{\"success\": true, \"message\": \"Distributor deleted successfully\"}";
             } else {
                 return "{\"success\": false, \"message\": \"Distributor with ID " + distributorId + " not found\"}";
@@ -618,6 +1351,10 @@ public class DatabaseManager {
     }
 
     public static String deleteDistributorPrice(int distributorId, int itemId) {
+        return writeQueue.submit(() -> doDeleteDistributorPrice(distributorId, itemId));
+    }
+
+    private static String doDeleteDistributorPrice(int distributorId, int itemId) {
         String sql = "DELETE FROM distributor_prices WHERE distributor = ? AND item = ?";
         try {
             PreparedStatement pstmt = conn.prepareStatement(sql);
@@ -626,8 +1363,8 @@ public class DatabaseManager {
             
             int rowsAffected = pstmt.executeUpdate();
             if (rowsAffected > 0) {
-                broadcastUpdate("DELETE", "distributor_prices", 
-                    "{\"distributor_id\":" + distributorId + ",\"item_id\":" + itemId + "}");
+                mirrorWrite(sql, distributorId, itemId);
+                invalidatePriceLookups(distributorId, itemId);
                 return "{\"success\": true, \"message\": \"Distributor price deleted successfully\"}";
             } else {
                 return "{\"success\": false, \"message\": \"Distributor price not found for distributor ID " + distributorId + " and item ID " + itemId + "\"}";
@@ -643,39 +1380,18 @@ public class DatabaseManager {
     public static JSONObject getCheapestRestockPrice(int itemId, int quantity) {
         // Validate positive quantity
         if (quantity <= 0) {
-            JSONObject error = new JSONObject();
-            error.put("success", false);
-            error.put("message", "Quantity must be greater than 0");
-            return error;
+            return invalidQuantity();
         }
         
-        String sql = "SELECT d.id, d.name, dp.cost, (dp.cost * ?) as total_cost " +
-                    "FROM distributors d " +
-                    "JOIN distributor_prices dp ON d.id = dp.distributor " +
-                    "WHERE dp.item = ? " +
-                    "ORDER BY dp.cost ASC " +
-                    "LIMIT 1";
+        String sql = CHEAPEST_RESTOCK_SQL;
         try {
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, quantity);
-            pstmt.setInt(2, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            
-            if (rs.next()) {
-                JSONObject result = new JSONObject();
-                result.put("item_id", itemId);
-                result.put("quantity", quantity);
-                result.put("distributor_id", rs.getInt("id"));
-                result.put("distributor_name", rs.getString("name"));
-                result.put("unit_cost", rs.getDouble("cost"));
-                result.put("total_cost", rs.getDouble("total_cost"));
-                return result;
-            } else {
-                JSONObject error = new JSONObject();
-                error.put("success", false);
-                error.put("message", "No distributors found for item ID " + itemId);
-                return error;
-            }
+            return read(connection -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setInt(1, quantity);
+                    pstmt.setInt(2, itemId);
+                    return cheapestRestockResult(pstmt.executeQuery(), itemId, quantity);
+                }
+            });
         } catch (SQLException e) {
             System.out.println(e.getMessage());
             JSONObject error = new JSONObject();
@@ -685,30 +1401,99 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * The cheapest restock option with the prices that were in effect at a given time
+     * @param asOf Time in epoch milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public static String getCheapestRestockPrice(int itemId, int quantity, long asOf) {
+        if (quantity <= 0) {
+            return invalidQuantity().toJSONString();
+        }
+        return readSnapshot(connection -> {
+            String sql = PRICES_AS_OF_SQL + "AND h.item = ? ORDER BY h.cost ASC LIMIT 1";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                bindAsOf(pstmt, asOf);
+                pstmt.setInt(5, itemId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    JSONObject result = cheapestRestockResult(rs, itemId, quantity);
+                    if (result.containsKey("unit_cost")) {
+                        result.put("as_of", asOf);
+                    }
+                    return result.toJSONString();
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject invalidQuantity() {
+        JSONObject error = new JSONObject();
+        error.put("success", false);
+        error.put("message", "Quantity must be greater than 0");
+        return error;
+    }
+
+    // Columns distributor (or id), distributor_name (or name) and cost, first row cheapest
+    @SuppressWarnings("unchecked")
+    private static JSONObject cheapestRestockResult(ResultSet rs, int itemId, int quantity) throws SQLException {
+        if (rs.next()) {
+            JSONObject result = new JSONObject();
+            result.put("item_id", itemId);
+            result.put("quantity", quantity);
+            result.put("distributor_id", rs.getInt(1));
+            result.put("distributor_name", rs.getString(2));
+            result.put("unit_cost", rs.getDouble("cost"));
+            result.put("total_cost", rs.getDouble("cost") * quantity);
+            return result;
+        } else {
+            JSONObject error = new JSONObject();
+            error.put("success", false);
+            error.put("message", "No distributors found for item ID " + itemId);
+            return error;
+        }
+    }
+
+    // ================ SEARCH METHODS ================
+    public static JSONArray searchItems(String query, int limit) {
+        return itemSearch.search(query, limit);
+    }
+
+    public static JSONArray searchDistributors(String query, int limit) {
+        return distributorSearch.search(query, limit);
+    }
+
     // ================ MISSING CRUD METHODS ================
     
     @SuppressWarnings("unchecked")
-    public static String getItemById(int itemId) {
-        try {
-            String sql = "SELECT id, name FROM items WHERE id = ?";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setInt(1, itemId);
-            ResultSet rs = stmt.executeQuery();
-            
-            if (rs.next()) {
-                JSONObject item = new JSONObject();
-                item.put("id", rs.getInt("id"));
-                item.put("name", rs.getString("name"));
-                return item.toJSONString();
-            } else {
-                return "{\"error\": \"Item with ID " + itemId + " not found\"}";
-            }
+    public static String getItemById(int itemId) {
+        String sql = "SELECT id, name FROM items WHERE id = ?";
+        try {
+            return read(connection -> {
+                try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                    stmt.setInt(1, itemId);
+                    ResultSet rs = stmt.executeQuery();
+
+                    if (rs.next()) {
+                        JSONObject item = new JSONObject();
+                        item.put("id", rs.getInt("id"));
+                        item.put("name", rs.getString("name"));
+                        return item.toJSONString();
+                    } else {
+                        return "{\"error\": \"Item with ID " + itemId + " not found\"}";
+                    }
+                }
+            });
         } catch (SQLException e) {
             return "{\"error\": \"Database error: " + e.getMessage() + "\"}";
         }
     }
     
     public static String updateItem(int itemId, String name) {
+        return writeQueue.submit(() -> doUpdateItem(itemId, name));
+    }
+
+    private static String doUpdateItem(int itemId, String name) {
         try {
             // Check if item exists
             String checkSql = "SELECT id FROM items WHERE id = ?";
@@ -739,7 +1524,9 @@ public class DatabaseManager {
             
             int rowsAffected = updateStmt.executeUpdate();
             if (rowsAffected > 0) {
-                broadcastUpdate("UPDATE", "items", "{\"id\":" + itemId + ",\"name\":\"" + name + "\"}");
+                mirrorWrite(updateSql, name, itemId);
+                indexName(itemSearch, itemId, name);
+                invalidateItemLookups(itemId, pricedCounterparts("distributor", "item", itemId));
                 return "{\"success\": true, \"message\": \"Item updated successfully\"}";
             } else {
                 return "{\"success\": false, \"message\": \"Failed to update item\"}";
@@ -750,6 +1537,10 @@ public class DatabaseManager {
     }
     
     public static String deleteItem(int itemId) {
+        return writeQueue.submit(() -> doDeleteItem(itemId));
+    }
+
+    private static String doDeleteItem(int itemId) {
         try {
             // Check if item exists
             String checkSql = "SELECT id FROM items WHERE id = ?";
@@ -762,13 +1553,16 @@ public class DatabaseManager {
             }
             
             // Delete the item (cascade will handle related records)
+            List<Integer> distributorIds = pricedCounterparts("distributor", "item", itemId);
             String deleteSql = "DELETE FROM items WHERE id = ?";
             PreparedStatement deleteStmt = conn.prepareStatement(deleteSql);
             deleteStmt.setInt(1, itemId);
             
             int rowsAffected = deleteStmt.executeUpdate();
             if (rowsAffected > 0) {
-                broadcastUpdate("DELETE", "items", "{\"id\":" + itemId + "}");
+                mirrorWrite(deleteSql, itemId);
+                unindexName(itemSearch, itemId);
+                invalidateItemLookups(itemId, distributorIds);
                 return "{\"success\": true, \"message\": \"Item deleted successfully\"}";
             } else {
                 return "{\"success\": false, \"message\": \"Failed to delete item\"}";
@@ -780,26 +1574,33 @@ public class DatabaseManager {
     
     @SuppressWarnings("unchecked")
     public static String getDistributorById(int distributorId) {
+        String sql = "SELECT id, name FROM distributors WHERE id = ?";
         try {
-            String sql = "SELECT id, name FROM distributors WHERE id = ?";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setInt(1, distributorId);
-            ResultSet rs = stmt.executeQuery();
-            
-            if (rs.next()) {
-                JSONObject distributor = new JSONObject();
-                distributor.put("id", rs.getInt("id"));
-                distributor.put("name", rs.getString("name"));
-                return distributor.toJSONString();
-            } else {
-                return "{\"error\": \"Distributor with ID " + distributorId + " not found\"}";
-            }
+            return read(connection -> {
+                try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                    stmt.setInt(1, distributorId);
+                    ResultSet rs = stmt.executeQuery();
+
+                    if (rs.next()) {
+                        JSONObject distributor = new JSONObject();
+                        distributor.put("id", rs.getInt("id"));
+                        distributor.put("name", rs.getString("name"));
+                        return distributor.toJSONString();
+                    } else {
+                        return "{\"error\": \"Distributor with ID " + distributorId + " not found\"}";
+                    }
+                }
+            });
         } catch (SQLException e) {
             return "{\"error\": \"Database error: " + e.getMessage() + "\"}";
         }
     }
     
     public static String updateDistributor(int distributorId, String name) {
+        return writeQueue.submit(() -> doUpdateDistributor(distributorId, name));
+    }
+
+    private static String doUpdateDistributor(int distributorId, String name) {
         try {
             // Check if distributor exists
             String checkSql = "SELECT id FROM distributors WHERE id = ?";
@@ -830,7 +1631,9 @@ public class DatabaseManager {
             
             int rowsAffected = updateStmt.executeUpdate();
             if (rowsAffected > 0) {
-                broadcastUpdate("UPDATE", "distributors", "{\"id\":" + distributorId + ",\"name\":\"" + name + "\"}");
+                mirrorWrite(updateSql, name, distributorId);
+                indexName(distributorSearch, distributorId, name);
+                invalidateDistributorLookups(distributorId, pricedCounterparts("item", "distributor", distributorId));
                 return "{\"success\": true, \"message\": \"Distributor updated successfully\"}";
             } else {
                 return "{\"success\": false, \"message\": \"Failed to update distributor\"}";
@@ -860,57 +1663,814 @@ public class DatabaseManager {
         }
         
         try {
-            // First, get the table structure to build column headers
-            String sql = "SELECT * FROM " + tableName + " LIMIT 1";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            ResultSet rs = stmt.executeQuery();
-            ResultSetMetaData metaData = rs.getMetaData();
-            int columnCount = metaData.getColumnCount();
-            
-            // Build CSV content
-            StringBuilder csvContent = new StringBuilder();
-            
-            // Add header row
-            for (int i = 1; i <= columnCount; i++) {
-                csvContent.append(metaData.getColumnName(i));
-                if (i < columnCount) {
-                    csvContent.append(",");
+            // Export the columns an import takes back - not derived ones such as the consumption estimate
+            String columnList = String.join(", ", IMPORT_COLUMNS.get(tableName).keySet());
+
+            String sql = "SELECT " + columnList + " FROM " + tableName;
+            return read(connection -> {
+                try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                    ResultSet rs = stmt.executeQuery();
+                    ResultSetMetaData metaData = rs.getMetaData();
+                    int columnCount = metaData.getColumnCount();
+
+                    // Build CSV content
+                    StringBuilder csvContent = new StringBuilder();
+
+                    // Add header row
+                    for (int i = 1; i <= columnCount; i++) {
+                        csvContent.append(metaData.getColumnName(i));
+                        if (i < columnCount) {
+                            csvContent.append(",");
+                        }
+                    }
+                    csvContent.append("\n");
+
+                    // Add data rows
+                    while (rs.next()) {
+                        for (int i = 1; i <= columnCount; i++) {
+                            String value = rs.getString(i);
+                            if (value == null) {
+                                value = "";
+                            }
+                            // Escape commas and quotes in CSV
+                            if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+                                value = "\"" + value.replace("\"", "\"\"") + "\"";
+                            }
+                            csvContent.append(value);
+                            if (i < columnCount) {
+                                csvContent.append(",");
+                            }
+                        }
+                        csvContent.append("\n");
+                    }
+
+                    return csvContent.toString();
+                }
+            });
+        } catch (SQLException e) {
+            System.out.println("Error exporting table to CSV: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    // ================ CSV IMPORT METHOD ================
+
+    // How a CSV column is validated and bound
+    private enum ImportColumn { ID, NAME, REFERENCE, QUANTITY, COST }
+
+    private static final Map<String, Map<String, ImportColumn>> IMPORT_COLUMNS = new LinkedHashMap<>();
+    static {
+        Map<String, ImportColumn> named = new LinkedHashMap<>();
+        named.put("id", ImportColumn.ID);
+        named.put("name", ImportColumn.NAME);
+        IMPORT_COLUMNS.put("items", named);
+        IMPORT_COLUMNS.put("distributors", named);
+
+        Map<String, ImportColumn> inventory = new LinkedHashMap<>();
+        inventory.put("id", ImportColumn.ID);
+        inventory.put("item", ImportColumn.REFERENCE);
+        inventory.put("stock", ImportColumn.QUANTITY);
+        inventory.put("capacity", ImportColumn.QUANTITY);
+        IMPORT_COLUMNS.put("inventory", inventory);
+
+        Map<String, ImportColumn> prices = new LinkedHashMap<>();
+        prices.put("id", ImportColumn.ID);
+        prices.put("distributor", ImportColumn.REFERENCE);
+        prices.put("item", ImportColumn.REFERENCE);
+        prices.put("cost", ImportColumn.COST);
+        IMPORT_COLUMNS.put("distributor_prices", prices);
+    }
+
+    // Rejected rows listed individually in an import summary; the rest are only counted
+    private static final int IMPORT_MAX_REPORTED_ERRORS = 100;
+    private static final String IMPORT_BATCH_OK = "ok";
+
+    // Running totals of one import
+    private static final class ImportResult {
+        int accepted;
+        int rejected;
+        final JSONArray errors = new JSONArray();
+
+        @SuppressWarnings("unchecked")
+        void reject(int line, String message) {
+            rejected++;
+            if (errors.size() < IMPORT_MAX_REPORTED_ERRORS) {
+                JSONObject error = new JSONObject();
+                error.put("line", line);
+                error.put("message", message);
+                errors.add(error);
+            }
+        }
+    }
+
+    /**
+     * Import a CSV stream into one table. The first record is the header and must name every
+     * column of the table except id, which is optional (rows without one get a new id). Rows
+     * are parsed and validated as they are read and inserted batchRows at a time, each batch
+     * in one transaction on the writer thread. Rows that fail validation or a constraint are
+     * skipped and reported; the rest are kept. One IMPORT change event is sent at the end.
+     * @param tableName Table to import into
+     * @param in CSV input, read incrementally
+     * @param upsert Update rows whose id already exists instead of rejecting them
+     * @param batchRows Rows inserted per transaction
+     * @return JSON summary with accepted and rejected counts and the first rejected rows
+     */
+    @SuppressWarnings("unchecked")
+    public static String importCsv(String tableName, Reader in, boolean upsert, int batchRows) {
+        String table = tableName.toLowerCase();
+        Map<String, ImportColumn> tableColumns = IMPORT_COLUMNS.get(table);
+        if (tableColumns == null) {
+            return "{\"success\": false, \"message\": \"Invalid table name. Valid tables: items, inventory, distributors, distributor_prices\"}";
+        }
+
+        CsvReader csv = new CsvReader(in);
+        List<String> columns = new ArrayList<>();
+        try {
+            List<String> header = csv.readRecord();
+            if (header == null) {
+                return "{\"success\": false, \"message\": \"CSV header row is required\"}";
+            }
+            for (String column : header) {
+                String name = column.trim().toLowerCase();
+                if (!tableColumns.containsKey(name) || columns.contains(name)) {
+                    return "{\"success\": false, \"message\": \"Unexpected column '" + name.replace("\"", "'")
+                            + "'. Columns for " + table + ": " + String.join(", ", tableColumns.keySet()) + "\"}";
                 }
+                columns.add(name);
             }
-            csvContent.append("\n");
-            
-            // Get all data from the table
-            String dataSql = "SELECT * FROM " + tableName;
-            PreparedStatement dataStmt = conn.prepareStatement(dataSql);
-            ResultSet dataRs = dataStmt.executeQuery();
-            
-            // Add data rows
-            while (dataRs.next()) {
-                for (int i = 1; i <= columnCount; i++) {
-                    String value = dataRs.getString(i);
-                    if (value == null) {
-                        value = "";
+            for (String required : tableColumns.keySet()) {
+                if (!required.equals("id") && !columns.contains(required)) {
+                    return "{\"success\": false, \"message\": \"Missing column '" + required + "'\"}";
+                }
+            }
+
+            String sql = importSql(table, columns, upsert) + " RETURNING id";
+            List<String> mirrorColumns = new ArrayList<>(columns);
+            mirrorColumns.remove("id");
+            mirrorColumns.add(0, "id");
+            String mirrorSql = importSql(table, mirrorColumns, true);
+
+            ImportResult result = new ImportResult();
+            List<Object[]> rows = new ArrayList<>(batchRows);
+            List<Integer> lines = new ArrayList<>(batchRows);
+            List<String> record;
+            while ((record = csv.readRecord()) != null) {
+                if (record.size() == 1 && record.get(0).trim().isEmpty()) {
+                    continue; // Blank line
+                }
+                try {
+                    rows.add(parseImportRow(record, columns, tableColumns));
+                    lines.add(csv.getRecordLine());
+                } catch (IllegalArgumentException e) {
+                    result.reject(csv.getRecordLine(), e.getMessage());
+                }
+                if (rows.size() >= batchRows) {
+                    submitImportBatch(table, columns, sql, mirrorSql, rows, lines, result);
+                    rows = new ArrayList<>(batchRows);
+                    lines = new ArrayList<>(batchRows);
+                }
+            }
+            submitImportBatch(table, columns, sql, mirrorSql, rows, lines, result);
+            JSONObject summary = new JSONObject();
+            summary.put("success", true);
+            summary.put("table", table);
+            summary.put("accepted", result.accepted);
+            summary.put("rejected", result.rejected);
+            result.errors.sort(Comparator.comparingInt(error -> (Integer) ((JSONObject) error).get("line")));
+            summary.put("errors", result.errors);
+            return summary.toJSONString();
+        } catch (IOException e) {
+            return "{\"success\": false, \"message\": \"Could not read CSV: " + String.valueOf(e.getMessage()).replace("\"", "'") + "\"}";
+        }
+    }
+
+    private static String importSql(String table, List<String> columns, boolean upsert) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+                .append(" (").append(String.join(", ", columns)).append(") VALUES (")
+                .append(String.join(", ", Collections.nCopies(columns.size(), "?"))).append(")");
+        if (upsert) {
+            List<String> updates = new ArrayList<>();
+            for (String column : columns) {
+                if (!column.equals("id")) {
+                    updates.add(column + " = excluded." + column);
+                }
+            }
+            sql.append(" ON CONFLICT(id) DO UPDATE SET ").append(String.join(", ", updates));
+        }
+        return sql.toString();
+    }
+
+    // Validate one record against the same rules as the single-row endpoints
+    private static Object[] parseImportRow(List<String> record, List<String> columns, Map<String, ImportColumn> tableColumns) {
+        if (record.size() != columns.size()) {
+            throw new IllegalArgumentException("Expected " + columns.size() + " fields, found " + record.size());
+        }
+        Object[] values = new Object[columns.size()];
+        for (int i = 0; i < values.length; i++) {
+            String column = columns.get(i);
+            String value = record.get(i).trim();
+            String label = Character.toUpperCase(column.charAt(0)) + column.substring(1);
+            switch (tableColumns.get(column)) {
+                case ID:
+                    values[i] = value.isEmpty() ? null : parseImportInt(value, column);
+                    break;
+                case NAME:
+                    if (value.isEmpty()) {
+                        throw new IllegalArgumentException(label + " is required");
+                    }
+                    values[i] = value;
+                    break;
+                case REFERENCE:
+                    values[i] = parseImportInt(value, column);
+                    break;
+                case QUANTITY:
+                    int quantity = parseImportInt(value, column);
+                    if (quantity < 0) {
+                        throw new IllegalArgumentException(label + " cannot be negative");
                     }
-                    // Escape commas and quotes in CSV
-                    if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
-                        value = "\"" + value.replace("\"", "\"\"") + "\"";
+                    values[i] = quantity;
+                    break;
+                case COST:
+                    double cost;
+                    try {
+                        cost = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(column + " must be a number");
+                    }
+                    if (cost < 0) {
+                        throw new IllegalArgumentException(label + " cannot be negative");
+                    }
+                    values[i] = cost;
+                    break;
+            }
+        }
+        return values;
+    }
+
+    private static int parseImportInt(String value, String column) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(column + " must be an integer");
+        }
+    }
+
+    // Insert one batch in a single writer transaction and fold its outcome into the totals
+    private static void submitImportBatch(String table, List<String> columns, String sql, String mirrorSql,
+                                          List<Object[]> rows, List<Integer> lines, ImportResult result) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        ImportResult batch = new ImportResult();
+        String outcome;
+        try {
+            outcome = writeQueue.submit(() -> doImportBatch(table, columns, sql, mirrorSql, rows, lines, batch));
+        } catch (RuntimeException e) {
+            outcome = e.getMessage();
+        }
+        if (IMPORT_BATCH_OK.equals(outcome)) {
+            result.accepted += batch.accepted;
+            result.rejected += batch.rejected - batch.errors.size();
+            for (Object error : batch.errors) {
+                JSONObject rejected = (JSONObject) error;
+                result.reject((Integer) rejected.get("line"), (String) rejected.get("message"));
+            }
+        } else {
+            // The whole batch was rolled back
+            for (Integer line : lines) {
+                result.reject(line, "Batch not saved: " + outcome);
+            }
+        }
+    }
+
+    private static String doImportBatch(String table, List<String> columns, String sql, String mirrorSql,
+                                        List<Object[]> rows, List<Integer> lines, ImportResult batch) {
+        int idColumn = columns.indexOf("id");
+        int nameColumn = columns.indexOf("name");
+        // Replayed into the mirror and search index only once every row is in and the batch commits;
+        // a batch rolled back part way through leaves neither holding rows the file does not
+        List<Object[]> mirrorRows = new ArrayList<>(rows.size());
+        Map<Integer, String> names = new LinkedHashMap<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (int r = 0; r < rows.size(); r++) {
+                Object[] values = rows.get(r);
+                for (int i = 0; i < values.length; i++) {
+                    pstmt.setObject(i + 1, values[i]);
+                }
+                int id;
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        batch.reject(lines.get(r), "Row was not inserted");
+                        continue;
                     }
-                    csvContent.append(value);
-                    if (i < columnCount) {
-                        csvContent.append(",");
+                    id = rs.getInt(1);
+                } catch (SQLException e) {
+                    batch.reject(lines.get(r), importErrorMessage(table, columns, values, e));
+                    continue;
+                }
+                batch.accepted++;
+
+                Object[] mirrorValues = new Object[values.length + (idColumn < 0 ? 1 : 0)];
+                mirrorValues[0] = id;
+                for (int i = 0, m = 1; i < values.length; i++) {
+                    if (i != idColumn) {
+                        mirrorValues[m++] = values[i];
                     }
                 }
-                csvContent.append("\n");
+                mirrorRows.add(mirrorValues);
+                if (nameColumn >= 0) {
+                    names.put(id, (String) values[nameColumn]);
+                }
             }
-            
-            return csvContent.toString();
-            
         } catch (SQLException e) {
-            System.out.println("Error exporting table to CSV: " + e.getMessage());
+            throw new IllegalStateException("Database error: " + e.getMessage(), e);
+        }
+        String dbPath = databasePath();
+        NameSearchIndex index = table.equals("items") ? itemSearch : distributorSearch;
+        writeQueue.afterCommit(() -> {
+            for (Object[] mirrorValues : mirrorRows) {
+                ReadMirror.write(dbPath, mirrorSql, mirrorValues);
+            }
+            names.forEach(index::put);
+        });
+        if (!table.equals("inventory")) {
+            // A batch can change any number of catalogs
+            writeQueue.afterCommit(DatabaseManager::clearLookupCaches);
+        }
+        return IMPORT_BATCH_OK;
+    }
+
+    // Map a constraint failure to the message the single-row endpoint would give
+    private static String importErrorMessage(String table, List<String> columns, Object[] values, SQLException e) {
+        String message = String.valueOf(e.getMessage());
+        if (message.contains("FOREIGN KEY constraint failed")) {
+            if (table.equals("inventory")) {
+                return "Item with ID " + values[columns.indexOf("item")] + " does not exist";
+            }
+            return missingParentMessage((Integer) values[columns.indexOf("distributor")], (Integer) values[columns.indexOf("item")]);
+        }
+        if (message.contains("UNIQUE constraint failed: " + table + ".id")) {
+            return "Row with ID " + values[columns.indexOf("id")] + " already exists";
+        }
+        if (message.contains("UNIQUE constraint failed")) {
+            switch (table) {
+                case "items":
+                    return "Item with this name already exists";
+                case "distributors":
+                    return "Distributor with this name already exists";
+                case "inventory":
+                    return "Inventory item for this product already exists";
+                default:
+                    return "This distributor already has a price for this item. Use update instead.";
+            }
+        }
+        return "Database error: " + message;
+    }
+
+    // ================ DELTA SYNC METHODS ================
+    /**
+     * The lists a client can keep in step with sync(). Each is keyed by its "id" column and has the
+     * same rows as its list route.
+     */
+    public enum SyncList {
+        ITEMS("items", ALL_ITEMS_SQL, "SELECT * FROM items WHERE id IN "),
+        INVENTORY("inventory", ALL_INVENTORY_SQL, INVENTORY_COLUMNS +
+                "FROM items i JOIN inventory inv ON i.id = inv.item WHERE i.id IN "),
+        DISTRIBUTORS("distributors", ALL_DISTRIBUTORS_SQL, "SELECT id, name FROM distributors WHERE id IN ");
+
+        public final String key;
+        final String allSql;
+        final String byIdSql;
+
+        SyncList(String key, String allSql, String byIdSql) {
+            this.key = key;
+            this.allSql = allSql;
+            this.byIdSql = byIdSql;
+        }
+
+        public static SyncList fromKey(String key) {
+            for (SyncList list : values()) {
+                if (list.key.equals(key)) {
+                    return list;
+                }
+            }
+            return null;
+        }
+
+        // The list id a change log entry affects, or null if it does not touch this list
+        Long affectedId(String table, long rowId, String data) {
+            switch (this) {
+                case ITEMS:
+                    return table.equals("items") ? rowId : null;
+                case DISTRIBUTORS:
+                    return table.equals("distributors") ? rowId : null;
+                default:
+                    // Inventory rows are listed by item, and show the item's name
+                    if (table.equals("items")) {
+                        return rowId;
+                    }
+                    if (table.equals("inventory")) {
+                        try {
+                            return (Long) ((JSONObject) new JSONParser().parse(data)).get("item");
+                        } catch (ParseException | ClassCastException e) {
+                            return null;
+                        }
+                    }
+                    return null;
+            }
+        }
+    }
+
+    // Changes since a client's version beyond which sync sends whole lists instead
+    private static final int SYNC_MAX_CHANGES = 10000;
+    // Ids per IN (...) lookup
+    private static final int SYNC_ID_CHUNK = 500;
+    /**
+     * Everything a client needs to bring its copies of the given lists up to date.
+     * The version is the change log position the answer reflects; the client passes it back as
+     * since on its next call. For each list the answer holds the rows inserted or updated since
+     * then (upserted) and the ids of rows that left the list (deleted). When since is missing,
+     * unknown, older than the retained log, from before a reset, or too far behind, the answer is
+     * marked full and upserted holds the whole list, which replaces the client's copy.
+     * @param since Version from the client's previous sync, or null for a first sync
+     * @param lists Lists to report on
+     * @return JSON object with version, full, and one entry per list
+     */
+    @SuppressWarnings("unchecked")
+    public static String sync(Long since, List<SyncList> lists) {
+        return readSnapshot(connection -> {
+            JSONObject response = new JSONObject();
+            long version = ChangeFeed.lastSeq(connection);
+            Map<SyncList, Set<Long>> changed = since == null ? null : changedIds(connection, since, version, lists);
+            response.put("version", version);
+            response.put("full", changed == null);
+            for (SyncList list : lists) {
+                response.put(list.key, changed == null ? fullList(connection, list) : listDelta(connection, list, changed.get(list)));
+            }
+            return response.toJSONString();
+        });
+    }
+
+    // Ids each list has to resend, or null when the log cannot answer for the client's version
+    private static Map<SyncList, Set<Long>> changedIds(Connection connection, long since, long version,
+                                                      List<SyncList> lists) throws SQLException {
+        Map<SyncList, Set<Long>> changed = new LinkedHashMap<>();
+        for (SyncList list : lists) {
+            changed.put(list, new LinkedHashSet<>());
+        }
+        if (since == version) {
+            return changed;
+        }
+        if (since > version) {
             return null;
         }
+        try (PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT seq, table_name, op, row_id, data FROM change_log WHERE seq > ? AND seq <= ? ORDER BY seq LIMIT ?")) {
+            pstmt.setLong(1, since);
+            pstmt.setLong(2, version);
+            pstmt.setInt(3, SYNC_MAX_CHANGES + 1);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                int count = 0;
+                boolean first = true;
+                while (rs.next()) {
+                    // A gap right after since means the entries were pruned; a reset invalidates everything
+                    if ((first && rs.getLong(1) != since + 1) || RESET_OP.equals(rs.getString(3))
+                            || ++count > SYNC_MAX_CHANGES) {
+                        return null;
+                    }
+                    first = false;
+                    for (SyncList list : lists) {
+                        Long id = list.affectedId(rs.getString(2), rs.getLong(4), rs.getString(5));
+                        if (id != null) {
+                            changed.get(list).add(id);
+                        }
+                    }
+                }
+                return first ? null : changed;
+            }
+        }
     }
-    
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject fullList(Connection connection, SyncList list) throws SQLException {
+        JSONObject delta = new JSONObject();
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(list.allSql)) {
+            delta.put("upserted", convertResultSetToJson(rs));
+        }
+        delta.put("deleted", new JSONArray());
+        return delta;
+    }
+
+    // Current rows for the changed ids; ids with no row have left the list
+    @SuppressWarnings("unchecked")
+    private static JSONObject listDelta(Connection connection, SyncList list, Set<Long> ids) throws SQLException {
+        JSONArray upserted = new JSONArray();
+        Set<Long> deleted = new LinkedHashSet<>(ids);
+        List<Long> pending = new ArrayList<>(ids);
+        for (int start = 0; start < pending.size(); start += SYNC_ID_CHUNK) {
+            List<Long> chunk = pending.subList(start, Math.min(pending.size(), start + SYNC_ID_CHUNK));
+            String sql = list.byIdSql + "(" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstmt.setLong(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    JSONArray rows = convertResultSetToJson(rs);
+                    for (Object row : rows) {
+                        deleted.remove(((Number) ((JSONObject) row).get("id")).longValue());
+                    }
+                    upserted.addAll(rows);
+                }
+            }
+        }
+        JSONArray deletedIds = new JSONArray();
+        deletedIds.addAll(deleted);
+        JSONObject delta = new JSONObject();
+        delta.put("upserted", upserted);
+        delta.put("deleted", deletedIds);
+        return delta;
+    }
+
+    // ================ PRICE HISTORY METHODS ================
+    /**
+     * The distributor catalog as it stood at a given time: every price in effect then, with the
+     * interval it was valid for (valid_to null while it is still current).
+     * @param asOf Time in epoch milliseconds
+     * @param distributorId Only this distributor's prices, or null for all
+     * @param itemId Only this item's prices, or null for all
+     * @return JSON array of prices ordered by distributor and item
+     */
+    public static String getCatalogAsOf(long asOf, Integer distributorId, Integer itemId) {
+        return readSnapshot(connection -> {
+            StringBuilder sql = new StringBuilder(PRICES_AS_OF_SQL);
+            if (distributorId != null) sql.append("AND h.distributor = ? ");
+            if (itemId != null) sql.append("AND h.item = ? ");
+            sql.append("ORDER BY h.distributor, h.item");
+            try (PreparedStatement pstmt = connection.prepareStatement(sql.toString())) {
+                int index = bindAsOf(pstmt, asOf);
+                if (distributorId != null) pstmt.setInt(index++, distributorId);
+                if (itemId != null) pstmt.setInt(index, itemId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return convertResultSetToJson(rs).toJSONString();
+                }
+            }
+        });
+    }
+
+    /**
+     * How an item's price moved at each distributor between two times: every price in effect at
+     * some point in the range, grouped by distributor, oldest first.
+     * @param itemId Item to report on
+     * @param from Start of the range in epoch milliseconds
+     * @param to End of the range in epoch milliseconds
+     * @return JSON object with one entry per distributor holding its prices and their validity intervals
+     */
+    @SuppressWarnings("unchecked")
+    public static String getPriceTrend(int itemId, long from, long to) {
+        return readSnapshot(connection -> {
+            JSONArray distributors = new JSONArray();
+            try (PreparedStatement pstmt = connection.prepareStatement(PRICE_TREND_SQL)) {
+                pstmt.setInt(1, itemId);
+                pstmt.setLong(2, to);
+                pstmt.setLong(3, from);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    JSONObject current = null;
+                    while (rs.next()) {
+                        int distributorId = rs.getInt(1);
+                        if (current == null || ((Number) current.get("id")).intValue() != distributorId) {
+                            current = new JSONObject();
+                            current.put("id", distributorId);
+                            current.put("name", rs.getString(2));
+                            current.put("prices", new JSONArray());
+                            distributors.add(current);
+                        }
+                        JSONObject price = new JSONObject();
+                        price.put("cost", rs.getDouble(3));
+                        price.put("valid_from", rs.getLong(4));
+                        long validTo = rs.getLong(5);
+                        price.put("valid_to", rs.wasNull() ? null : validTo);
+                        ((JSONArray) current.get("prices")).add(price);
+                    }
+                }
+            }
+            JSONObject trend = new JSONObject();
+            trend.put("item", itemId);
+            trend.put("from", from);
+            trend.put("to", to);
+            trend.put("distributors", distributors);
+            return trend.toJSONString();
+        });
+    }
+
+    // Bind the four time parameters of PRICES_AS_OF_SQL and return the next parameter index
+    private static int bindAsOf(PreparedStatement pstmt, long asOf) throws SQLException {
+        long indexTime = Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE,
+                Math.floorDiv(asOf, 1000) - SchemaMigrations.INTERVAL_EPOCH_SECONDS));
+        pstmt.setLong(1, indexTime);
+        pstmt.setLong(2, indexTime);
+        pstmt.setLong(3, asOf);
+        pstmt.setLong(4, asOf);
+        return 5;
+    }
+
+    // ================ SNAPSHOT READS ================
+    // A read that needs several statements to agree with each other
+    private interface SnapshotRead {
+        String read(Connection connection) throws SQLException;
+    }
+
+    // A read that must not see uncommitted data
+    private interface CommittedRead<T> {
+        T read(Connection connection) throws SQLException;
+    }
+
+    // Idle read connections of the file. They are never the writer's connection, so a read on one
+    // sees only committed data and never a write batch in progress, which may still roll back.
+    private static final Queue<Connection> snapshotConnections = new ConcurrentLinkedQueue<>();
+    // Bumped when the database is rebuilt or restored, so connections opened before are dropped
+    private static final AtomicInteger snapshotConnectionGeneration = new AtomicInteger();
+
+    // Each statement runs in a read transaction of its own
+    private static <T> T readCommitted(CommittedRead<T> read) throws SQLException {
+        int generation = snapshotConnectionGeneration.get();
+        Connection connection = snapshotConnections.poll();
+        boolean reusable = false;
+        try {
+            if (connection == null) {
+                connection = openConnection(connectionString);
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("PRAGMA query_only = ON");
+                }
+            }
+            T result = read.read(connection);
+            reusable = true;
+            return result;
+        } finally {
+            if (connection != null) {
+                if (reusable && generation == snapshotConnectionGeneration.get()) {
+                    snapshotConnections.add(connection);
+                } else {
+                    try {
+                        connection.close();
+                    } catch (SQLException e) {
+                        System.out.println(e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    // All statements run in one read transaction
+    private static String readSnapshot(SnapshotRead read) {
+        try {
+            return readCommitted(connection -> {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("BEGIN");
+                    try {
+                        return read.read(connection);
+                    } finally {
+                        stmt.execute("COMMIT");
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+            return "{\"success\": false, \"message\": \"Database error: " + e.getMessage() + "\"}";
+        }
+    }
+
+    // The database was rebuilt or restored: drop idle connections, and those in use once they are returned
+    private static void closeSnapshotConnections() {
+        snapshotConnectionGeneration.incrementAndGet();
+        Connection idle;
+        while ((idle = snapshotConnections.poll()) != null) {
+            try {
+                idle.close();
+            } catch (SQLException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    // ================ STOCK HISTORY METHODS ================
+    // Raw points one history query may return; longer ranges must be downsampled
+    public static final int HISTORY_MAX_RAW_POINTS = 100000;
+    // Buckets one downsampled query may return; every bucket can be a point of its own
+    public static final int HISTORY_MAX_BUCKETS = 10000;
+
+    /**
+     * Set the length of the time partitions stock history is compacted into
+     * @param partitionMs Partition length in milliseconds
+     */
+    public static void setStockHistoryPartition(long partitionMs) {
+        StockHistory.setPartitionMs(partitionMs);
+    }
+
+    /**
+     * Stock levels recorded for an item between two times, inclusive.
+     * @param itemId Item to report on
+     * @param from Start of the range in epoch milliseconds
+     * @param to End of the range in epoch milliseconds
+     * @param bucketMs Bucket length for a downsampled answer (min, max and mean per bucket), or 0 for every point
+     * @return JSON object with the points or buckets, oldest first; a failure if the range holds more than
+     *         HISTORY_MAX_RAW_POINTS points, or spans more than HISTORY_MAX_BUCKETS buckets
+     */
+    public static String getStockHistory(int itemId, long from, long to, long bucketMs) {
+        // Buckets are aligned to the epoch, so a range can touch one more than its length suggests
+        long minBucketMs = Math.max(1, (to - from) / (HISTORY_MAX_BUCKETS - 1) + 1);
+        if (bucketMs > 0 && Math.floorDiv(to, bucketMs) - Math.floorDiv(from, bucketMs) >= HISTORY_MAX_BUCKETS) {
+            return "{\"success\": false, \"message\": \"More than " + HISTORY_MAX_BUCKETS
+                    + " buckets in range. Use a bucket of at least " + minBucketMs + " ms or a shorter range\"}";
+        }
+        return readSnapshot(connection -> {
+            if (bucketMs > 0) {
+                return StockHistory.downsampled(connection, itemId, from, to, bucketMs);
+            }
+            String raw = StockHistory.raw(connection, itemId, from, to, HISTORY_MAX_RAW_POINTS);
+            return raw != null ? raw : "{\"success\": false, \"message\": \"More than " + HISTORY_MAX_RAW_POINTS
+                    + " points in range. Use a bucket of at least " + minBucketMs + " ms or a shorter range\"}";
+        });
+    }
+
+    /**
+     * Move stock history points from finished partitions into encoded blocks, one bounded write
+     * batch at a time so other writes keep flowing
+     * @return the number of points moved
+     */
+    public static int compactStockHistory() {
+        int total = 0;
+        while (true) {
+            String moved = writeQueue.submit(() -> {
+                try {
+                    return String.valueOf(StockHistory.compact(conn, System.currentTimeMillis()));
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Database error: " + e.getMessage(), e);
+                }
+            });
+            int count = Integer.parseInt(moved);
+            total += count;
+            if (count < StockHistory.COMPACT_BATCH) {
+                return total;
+            }
+        }
+    }
+
+    // ================ INVENTORY VALUATION METHODS ================
+    /**
+     * Schema version, applied migrations and whether the hot queries still use their indexes
+     * @return JSON object from SchemaMigrations.status, or a failure
+     */
+    public static String getSchemaStatus() {
+        return readSnapshot(connection -> SchemaMigrations.status(connection).toJSONString());
+    }
+
+    /**
+     * Inventory totals, utilization and value at the cheapest and at the average distributor
+     * cost, read from the running aggregates that every inventory and price write maintains
+     * @return JSON object of the totals
+     */
+    public static String getInventorySummary() {
+        return readSnapshot(connection -> InventoryValuation.stored(connection).toJson().toJSONString());
+    }
+
+    /**
+     * The inventory summary next to the same totals recomputed from inventory and distributor
+     * prices, both from one snapshot. If they disagree the running aggregates are rebuilt.
+     * @return JSON object with summary, recomputed, consistent, recompute_ms and repaired
+     */
+    @SuppressWarnings("unchecked")
+    public static String verifyInventorySummary() {
+        boolean[] consistent = {true};
+        String result = readSnapshot(connection -> {
+            InventoryValuation.Totals stored = InventoryValuation.stored(connection);
+            long start = System.nanoTime();
+            InventoryValuation.Totals recomputed = InventoryValuation.recompute(connection);
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+            consistent[0] = stored.matches(recomputed);
+            JSONObject json = new JSONObject();
+            json.put("summary", stored.toJson());
+            json.put("recomputed", recomputed.toJson());
+            json.put("consistent", consistent[0]);
+            json.put("recompute_ms", elapsedMs);
+            json.put("repaired", false);
+            return json.toJSONString();
+        });
+        if (consistent[0]) {
+            return result;
+        }
+        // The snapshot's read transaction is over, so the writer is free to replace the aggregates
+        System.out.println("Inventory valuation drifted from a full recompute, rebuilding: " + result);
+        writeQueue.submit(() -> {
+            try {
+                InventoryValuation.rebuild(conn);
+                return "";
+            } catch (SQLException e) {
+                throw new IllegalStateException("Database error: " + e.getMessage(), e);
+            }
+        });
+        return result.replace("\"repaired\":false", "\"repaired\":true");
+    }
+
     // ================ STREAMING METHODS ================
     public static void addStreamingClient(StreamingClient client) {
         // Clean up stale clients before adding new one
@@ -921,9 +2481,11 @@ public class DatabaseManager {
     }
     
     public static void removeStreamingClient(String clientId) {
-        boolean removed = streamingClients.removeIf(client -> client.id.equals(clientId));
-        if (removed) {
-            System.out.println("Removed streaming client: " + clientId + " (Total clients: " + streamingClients.size() + ")");
+        for (StreamingClient client : streamingClients) {
+            if (client.id.equals(clientId) && streamingClients.remove(client)) {
+                client.future.complete(null);
+                System.out.println("Removed streaming client: " + clientId + " (Total clients: " + streamingClients.size() + ")");
+            }
         }
     }
     
@@ -939,6 +2501,7 @@ public class DatabaseManager {
         // Remove stale clients
         for (StreamingClient stale : staleClients) {
             streamingClients.remove(stale);
+            stale.future.complete(null);
             System.out.println("Cleaned up stale client: " + stale.id + " (inactive for " + 
                              ((System.currentTimeMillis() - stale.lastActivity) / 1000) + " seconds)");
         }
@@ -967,6 +2530,7 @@ public class DatabaseManager {
         // Remove dead clients
         for (StreamingClient dead : deadClients) {
             streamingClients.remove(dead);
+            dead.future.complete(null);
             System.out.println("Cleaned up dead client: " + dead.id);
         }
         
@@ -975,20 +2539,122 @@ public class DatabaseManager {
         }
     }
     
+    /**
+     * Send every streaming client a heartbeat, dropping those the send fails for
+     */
+    public static void sendHeartbeat() {
+        if (!streamingClients.isEmpty()) {
+            publishUpdate("event: heartbeat\ndata: {\"timestamp\": " + System.currentTimeMillis() + "}\n\n");
+        }
+    }
+
+    /**
+     * Receive every committed row change, in commit order, on the change tailer thread.
+     * Subscribers must return quickly; they hold up delivery to every other subscriber.
+     * @param subscriber Called with each batch of new changes
+     */
+    public static void subscribeToChanges(Consumer<List<ChangeEvent>> subscriber) {
+        changeFeed.subscribe(subscriber);
+    }
+
+    /**
+     * Drop change log entries that have been delivered, keeping the most recent ones
+     * @param retainRows Number of newest entries to keep
+     * @return the number of entries removed
+     */
+    public static int pruneChangeLog(int retainRows) {
+        String result = writeQueue.submit(() -> {
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "DELETE FROM change_log WHERE seq <= MIN(?, (SELECT MAX(seq) FROM change_log) - ?)")) {
+                pstmt.setLong(1, changeFeed.position());
+                pstmt.setInt(2, Math.max(0, retainRows));
+                return String.valueOf(pstmt.executeUpdate());
+            } catch (SQLException e) {
+                throw new IllegalStateException("Database error: " + e.getMessage(), e);
+            }
+        });
+        return Integer.parseInt(result);
+    }
+
+    // Turn committed changes into events for the streaming clients, in seq order: one per row, except
+    // that a long run of changes to one table (an import, or a cascade delete) is summarised as a single
+    // BULK event. Stock state transitions go out as stock-alert events, one each, and never go into a
+    // BULK event; those raised inside a run go out just before its summary, which carries the run's last seq.
     @SuppressWarnings("unchecked")
-    public static void broadcastUpdate(String eventType, String table, String data) {
+    private static void publishChanges(List<ChangeEvent> delivered) {
         if (streamingClients.isEmpty()) {
             return;
         }
-        
+        int changes = 0;
+        int alerts = 0;
+        int start = 0;
+        while (start < delivered.size()) {
+            ChangeEvent first = delivered.get(start);
+            if (first.isAlert()) {
+                publishUpdate(alertEvent(first));
+                alerts++;
+                start++;
+                continue;
+            }
+            int end = ChangeEvent.runEnd(delivered, start);
+            int rows = 0;
+            for (int i = start; i < end; i++) {
+                if (!delivered.get(i).isAlert()) {
+                    rows++;
+                }
+            }
+            if (rows > BULK_EVENT_THRESHOLD) {
+                ChangeEvent last = delivered.get(end - 1);
+                for (int i = start; i < end; i++) {
+                    if (delivered.get(i).isAlert()) {
+                        publishUpdate(alertEvent(delivered.get(i)));
+                        alerts++;
+                    }
+                }
+                JSONObject summary = new JSONObject();
+                summary.put("count", rows);
+                summary.put("firstSeq", first.seq);
+                summary.put("lastSeq", last.seq);
+                publishUpdate(streamEvent(last.timestamp, last.seq, "BULK", first.table, null, summary.toJSONString()));
+            } else {
+                for (int i = start; i < end; i++) {
+                    ChangeEvent change = delivered.get(i);
+                    if (change.isAlert()) {
+                        publishUpdate(alertEvent(change));
+                        alerts++;
+                    } else {
+                        publishUpdate(streamEvent(change.timestamp, change.seq, change.op, change.table, change.rowId, change.data));
+                    }
+                }
+            }
+            changes += rows;
+            start = end;
+        }
+        System.out.println("Broadcasted " + changes + " changes and " + alerts + " alerts to "
+                + streamingClients.size() + " clients");
+    }
+
+    // A stock-alert event: the inventory row id and the transition, as recorded by the trigger
+    private static String alertEvent(ChangeEvent alert) {
+        return "event: stock-alert\ndata: {\"timestamp\":" + alert.timestamp + ",\"seq\":" + alert.seq
+                + ",\"id\":" + alert.rowId + "," + alert.data.substring(1) + "\n\n";
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String streamEvent(long timestamp, long seq, String eventType, String table, Integer id, String data) {
         JSONObject event = new JSONObject();
-        event.put("timestamp", System.currentTimeMillis());
+        event.put("timestamp", timestamp);
+        event.put("seq", seq);
         event.put("eventType", eventType);
         event.put("table", table);
+        if (id != null) {
+            event.put("id", id);
+        }
         event.put("data", data);
-        
-        String sseData = "data: " + event.toJSONString() + "\n\n";
-        
+        return "event: update\ndata: " + event.toJSONString() + "\n\n";
+    }
+
+    private static void publishUpdate(String sseData) {
         // Remove failed clients
         List<StreamingClient> failedClients = new java.util.ArrayList<>();
         
@@ -1006,9 +2672,6 @@ public class DatabaseManager {
         for (StreamingClient failed : failedClients) {
             removeStreamingClient(failed.id);
         }
-        
-        System.out.println("Broadcasted " + eventType + " update to " + 
-                          (streamingClients.size()) + " clients for table: " + table);
     }
     
     public static int getActiveStreamingClients() {
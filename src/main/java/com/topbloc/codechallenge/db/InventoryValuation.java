@@ -0,0 +1,265 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Inventory totals and valuation, kept as running aggregates so reading them is a single row.
+ *
+ * item_price_stats holds each priced item's cheapest and average distributor cost, and the one
+ * inventory_valuation row holds the totals. Triggers on inventory and distributor_prices adjust
+ * both by the change each write makes, so every write path (the endpoints, imports, cascading
+ * deletes, other cluster instances) keeps them current. A price change re-reads only that item's
+ * prices. recompute() derives the same totals from the base tables to check the running ones.
+ */
+final class InventoryValuation {
+    // Running sums of costs collect rounding error; a full recompute must agree to this relative tolerance
+    private static final double TOLERANCE = 1e-6;
+
+    private static final String SUMMARY_SQL = "SELECT items, units, capacity, unpriced_units, value_cheapest, value_average "
+            + "FROM inventory_valuation WHERE id = 1";
+
+    private InventoryValuation() {}
+
+    /**
+     * Statements that build both tables from the base tables, replacing what they held
+     */
+    static final String[] REBUILD = {
+        "DELETE FROM item_price_stats",
+        "INSERT INTO item_price_stats (item, min_cost, avg_cost) "
+                + "SELECT item, MIN(cost), AVG(cost) FROM distributor_prices GROUP BY item",
+        "INSERT OR REPLACE INTO inventory_valuation "
+                + "(id, items, units, capacity, unpriced_units, value_cheapest, value_average) "
+                + "SELECT 1, COUNT(*), COALESCE(SUM(inv.stock), 0), COALESCE(SUM(inv.capacity), 0), "
+                + "COALESCE(SUM(CASE WHEN s.item IS NULL THEN inv.stock ELSE 0 END), 0), "
+                + "COALESCE(SUM(inv.stock * COALESCE(s.min_cost, 0)), 0), "
+                + "COALESCE(SUM(inv.stock * COALESCE(s.avg_cost, 0)), 0) "
+                + "FROM inventory inv LEFT JOIN item_price_stats s ON s.item = inv.item"
+    };
+
+    /**
+     * Tables, triggers and initial contents, for SchemaMigrations
+     */
+    static String[] migration() {
+        List<String> statements = new ArrayList<>();
+        statements.add("CREATE TABLE IF NOT EXISTS item_price_stats (\n"
+                + "item integer PRIMARY KEY,\n"
+                + "min_cost real NOT NULL,\n"
+                + "avg_cost real NOT NULL\n"
+                + ")");
+        statements.add("CREATE TABLE IF NOT EXISTS inventory_valuation (\n"
+                + "id integer PRIMARY KEY CHECK (id = 1),\n"
+                + "items integer NOT NULL,\n"
+                + "units integer NOT NULL,\n"
+                + "capacity integer NOT NULL,\n"
+                + "unpriced_units integer NOT NULL,\n"
+                + "value_cheapest real NOT NULL,\n"
+                + "value_average real NOT NULL\n"
+                + ")");
+        statements.add("CREATE TRIGGER IF NOT EXISTS valuation_inventory_insert AFTER INSERT ON inventory BEGIN "
+                + "UPDATE inventory_valuation SET " + inventoryDelta(null, "NEW") + " WHERE id = 1; END");
+        statements.add("CREATE TRIGGER IF NOT EXISTS valuation_inventory_update AFTER UPDATE OF item, stock, capacity ON inventory "
+                + "WHEN NEW.stock IS NOT OLD.stock OR NEW.capacity IS NOT OLD.capacity OR NEW.item IS NOT OLD.item BEGIN "
+                + "UPDATE inventory_valuation SET " + inventoryDelta("OLD", "NEW") + " WHERE id = 1; END");
+        statements.add("CREATE TRIGGER IF NOT EXISTS valuation_inventory_delete AFTER DELETE ON inventory BEGIN "
+                + "UPDATE inventory_valuation SET " + inventoryDelta("OLD", null) + " WHERE id = 1; END");
+        statements.add("CREATE TRIGGER IF NOT EXISTS valuation_price_insert AFTER INSERT ON distributor_prices BEGIN "
+                + refreshItem("NEW.item") + "END");
+        statements.add("CREATE TRIGGER IF NOT EXISTS valuation_price_update AFTER UPDATE OF item, cost ON distributor_prices "
+                + "WHEN NEW.cost IS NOT OLD.cost OR NEW.item IS NOT OLD.item BEGIN "
+                + refreshItem("NEW.item") + "END");
+        statements.add("CREATE TRIGGER IF NOT EXISTS valuation_price_move AFTER UPDATE OF item ON distributor_prices "
+                + "WHEN NEW.item IS NOT OLD.item BEGIN "
+                + refreshItem("OLD.item") + "END");
+        statements.add("CREATE TRIGGER IF NOT EXISTS valuation_price_delete AFTER DELETE ON distributor_prices BEGIN "
+                + refreshItem("OLD.item") + "END");
+        for (String statement : REBUILD) {
+            statements.add(statement);
+        }
+        return statements.toArray(new String[0]);
+    }
+
+    // SET clause moving the totals from one inventory row's contribution to another's (either may be absent)
+    private static String inventoryDelta(String removed, String added) {
+        String[] columns = {"items", "units", "capacity", "unpriced_units", "value_cheapest", "value_average"};
+        StringBuilder set = new StringBuilder();
+        for (String column : columns) {
+            if (set.length() > 0) {
+                set.append(", ");
+            }
+            set.append(column).append(" = ").append(column);
+            if (removed != null) {
+                set.append(" - ").append(contribution(column, removed));
+            }
+            if (added != null) {
+                set.append(" + ").append(contribution(column, added));
+            }
+        }
+        return set.toString();
+    }
+
+    // What one inventory row adds to a total, priced by its item's current stats
+    private static String contribution(String column, String row) {
+        String stats = "FROM item_price_stats WHERE item = " + row + ".item";
+        switch (column) {
+            case "items":
+                return "1";
+            case "units":
+                return row + ".stock";
+            case "capacity":
+                return row + ".capacity";
+            case "unpriced_units":
+                return "(CASE WHEN EXISTS(SELECT 1 " + stats + ") THEN 0 ELSE " + row + ".stock END)";
+            case "value_cheapest":
+                return "(" + row + ".stock * COALESCE((SELECT min_cost " + stats + "), 0))";
+            default:
+                return "(" + row + ".stock * COALESCE((SELECT avg_cost " + stats + "), 0))";
+        }
+    }
+
+    // Statements that reprice an item's stock after its prices changed, then store its new stats.
+    // The UPDATE reads the stats as they were before the change, so it applies only the difference.
+    private static String refreshItem(String item) {
+        String stock = "COALESCE((SELECT stock FROM inventory WHERE item = " + item + "), 0)";
+        String prices = "FROM distributor_prices WHERE item = " + item;
+        String stats = "FROM item_price_stats WHERE item = " + item;
+        return "UPDATE inventory_valuation SET "
+                + "unpriced_units = unpriced_units + " + stock + " * ((NOT EXISTS(SELECT 1 " + prices + ")) - (NOT EXISTS(SELECT 1 " + stats + "))), "
+                + "value_cheapest = value_cheapest + " + stock + " * (COALESCE((SELECT MIN(cost) " + prices + "), 0) - COALESCE((SELECT min_cost " + stats + "), 0)), "
+                + "value_average = value_average + " + stock + " * (COALESCE((SELECT AVG(cost) " + prices + "), 0) - COALESCE((SELECT avg_cost " + stats + "), 0)) "
+                + "WHERE id = 1; "
+                + "DELETE FROM item_price_stats WHERE item = " + item + "; "
+                + "INSERT INTO item_price_stats (item, min_cost, avg_cost) "
+                + "SELECT " + item + ", MIN(cost), AVG(cost) " + prices + " HAVING COUNT(*) > 0; ";
+    }
+
+    /**
+     * Inventory totals and value
+     */
+    static final class Totals {
+        long items;
+        long units;
+        long capacity;
+        long unpricedUnits;
+        double valueCheapest;
+        double valueAverage;
+
+        void add(long stock, long rowCapacity, double[] prices) {
+            items++;
+            units += stock;
+            capacity += rowCapacity;
+            if (prices == null) {
+                unpricedUnits += stock;
+            } else {
+                valueCheapest += stock * prices[0];
+                valueAverage += stock * (prices[1] / prices[2]);
+            }
+        }
+
+        void merge(Totals other) {
+            items += other.items;
+            units += other.units;
+            capacity += other.capacity;
+            unpricedUnits += other.unpricedUnits;
+            valueCheapest += other.valueCheapest;
+            valueAverage += other.valueAverage;
+        }
+
+        boolean matches(Totals other) {
+            return items == other.items && units == other.units && capacity == other.capacity
+                    && unpricedUnits == other.unpricedUnits
+                    && close(valueCheapest, other.valueCheapest) && close(valueAverage, other.valueAverage);
+        }
+
+        private static boolean close(double a, double b) {
+            return Math.abs(a - b) <= TOLERANCE * Math.max(1.0, Math.max(Math.abs(a), Math.abs(b)));
+        }
+
+        @SuppressWarnings("unchecked")
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("items", items);
+            json.put("units", units);
+            json.put("capacity", capacity);
+            json.put("utilization", capacity > 0 ? Math.round(units * 10000.0 / capacity) / 10000.0 : null);
+            json.put("unpriced_units", unpricedUnits);
+            json.put("value_at_cheapest", Math.round(valueCheapest * 100) / 100.0);
+            json.put("value_at_average", Math.round(valueAverage * 100) / 100.0);
+            return json;
+        }
+    }
+
+    /**
+     * The running totals
+     */
+    static Totals stored(Connection conn) throws SQLException {
+        Totals totals = new Totals();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(SUMMARY_SQL)) {
+            if (rs.next()) {
+                totals.items = rs.getLong(1);
+                totals.units = rs.getLong(2);
+                totals.capacity = rs.getLong(3);
+                totals.unpricedUnits = rs.getLong(4);
+                totals.valueCheapest = rs.getDouble(5);
+                totals.valueAverage = rs.getDouble(6);
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * The totals computed again from inventory and distributor_prices alone. The rows are read
+     * through the caller's connection, so in the same snapshot as stored() when it is used in
+     * one transaction; the per-item price stats and the totals are then aggregated in parallel.
+     */
+    static Totals recompute(Connection conn) throws SQLException {
+        List<int[]> inventory = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT item, stock, capacity FROM inventory")) {
+            while (rs.next()) {
+                inventory.add(new int[]{rs.getInt(1), rs.getInt(2), rs.getInt(3)});
+            }
+        }
+        List<Integer> priceItems = new ArrayList<>();
+        List<Double> costs = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT item, cost FROM distributor_prices")) {
+            while (rs.next()) {
+                priceItems.add(rs.getInt(1));
+                costs.add(rs.getDouble(2));
+            }
+        }
+
+        // Item -> {min cost, sum of costs, number of prices}
+        Map<Integer, double[]> prices = new ConcurrentHashMap<>();
+        IntStream.range(0, priceItems.size()).parallel().forEach(i -> {
+            double cost = costs.get(i);
+            prices.merge(priceItems.get(i), new double[]{cost, cost, 1},
+                    (a, b) -> new double[]{Math.min(a[0], b[0]), a[1] + b[1], a[2] + b[2]});
+        });
+        return IntStream.range(0, inventory.size()).parallel().collect(Totals::new, (totals, i) -> {
+            int[] row = inventory.get(i);
+            totals.add(row[1], row[2], prices.get(row[0]));
+        }, Totals::merge);
+    }
+
+    /**
+     * Replace the running totals with ones built from the base tables
+     */
+    static void rebuild(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            for (String statement : REBUILD) {
+                stmt.execute(statement);
+            }
+        }
+    }
+}
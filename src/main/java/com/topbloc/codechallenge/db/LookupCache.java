@@ -0,0 +1,163 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of encoded lookup results keyed by one id, such as a distributor's
+ * catalog. Entries are spread over segments that are locked independently, so readers of
+ * different ids rarely contend; each segment evicts its own least recently used entry.
+ *
+ * A result read from the database may be stale by the time it is stored, if a write committed
+ * in between. Callers take a stamp before running the query and hand it to put(), which drops
+ * the result if the id's segment has been invalidated since.
+ */
+final class LookupCache {
+    private static final int SEGMENTS = 16;
+
+    private static final class Segment extends LinkedHashMap<Integer, String> {
+        private static final long serialVersionUID = 1L;
+        private final AtomicLong evictions;
+        private int capacity;
+        // Bumped by every invalidation, see stamp()
+        private long generation;
+
+        Segment(AtomicLong evictions) {
+            super(16, 0.75f, true);
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile int maxEntries;
+
+    LookupCache(int maxEntries) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(evictions);
+        }
+        resize(maxEntries);
+    }
+
+    /**
+     * Change the number of entries kept, evicting the least recently used ones if it shrinks
+     * @param maxEntries Entries kept across all segments; 0 disables the cache
+     */
+    void resize(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        for (int i = 0; i < SEGMENTS; i++) {
+            Segment segment = segments[i];
+            // The remainder goes to the first segments, so the total is exactly maxEntries
+            int capacity = this.maxEntries / SEGMENTS + (i < this.maxEntries % SEGMENTS ? 1 : 0);
+            synchronized (segment) {
+                segment.capacity = capacity;
+                while (segment.size() > capacity) {
+                    segment.remove(segment.keySet().iterator().next());
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the cached result for an id, or null
+     */
+    String get(int id) {
+        if (maxEntries == 0) {
+            return null;
+        }
+        Segment segment = segmentOf(id);
+        String value;
+        synchronized (segment) {
+            value = segment.get(id);
+        }
+        (value != null ? hits : misses).incrementAndGet();
+        return value;
+    }
+
+    /**
+     * Take before reading a result from the database, to pass to put()
+     */
+    long stamp(int id) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            return segment.generation;
+        }
+    }
+
+    /**
+     * Store a result, unless the id's segment was invalidated after the stamp was taken
+     */
+    void put(int id, String value, long stamp) {
+        if (maxEntries == 0) {
+            return;
+        }
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            if (segment.generation == stamp) {
+                segment.put(id, value);
+            }
+        }
+    }
+
+    void invalidate(int id) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            segment.remove(id);
+            segment.generation++;
+        }
+        invalidations.incrementAndGet();
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.generation++;
+            }
+        }
+        invalidations.incrementAndGet();
+    }
+
+    @SuppressWarnings("unchecked")
+    JSONObject stats() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        JSONObject stats = new JSONObject();
+        stats.put("size", size);
+        stats.put("maxEntries", maxEntries);
+        stats.put("hits", hitCount);
+        stats.put("misses", misses.get());
+        stats.put("hitRate", lookups == 0 ? 0.0 : Math.round(hitCount * 1000.0 / lookups) / 1000.0);
+        stats.put("evictions", evictions.get());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+
+    private Segment segmentOf(int id) {
+        // Spread consecutive ids over the segments
+        int hash = id * 0x9E3779B9;
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+}
@@ -0,0 +1,250 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory name index for one table, supporting prefix and typo-tolerant search.
+ * Prefixes are matched against the start of every word through a sorted map; fuzzy
+ * matches are ranked by trigram overlap. Kept current by the DatabaseManager mutations.
+ */
+final class NameSearchIndex {
+    private static final double MIN_SIMILARITY = 0.2;
+
+    private final Map<Integer, String> names = new HashMap<>();
+    private final Map<Integer, String> normalizedNames = new HashMap<>();
+    private final Map<Integer, Integer> trigramCounts = new HashMap<>();
+    // Lower-cased name suffix starting at each word -> ids
+    private final TreeMap<String, Set<Integer>> wordStarts = new TreeMap<>();
+    // Trigram -> ids
+    private final Map<String, Set<Integer>> trigrams = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    void put(int id, String name) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+            String normalized = normalize(name);
+            Set<String> grams = trigramsOf(normalized);
+            names.put(id, name);
+            normalizedNames.put(id, normalized);
+            trigramCounts.put(id, grams.size());
+            for (String key : wordStartKeys(normalized)) {
+                wordStarts.computeIfAbsent(key, k -> new HashSet<>()).add(id);
+            }
+            for (String gram : grams) {
+                trigrams.computeIfAbsent(gram, k -> new HashSet<>()).add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(int id) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            names.clear();
+            normalizedNames.clear();
+            trigramCounts.clear();
+            wordStarts.clear();
+            trigrams.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the best matches for a query: names starting with it first, then names with a word
+     * starting with it, then fuzzy matches by trigram similarity.
+     * @param query Search text
+     * @param limit Maximum number of results
+     * @return JSON array of {id, name, match, score}
+     */
+    @SuppressWarnings("unchecked")
+    JSONArray search(String query, int limit) {
+        String normalized = normalize(query);
+        JSONArray results = new JSONArray();
+        if (normalized.isEmpty() || limit <= 0) {
+            return results;
+        }
+
+        lock.readLock().lock();
+        try {
+            // Only the best `limit` matches of each kind are kept, so a short prefix costs
+            // O(n log limit) rather than a sort of every name it matches
+            Set<Integer> seen = new HashSet<>();
+            TopK<Integer> namePrefix = new TopK<>(limit, this::compareByName);
+            TopK<Integer> wordPrefix = new TopK<>(limit, this::compareByName);
+            SortedMap<String, Set<Integer>> range = wordStarts.subMap(normalized, normalized + Character.MAX_VALUE);
+            for (Set<Integer> ids : range.values()) {
+                for (Integer id : ids) {
+                    if (seen.add(id)) {
+                        if (normalizedNames.get(id).startsWith(normalized)) {
+                            namePrefix.offer(id);
+                        } else {
+                            wordPrefix.offer(id);
+                        }
+                    }
+                }
+            }
+            for (Integer id : namePrefix.sorted()) {
+                if (results.size() >= limit) return results;
+                results.add(toJson(id, "prefix", 1.0));
+            }
+            for (Integer id : wordPrefix.sorted()) {
+                if (results.size() >= limit) return results;
+                results.add(toJson(id, "word", 0.9));
+            }
+
+            // Fill the remaining slots with fuzzy matches
+            Set<String> queryGrams = trigramsOf(normalized);
+            Map<Integer, Integer> shared = new HashMap<>();
+            for (String gram : queryGrams) {
+                Set<Integer> ids = trigrams.get(gram);
+                if (ids != null) {
+                    for (Integer id : ids) {
+                        if (!seen.contains(id)) {
+                            shared.merge(id, 1, Integer::sum);
+                        }
+                    }
+                }
+            }
+            TopK<double[]> fuzzy = new TopK<>(limit - results.size(),
+                    (a, b) -> a[1] != b[1] ? Double.compare(b[1], a[1]) : compareByName((int) a[0], (int) b[0]));
+            for (Map.Entry<Integer, Integer> candidate : shared.entrySet()) {
+                int nameGrams = trigramCounts.get(candidate.getKey());
+                double similarity = candidate.getValue() / (double) (queryGrams.size() + nameGrams - candidate.getValue());
+                if (similarity >= MIN_SIMILARITY) {
+                    fuzzy.offer(new double[]{candidate.getKey(), similarity});
+                }
+            }
+            for (double[] match : fuzzy.sorted()) {
+                results.add(toJson((int) match[0], "fuzzy", Math.round(match[1] * 1000) / 1000.0));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void removeLocked(int id) {
+        names.remove(id);
+        trigramCounts.remove(id);
+        String normalized = normalizedNames.remove(id);
+        if (normalized == null) {
+            return;
+        }
+        for (String key : wordStartKeys(normalized)) {
+            removePosting(wordStarts, key, id);
+        }
+        for (String gram : trigramsOf(normalized)) {
+            removePosting(trigrams, gram, id);
+        }
+    }
+
+    private static void removePosting(Map<String, Set<Integer>> index, String key, int id) {
+        Set<Integer> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private int compareByName(int a, int b) {
+        String nameA = names.get(a);
+        String nameB = names.get(b);
+        if (nameA.length() != nameB.length()) {
+            return Integer.compare(nameA.length(), nameB.length());
+        }
+        return nameA.compareToIgnoreCase(nameB);
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject toJson(int id, String match, double score) {
+        JSONObject obj = new JSONObject();
+        obj.put("id", id);
+        obj.put("name", names.get(id));
+        obj.put("match", match);
+        obj.put("score", score);
+        return obj;
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT).trim().replaceAll("\\s+", " ");
+    }
+
+    private static List<String> wordStartKeys(String normalized) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < normalized.length(); i++) {
+            if (i == 0 || (!Character.isLetterOrDigit(normalized.charAt(i - 1)) && Character.isLetterOrDigit(normalized.charAt(i)))) {
+                keys.add(normalized.substring(i));
+            }
+        }
+        return keys;
+    }
+
+    private static Set<String> trigramsOf(String normalized) {
+        Set<String> grams = new HashSet<>();
+        String padded = "  " + normalized + " ";
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + 3));
+        }
+        return grams;
+    }
+
+    /**
+     * The k smallest of the offered values under an order, held in a heap whose head is the
+     * worst one kept.
+     */
+    private static final class TopK<T> {
+        private final int k;
+        private final Comparator<T> order;
+        private final PriorityQueue<T> heap;
+
+        TopK(int k, Comparator<T> order) {
+            this.k = k;
+            this.order = order;
+            this.heap = new PriorityQueue<>(Math.max(1, Math.min(k, 64)), order.reversed());
+        }
+
+        void offer(T value) {
+            if (heap.size() < k) {
+                heap.add(value);
+            } else if (k > 0 && order.compare(value, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(value);
+            }
+        }
+
+        List<T> sorted() {
+            List<T> values = new ArrayList<>(heap);
+            values.sort(order);
+            return values;
+        }
+    }
+}
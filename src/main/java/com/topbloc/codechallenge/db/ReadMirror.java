@@ -0,0 +1,176 @@
+package com.topbloc.codechallenge.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Optional in-memory copy of challenge.db that serves read queries.
+ * Mutations are applied to the durable file first and replayed here once they have committed;
+ * the mirror is compared against the file every few writes and rebuilt from it on any mismatch
+ * or failure. A committed batch is replayed while mirror reads are held off, so a read sees
+ * either none of the batch or all of it.
+ */
+final class ReadMirror {
+
+    // Private constructor to prevent instantiation
+    private ReadMirror() {}
+
+    private static volatile Connection mirror;
+    private static volatile boolean enabled;
+    private static int verifyEvery;
+    private static final AtomicInteger writesSinceVerify = new AtomicInteger();
+    // Read-locked by every query on the mirror, write-locked while a batch is replayed or the
+    // previous mirror is closed
+    private static final ReentrantReadWriteLock replayLock = new ReentrantReadWriteLock();
+
+    static void enable(int verifyEveryWrites) {
+        enabled = true;
+        verifyEvery = Math.max(1, verifyEveryWrites);
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the mirror connection, or null when the mirror is disabled or not loaded
+     */
+    static Connection connection() {
+        return enabled ? mirror : null;
+    }
+
+    /**
+     * @return the lock to hold while querying the mirror
+     */
+    static Lock readLock() {
+        return replayLock.readLock();
+    }
+
+    /**
+     * Hold off mirror reads until endReplay(). Call on the writer thread once a batch has
+     * committed, before its writes are replayed.
+     */
+    static void beginReplay() {
+        replayLock.writeLock().lock();
+    }
+
+    static void endReplay() {
+        replayLock.writeLock().unlock();
+    }
+
+    /**
+     * (Re)load the mirror from the durable database file. The previous mirror stays in
+     * service until the new one is fully loaded.
+     * @param dbPath Absolute path of the durable database file
+     */
+    static synchronized void rebuild(String dbPath) {
+        if (!enabled) {
+            return;
+        }
+        Connection previous = mirror;
+        try {
+            Connection fresh = DatabaseManager.openConnection("jdbc:sqlite::memory:");
+            fresh.createStatement().executeUpdate("restore from '" + dbPath + "'");
+            dropCaptureTriggers(fresh);
+            mirror = fresh;
+            writesSinceVerify.set(0);
+            System.out.println("Read mirror loaded from " + dbPath);
+        } catch (SQLException e) {
+            // Serve reads from the file until the next successful rebuild
+            mirror = null;
+            System.out.println("Read mirror load failed, reading from file: " + e.getMessage());
+        }
+        if (previous != null) {
+            // Wait for queries still running on the previous mirror
+            replayLock.writeLock().lock();
+            try {
+                previous.close();
+            } catch (SQLException e) {
+                System.out.println(e.getMessage());
+            } finally {
+                replayLock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Replayed writes must not be captured a second time - every trigger in the schema only
+    // feeds change_log or the stock and price histories, which are read from the file only
+    private static void dropCaptureTriggers(Connection connection) throws SQLException {
+        List<String> triggers = new ArrayList<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'trigger'")) {
+            while (rs.next()) {
+                triggers.add(rs.getString(1));
+            }
+        }
+        try (Statement stmt = connection.createStatement()) {
+            for (String trigger : triggers) {
+                stmt.execute("DROP TRIGGER " + trigger);
+            }
+        }
+    }
+
+    /**
+     * Replay a mutation that has already been committed to the durable file.
+     * @param dbPath Absolute path of the durable database file, used when rebuilding
+     * @param sql Mutation statement
+     * @param params Statement parameters
+     */
+    static void write(String dbPath, String sql, Object... params) {
+        Connection target = connection();
+        if (target == null) {
+            return;
+        }
+        try (PreparedStatement pstmt = target.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                pstmt.setObject(i + 1, params[i]);
+            }
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.out.println("Read mirror write failed, rebuilding: " + e.getMessage());
+            rebuild(dbPath);
+            return;
+        }
+        writesSinceVerify.incrementAndGet();
+    }
+
+    /**
+     * Run the consistency check if enough writes have been replayed since the last one. Call once
+     * a batch has been replayed in full, when the mirror should match the file exactly.
+     */
+    static void verifyIfDue(Connection source, String dbPath) {
+        if (connection() != null && writesSinceVerify.get() >= verifyEvery) {
+            verify(source, dbPath);
+        }
+    }
+
+    /**
+     * Compare the mirror against the durable file and rebuild it if they differ.
+     * @return true if the mirror matched
+     */
+    static boolean verify(Connection source, String dbPath) {
+        Connection target = connection();
+        if (target == null) {
+            return false;
+        }
+        writesSinceVerify.set(0);
+        try {
+            if (DatabaseManager.databaseFingerprint(source).equals(DatabaseManager.databaseFingerprint(target))) {
+                return true;
+            }
+            System.out.println("Read mirror out of sync with " + dbPath + ", rebuilding");
+        } catch (SQLException e) {
+            System.out.println("Read mirror check failed, rebuilding: " + e.getMessage());
+        }
+        rebuild(dbPath);
+        return false;
+    }
+}
@@ -0,0 +1,383 @@
+package com.topbloc.codechallenge.db;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Versioned, idempotent schema migrations applied on top of the base schema.
+ * Each migration runs once in its own transaction and is recorded in the schema_version table.
+ */
+final class SchemaMigrations {
+
+    // Private constructor to prevent instantiation
+    private SchemaMigrations() {}
+
+    private static final class Migration {
+        final int version;
+        final String description;
+        final String[] statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+
+    // Name prefix of the change-capture triggers
+    static final String CHANGE_TRIGGER_PREFIX = "change_log_";
+
+    // The price interval index holds whole seconds since this epoch (2020-01-01) in 32-bit integers,
+    // lower bounds rounded down and upper bounds up; a price that is still current ends at the maximum
+    static final long INTERVAL_EPOCH_SECONDS = 1577836800L;
+    static final String OPEN_INTERVAL_END = "2147483647";
+
+    // Current time in epoch milliseconds, as an SQL expression
+    static final String NOW_MS_SQL = "CAST((julianday('now') - 2440587.5) * 86400000 AS integer)";
+
+    // Append new migrations at the end with the next version number - never edit an applied one
+    private static final List<Migration> MIGRATIONS = new ArrayList<>();
+    static {
+        MIGRATIONS.add(new Migration(1, "Indexes for item/distributor price lookups and stock filters",
+                "CREATE INDEX IF NOT EXISTS idx_distributor_prices_item_cost ON distributor_prices (item, cost, distributor)",
+                "CREATE INDEX IF NOT EXISTS idx_distributor_prices_distributor ON distributor_prices (distributor, item, cost)",
+                "CREATE INDEX IF NOT EXISTS idx_inventory_stock ON inventory (stock)"));
+        MIGRATIONS.add(new Migration(2, "Change log with capture triggers on the four tables", concat(
+                new String[]{"CREATE TABLE IF NOT EXISTS change_log (\n"
+                        + "seq integer PRIMARY KEY AUTOINCREMENT,\n"
+                        + "table_name text NOT NULL,\n"
+                        + "op text NOT NULL,\n"
+                        + "row_id integer NOT NULL,\n"
+                        + "data text NOT NULL,\n"
+                        + "changed_at integer NOT NULL DEFAULT (" + NOW_MS_SQL + ")\n"
+                        + ")"},
+                changeTriggers("items", "id", "name"),
+                changeTriggers("inventory", "id", "item", "stock", "capacity"),
+                changeTriggers("distributors", "id", "name"),
+                changeTriggers("distributor_prices", "id", "distributor", "item", "cost"))));
+        MIGRATIONS.add(new Migration(3, "Stock history: append-only head table, encoded blocks and capture triggers",
+                "CREATE TABLE IF NOT EXISTS stock_history (\n"
+                        + "item integer NOT NULL,\n"
+                        + "ts integer NOT NULL,\n"
+                        + "stock integer NOT NULL\n"
+                        + ")",
+                "CREATE INDEX IF NOT EXISTS idx_stock_history_item_ts ON stock_history (item, ts)",
+                "CREATE TABLE IF NOT EXISTS stock_history_blocks (\n"
+                        + "item integer NOT NULL,\n"
+                        + "block_start integer NOT NULL,\n"
+                        + "first_ts integer NOT NULL,\n"
+                        + "last_ts integer NOT NULL,\n"
+                        + "points integer NOT NULL,\n"
+                        + "min_stock integer NOT NULL,\n"
+                        + "max_stock integer NOT NULL,\n"
+                        + "sum_stock integer NOT NULL,\n"
+                        + "data blob NOT NULL,\n"
+                        + "PRIMARY KEY (item, block_start)\n"
+                        + ") WITHOUT ROWID",
+                "CREATE TRIGGER IF NOT EXISTS stock_history_insert AFTER INSERT ON inventory BEGIN "
+                        + "INSERT INTO stock_history (item, ts, stock) VALUES (NEW.item, " + NOW_MS_SQL + ", NEW.stock); END",
+                "CREATE TRIGGER IF NOT EXISTS stock_history_update AFTER UPDATE OF item, stock ON inventory "
+                        + "WHEN NEW.stock IS NOT OLD.stock OR NEW.item IS NOT OLD.item BEGIN "
+                        + "INSERT INTO stock_history (item, ts, stock) VALUES (NEW.item, " + NOW_MS_SQL + ", NEW.stock); END",
+                // Start every existing item's series at its current stock
+                "INSERT INTO stock_history (item, ts, stock) SELECT item, " + NOW_MS_SQL + ", stock FROM inventory"));
+        MIGRATIONS.add(new Migration(4, "Consumption rate estimate on inventory",
+                "ALTER TABLE inventory ADD COLUMN consumption_rate real NOT NULL DEFAULT 0",
+                "ALTER TABLE inventory ADD COLUMN rate_updated_at integer",
+                "UPDATE inventory SET rate_updated_at = " + NOW_MS_SQL));
+        String closeOpenPrice = "UPDATE price_history SET valid_to = " + NOW_MS_SQL
+                + " WHERE distributor = OLD.distributor AND item = OLD.item AND valid_to IS NULL; ";
+        String openPrice = "INSERT INTO price_history (distributor, item, cost, valid_from) "
+                + "VALUES (NEW.distributor, NEW.item, NEW.cost, " + NOW_MS_SQL + "); ";
+        MIGRATIONS.add(new Migration(5, "Distributor price history with validity intervals and an interval index",
+                "CREATE TABLE IF NOT EXISTS price_history (\n"
+                        + "id integer PRIMARY KEY,\n"
+                        + "distributor integer NOT NULL,\n"
+                        + "item integer NOT NULL,\n"
+                        + "cost real NOT NULL,\n"
+                        + "valid_from integer NOT NULL,\n"
+                        + "valid_to integer\n"
+                        + ")",
+                "CREATE INDEX IF NOT EXISTS idx_price_history_item ON price_history (item, valid_from)",
+                "CREATE INDEX IF NOT EXISTS idx_price_history_open ON price_history (distributor, item) WHERE valid_to IS NULL",
+                // One-dimensional R*Tree over [valid_from, valid_to]. Its bounds are coarser than the
+                // millisecond columns, so lookups return a superset that is filtered on price_history
+                "CREATE VIRTUAL TABLE IF NOT EXISTS price_history_intervals USING rtree_i32(id, valid_from, valid_to)",
+                "CREATE TRIGGER IF NOT EXISTS price_history_intervals_insert AFTER INSERT ON price_history BEGIN "
+                        + "INSERT INTO price_history_intervals (id, valid_from, valid_to) "
+                        + "VALUES (NEW.id, " + intervalStart("NEW.valid_from") + ", " + intervalEnd("NEW.valid_to") + "); END",
+                "CREATE TRIGGER IF NOT EXISTS price_history_intervals_close AFTER UPDATE OF valid_to ON price_history BEGIN "
+                        + "UPDATE price_history_intervals SET valid_to = " + intervalEnd("NEW.valid_to") + " "
+                        + "WHERE id = NEW.id; END",
+                // An insert also closes any open version of the pair, which covers INSERT OR REPLACE
+                "CREATE TRIGGER IF NOT EXISTS price_history_insert AFTER INSERT ON distributor_prices BEGIN "
+                        + closeOpenPrice.replace("OLD.", "NEW.") + openPrice + "END",
+                "CREATE TRIGGER IF NOT EXISTS price_history_update AFTER UPDATE OF distributor, item, cost ON distributor_prices "
+                        + "WHEN NEW.cost IS NOT OLD.cost OR NEW.distributor IS NOT OLD.distributor OR NEW.item IS NOT OLD.item BEGIN "
+                        + closeOpenPrice + openPrice + "END",
+                "CREATE TRIGGER IF NOT EXISTS price_history_delete AFTER DELETE ON distributor_prices BEGIN "
+                        + closeOpenPrice + "END",
+                // Current prices are known from the time of the migration on
+                "INSERT INTO price_history (distributor, item, cost, valid_from) "
+                        + "SELECT distributor, item, cost, " + NOW_MS_SQL + " FROM distributor_prices"));
+        MIGRATIONS.add(new Migration(6, "Running inventory totals and valuation with per-item price stats",
+                InventoryValuation.migration()));
+        String alertData = "json_object('item', NEW.item, 'from', %s, 'to', " + stockState("NEW") + ", "
+                + "'stock', NEW.stock, 'capacity', NEW.capacity, 'low_threshold', NEW.low_threshold)";
+        String logAlert = "INSERT INTO change_log (table_name, op, row_id, data) VALUES ('inventory', '"
+                + DatabaseManager.ALERT_OP + "', NEW.id, " + alertData + "); ";
+        MIGRATIONS.add(new Migration(7, "Per-item low stock thresholds and stock state transition alerts",
+                "ALTER TABLE inventory ADD COLUMN low_threshold real NOT NULL DEFAULT " + DatabaseManager.DEFAULT_LOW_STOCK_THRESHOLD,
+                // A new row only raises an alert when it starts out of the ok state
+                "CREATE TRIGGER IF NOT EXISTS stock_alert_insert AFTER INSERT ON inventory "
+                        + "WHEN " + stockState("NEW") + " <> 'ok' BEGIN "
+                        + String.format(logAlert, "NULL") + "END",
+                "CREATE TRIGGER IF NOT EXISTS stock_alert_update AFTER UPDATE OF stock, capacity, low_threshold ON inventory "
+                        + "WHEN " + stockState("NEW") + " <> " + stockState("OLD") + " BEGIN "
+                        + String.format(logAlert, stockState("OLD")) + "END"));
+        // Migrations 4 and 7 added inventory columns the migration 2 triggers do not capture, so an
+        // update to only those columns reached subscribers as an event that showed no change
+        MIGRATIONS.add(new Migration(8, "Capture every inventory column in change_log", concat(
+                new String[]{"DROP TRIGGER IF EXISTS " + CHANGE_TRIGGER_PREFIX + "inventory_insert",
+                        "DROP TRIGGER IF EXISTS " + CHANGE_TRIGGER_PREFIX + "inventory_update",
+                        "DROP TRIGGER IF EXISTS " + CHANGE_TRIGGER_PREFIX + "inventory_delete"},
+                changeTriggers("inventory", "id", "item", "stock", "capacity",
+                        "consumption_rate", "rate_updated_at", "low_threshold"))));
+    }
+
+    /**
+     * Stock state of an inventory row: out (no stock), overstocked (stock above capacity), low
+     * (stock below its low_threshold fraction of capacity) or ok
+     * @param row NEW, OLD or a table alias
+     */
+    static String stockState(String row) {
+        return "(CASE WHEN " + row + ".stock = 0 THEN 'out' "
+                + "WHEN " + row + ".stock > " + row + ".capacity THEN 'overstocked' "
+                + "WHEN " + row + ".stock < " + row + ".capacity * " + row + ".low_threshold THEN 'low' "
+                + "ELSE 'ok' END)";
+    }
+
+    /**
+     * Triggers that append every insert, update and delete on a table to change_log, with the
+     * row (the new values, or the old ones for a delete) as a JSON object of its columns.
+     * @param table Table to capture
+     * @param columns Columns of the table, id first
+     */
+    static String[] changeTriggers(String table, String... columns) {
+        String[][] events = {{"INSERT", "NEW"}, {"UPDATE", "NEW"}, {"DELETE", "OLD"}};
+        String[] triggers = new String[events.length];
+        for (int i = 0; i < events.length; i++) {
+            String op = events[i][0];
+            String row = events[i][1];
+            StringBuilder json = new StringBuilder("json_object(");
+            for (int c = 0; c < columns.length; c++) {
+                if (c > 0) json.append(", ");
+                json.append("'").append(columns[c]).append("', ").append(row).append(".").append(columns[c]);
+            }
+            json.append(")");
+            triggers[i] = "CREATE TRIGGER IF NOT EXISTS " + CHANGE_TRIGGER_PREFIX + table + "_" + op.toLowerCase()
+                    + " AFTER " + op + " ON " + table + " BEGIN "
+                    + "INSERT INTO change_log (table_name, op, row_id, data) VALUES ('" + table + "', '" + op + "', "
+                    + row + ".id, " + json + "); END";
+        }
+        return triggers;
+    }
+
+    // Interval index bounds for a millisecond time column
+    private static String intervalStart(String column) {
+        return "(" + column + " / 1000 - " + INTERVAL_EPOCH_SECONDS + ")";
+    }
+
+    private static String intervalEnd(String column) {
+        return "COALESCE((" + column + " + 999) / 1000 - " + INTERVAL_EPOCH_SECONDS + ", " + OPEN_INTERVAL_END + ")";
+    }
+
+    private static String[] concat(String[]... parts) {
+        List<String> all = new ArrayList<>();
+        for (String[] part : parts) {
+            all.addAll(Arrays.asList(part));
+        }
+        return all.toArray(new String[0]);
+    }
+
+    /**
+     * Apply every migration newer than the recorded schema version.
+     * Does nothing if the base tables have not been created yet.
+     * @param conn Open connection to the database
+     * @throws IllegalStateException if a migration fails, leaving the schema partly migrated, or if a
+     *         hot query no longer uses its index, see verifyQueryPlans
+     */
+    static void migrate(Connection conn) {
+        try {
+            if (!tableExists(conn, "items")) {
+                System.out.println("Base schema not present, deferring migrations");
+                return;
+            }
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (\n"
+                        + "version integer PRIMARY KEY,\n"
+                        + "description text NOT NULL,\n"
+                        + "applied_at integer NOT NULL\n"
+                        + ")");
+            }
+
+            int current = currentVersion(conn);
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version > current) {
+                    apply(conn, migration);
+                }
+            }
+            verifyQueryPlans(conn);
+        } catch (SQLException e) {
+            // Nothing may run against missing tables or triggers
+            throw new IllegalStateException("Schema migration failed: " + e.getMessage(), e);
+        }
+    }
+
+    static int currentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void apply(Connection conn, Migration migration) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement();
+             PreparedStatement record = conn.prepareStatement(
+                     "INSERT INTO schema_version (version, description, applied_at) VALUES (?, ?, ?)")) {
+            for (String sql : migration.statements) {
+                stmt.execute(sql);
+            }
+            record.setInt(1, migration.version);
+            record.setString(2, migration.description);
+            record.setLong(3, System.currentTimeMillis());
+            record.executeUpdate();
+            conn.commit();
+            System.out.println("Applied schema migration " + migration.version + ": " + migration.description);
+        } catch (SQLException e) {
+            conn.rollback();
+            // Another process sharing the database may have applied it first
+            if (currentVersion(conn) >= migration.version) {
+                System.out.println("Schema migration " + migration.version + " was applied by another process");
+                return;
+            }
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static boolean tableExists(Connection conn, String table) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            stmt.setString(1, table);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    // Hot lookup queries and the index each one must be served by
+    private static final String[][] PLAN_EXPECTATIONS = {
+            {DatabaseManager.DISTRIBUTORS_BY_ITEM_SQL, "idx_distributor_prices_item_cost"},
+            {DatabaseManager.CHEAPEST_RESTOCK_SQL, "idx_distributor_prices_item_cost"},
+            {DatabaseManager.ITEMS_BY_DISTRIBUTOR_SQL, "idx_distributor_prices_distributor"},
+            {DatabaseManager.OUT_OF_STOCK_SQL, "idx_inventory_stock"},
+            {DatabaseManager.PRICES_AS_OF_SQL, "VIRTUAL TABLE INDEX 2"},
+            {DatabaseManager.PRICE_TREND_SQL, "idx_price_history_item"}
+    };
+
+    /**
+     * Check that the hot lookup queries are served by their supporting indexes. A query that
+     * stopped using its index fails the check: it would quietly turn into a table scan.
+     * @param conn Open connection to the database
+     * @throws IllegalStateException naming every query whose plan no longer uses its index
+     */
+    static void verifyQueryPlans(Connection conn) throws SQLException {
+        StringBuilder regressions = new StringBuilder();
+        for (String[] expectation : PLAN_EXPECTATIONS) {
+            String plan = explain(conn, expectation[0]);
+            if (!plan.contains(expectation[1])) {
+                regressions.append("\n  query does not use ").append(expectation[1]).append(": ")
+                        .append(expectation[0]).append("\n  plan: ").append(plan);
+            }
+        }
+        if (regressions.length() > 0) {
+            throw new IllegalStateException("Query plan check failed:" + regressions);
+        }
+    }
+
+    /**
+     * Applied migrations and the query plan checks, as reported by GET /schema
+     * @param conn Open connection to the database
+     * @return JSON object with version, latest, pending, migrations, queryPlans and plansOk
+     */
+    @SuppressWarnings("unchecked")
+    static JSONObject status(Connection conn) throws SQLException {
+        int version = currentVersion(conn);
+        int pending = 0;
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version > version) {
+                pending++;
+            }
+        }
+        JSONArray migrations = new JSONArray();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT version, description, applied_at FROM schema_version ORDER BY version")) {
+            while (rs.next()) {
+                JSONObject migration = new JSONObject();
+                migration.put("version", rs.getInt(1));
+                migration.put("description", rs.getString(2));
+                migration.put("applied_at", rs.getLong(3));
+                migrations.add(migration);
+            }
+        }
+        JSONArray plans = new JSONArray();
+        boolean plansOk = true;
+        for (String[] expectation : PLAN_EXPECTATIONS) {
+            String plan = explain(conn, expectation[0]);
+            JSONObject check = new JSONObject();
+            check.put("index", expectation[1]);
+            check.put("used", plan.contains(expectation[1]));
+            check.put("plan", plan);
+            plans.add(check);
+            plansOk &= plan.contains(expectation[1]);
+        }
+        JSONObject status = new JSONObject();
+        status.put("version", version);
+        status.put("latest", MIGRATIONS.get(MIGRATIONS.size() - 1).version);
+        status.put("pending", pending);
+        status.put("migrations", migrations);
+        status.put("queryPlans", plans);
+        status.put("plansOk", plansOk);
+        return status;
+    }
+
+    private static String explain(Connection conn, String sql) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            int params = stmt.getParameterMetaData().getParameterCount();
+            for (int i = 1; i <= params; i++) {
+                stmt.setInt(i, 1);
+            }
+            StringBuilder plan = new StringBuilder();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (plan.length() > 0) plan.append("; ");
+                    plan.append(rs.getString("detail"));
+                }
+            }
+            return plan.toString();
+        }
+    }
+}
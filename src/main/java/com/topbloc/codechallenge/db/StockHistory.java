@@ -0,0 +1,379 @@
+package com.topbloc.codechallenge.db;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only stock history per item.
+ *
+ * Triggers on inventory append every stock change to stock_history, the head. Compaction moves
+ * head points from finished time partitions into stock_history_blocks: one row per item and
+ * partition, holding the points delta-encoded (varint time deltas, zigzag varint stock deltas)
+ * together with their count, min, max and sum. A range query reads the blocks that overlap it
+ * plus the head. A downsampled query takes a block's summary as-is when the whole block falls
+ * inside one bucket of the range, and only decodes the blocks that straddle a boundary.
+ */
+final class StockHistory {
+
+    // Private constructor to prevent instantiation
+    private StockHistory() {}
+
+    static final long DEFAULT_PARTITION_MS = 86_400_000L; // one day
+    // Head points moved per compaction call, so one call never holds the writer for long
+    static final int COMPACT_BATCH = 50_000;
+
+    private static volatile long partitionMs = DEFAULT_PARTITION_MS;
+
+    private static final String HEAD_RANGE_SQL =
+            "SELECT ts, stock FROM stock_history WHERE item = ? AND ts >= ? AND ts <= ? ORDER BY ts";
+    private static final String BLOCK_RANGE_SQL =
+            "SELECT block_start, first_ts, last_ts, points, min_stock, max_stock, sum_stock, data "
+            + "FROM stock_history_blocks WHERE item = ? AND block_start <= ? AND last_ts >= ? AND first_ts <= ? "
+            + "ORDER BY block_start";
+
+    static void setPartitionMs(long ms) {
+        partitionMs = Math.max(1000, ms);
+    }
+
+    // A run of points of one item, oldest first
+    private static final class Series {
+        long[] ts = new long[16];
+        long[] stock = new long[16];
+        int size;
+
+        void add(long t, long s) {
+            if (size == ts.length) {
+                ts = Arrays.copyOf(ts, size * 2);
+                stock = Arrays.copyOf(stock, size * 2);
+            }
+            ts[size] = t;
+            stock[size] = s;
+            size++;
+        }
+    }
+
+    // ================ COMPACTION ================
+    /**
+     * Move head points older than the current partition into encoded blocks, merging with any
+     * block already stored for the same item and partition. Runs inside the caller's transaction,
+     * which must be the writer's.
+     * @param conn Writer connection
+     * @param now Current time in epoch milliseconds
+     * @return the number of head points moved; COMPACT_BATCH means more may be waiting
+     */
+    static int compact(Connection conn, long now) throws SQLException {
+        long partition = partitionMs;
+        long cutoff = Math.floorDiv(now, partition) * partition;
+        List<Long> moved = new ArrayList<>();
+        try (PreparedStatement select = conn.prepareStatement(
+                "SELECT rowid, item, ts, stock FROM stock_history WHERE ts < ? ORDER BY item, ts LIMIT ?")) {
+            select.setLong(1, cutoff);
+            select.setInt(2, COMPACT_BATCH);
+            try (ResultSet rs = select.executeQuery()) {
+                Series run = null;
+                int runItem = 0;
+                long runStart = 0;
+                while (rs.next()) {
+                    int item = rs.getInt(2);
+                    long ts = rs.getLong(3);
+                    long blockStart = Math.floorDiv(ts, partition) * partition;
+                    if (run == null || item != runItem || blockStart != runStart) {
+                        if (run != null) {
+                            writeBlock(conn, runItem, runStart, run);
+                        }
+                        run = new Series();
+                        runItem = item;
+                        runStart = blockStart;
+                    }
+                    run.add(ts, rs.getLong(4));
+                    moved.add(rs.getLong(1));
+                }
+                if (run != null) {
+                    writeBlock(conn, runItem, runStart, run);
+                }
+            }
+        }
+        try (PreparedStatement delete = conn.prepareStatement("DELETE FROM stock_history WHERE rowid = ?")) {
+            for (long rowid : moved) {
+                delete.setLong(1, rowid);
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        }
+        return moved.size();
+    }
+
+    private static void writeBlock(Connection conn, int item, long blockStart, Series points) throws SQLException {
+        try (PreparedStatement existing = conn.prepareStatement(
+                "SELECT points, data FROM stock_history_blocks WHERE item = ? AND block_start = ?")) {
+            existing.setInt(1, item);
+            existing.setLong(2, blockStart);
+            try (ResultSet rs = existing.executeQuery()) {
+                if (rs.next()) {
+                    points = merge(decode(blockStart, rs.getInt(1), rs.getBytes(2)), points);
+                }
+            }
+        }
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        long sum = 0;
+        for (int i = 0; i < points.size; i++) {
+            min = Math.min(min, points.stock[i]);
+            max = Math.max(max, points.stock[i]);
+            sum += points.stock[i];
+        }
+        try (PreparedStatement upsert = conn.prepareStatement(
+                "INSERT OR REPLACE INTO stock_history_blocks "
+                + "(item, block_start, first_ts, last_ts, points, min_stock, max_stock, sum_stock, data) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            upsert.setInt(1, item);
+            upsert.setLong(2, blockStart);
+            upsert.setLong(3, points.ts[0]);
+            upsert.setLong(4, points.ts[points.size - 1]);
+            upsert.setInt(5, points.size);
+            upsert.setLong(6, min);
+            upsert.setLong(7, max);
+            upsert.setLong(8, sum);
+            upsert.setBytes(9, encode(blockStart, points));
+            upsert.executeUpdate();
+        }
+    }
+
+    // Two time-ordered runs as one; on equal times the stored point comes first
+    private static Series merge(Series stored, Series added) {
+        Series merged = new Series();
+        int a = 0;
+        int b = 0;
+        while (a < stored.size || b < added.size) {
+            if (b == added.size || (a < stored.size && stored.ts[a] <= added.ts[b])) {
+                merged.add(stored.ts[a], stored.stock[a++]);
+            } else {
+                merged.add(added.ts[b], added.stock[b++]);
+            }
+        }
+        return merged;
+    }
+
+    // ================ ENCODING ================
+    // Each point is (time - previous time, stock - previous stock), the first relative to
+    // (block start, 0). Times only grow so their deltas are plain varints; stock deltas are zigzagged.
+    private static byte[] encode(long blockStart, Series points) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(points.size * 3);
+        long prevTs = blockStart;
+        long prevStock = 0;
+        for (int i = 0; i < points.size; i++) {
+            writeVarint(out, points.ts[i] - prevTs);
+            writeVarint(out, zigzag(points.stock[i] - prevStock));
+            prevTs = points.ts[i];
+            prevStock = points.stock[i];
+        }
+        return out.toByteArray();
+    }
+
+    private static Series decode(long blockStart, int count, byte[] data) {
+        Series points = new Series();
+        points.ts = new long[Math.max(1, count)];
+        points.stock = new long[Math.max(1, count)];
+        int[] pos = {0};
+        long ts = blockStart;
+        long stock = 0;
+        for (int i = 0; i < count; i++) {
+            ts += readVarint(data, pos);
+            stock += unzigzag(readVarint(data, pos));
+            points.ts[i] = ts;
+            points.stock[i] = stock;
+        }
+        points.size = count;
+        return points;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // ================ QUERIES ================
+    /**
+     * Every recorded stock level of an item between from and to, inclusive.
+     * @param maxPoints Largest answer allowed
+     * @return JSON object with the points as [time, stock] pairs, or null if there are more than maxPoints
+     */
+    static String raw(Connection conn, int item, long from, long to, int maxPoints) throws SQLException {
+        StringBuilder points = new StringBuilder();
+        int count = 0;
+        try (PreparedStatement pstmt = conn.prepareStatement(BLOCK_RANGE_SQL)) {
+            bindRange(pstmt, item, from, to);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Series block = decode(rs.getLong(1), rs.getInt(4), rs.getBytes(8));
+                    for (int i = 0; i < block.size; i++) {
+                        if (block.ts[i] >= from && block.ts[i] <= to) {
+                            if (++count > maxPoints) {
+                                return null;
+                            }
+                            appendPoint(points, block.ts[i], block.stock[i]);
+                        }
+                    }
+                }
+            }
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(HEAD_RANGE_SQL)) {
+            pstmt.setInt(1, item);
+            pstmt.setLong(2, from);
+            pstmt.setLong(3, to);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (++count > maxPoints) {
+                        return null;
+                    }
+                    appendPoint(points, rs.getLong(1), rs.getLong(2));
+                }
+            }
+        }
+        return header(item, from, to, 0, count).append("\"points\":[").append(points).append("]}").toString();
+    }
+
+    /**
+     * An item's stock between from and to, inclusive, as min, max and mean per bucket. Buckets
+     * are aligned to multiples of bucketMs since the epoch; empty buckets are left out.
+     * @return JSON object with the buckets oldest first
+     */
+    static String downsampled(Connection conn, int item, long from, long to, long bucketMs) throws SQLException {
+        Buckets buckets = new Buckets(bucketMs);
+        try (PreparedStatement pstmt = conn.prepareStatement(BLOCK_RANGE_SQL)) {
+            bindRange(pstmt, item, from, to);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    long firstTs = rs.getLong(2);
+                    long lastTs = rs.getLong(3);
+                    if (firstTs >= from && lastTs <= to
+                            && Math.floorDiv(firstTs, bucketMs) == Math.floorDiv(lastTs, bucketMs)) {
+                        // The whole block lands in one bucket: its summary is enough
+                        buckets.add(firstTs, rs.getLong(5), rs.getLong(6), rs.getLong(7), rs.getInt(4));
+                        continue;
+                    }
+                    // Decode in place rather than through a Series, the hot path for fine buckets
+                    byte[] data = rs.getBytes(8);
+                    int count = rs.getInt(4);
+                    int[] pos = {0};
+                    long ts = rs.getLong(1);
+                    long stock = 0;
+                    for (int i = 0; i < count; i++) {
+                        ts += readVarint(data, pos);
+                        stock += unzigzag(readVarint(data, pos));
+                        if (ts >= from && ts <= to) {
+                            buckets.add(ts, stock, stock, stock, 1);
+                        }
+                    }
+                }
+            }
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(HEAD_RANGE_SQL)) {
+            pstmt.setInt(1, item);
+            pstmt.setLong(2, from);
+            pstmt.setLong(3, to);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    long s = rs.getLong(2);
+                    buckets.add(rs.getLong(1), s, s, s, 1);
+                }
+            }
+        }
+
+        StringBuilder json = new StringBuilder();
+        long count = 0;
+        for (Map.Entry<Long, long[]> entry : buckets.byStart.entrySet()) {
+            long[] agg = entry.getValue();
+            if (json.length() > 0) json.append(',');
+            json.append("{\"t\":").append(entry.getKey())
+                    .append(",\"min\":").append(agg[0])
+                    .append(",\"max\":").append(agg[1])
+                    .append(",\"avg\":").append((double) agg[2] / agg[3])
+                    .append(",\"count\":").append(agg[3]).append('}');
+            count += agg[3];
+        }
+        return header(item, from, to, bucketMs, count).append("\"buckets\":[").append(json).append("]}").toString();
+    }
+
+    // Min, max, sum and count per bucket. Points arrive mostly in time order, so the bucket last
+    // added to is kept at hand and the map is only consulted when a point moves to another one.
+    private static final class Buckets {
+        final long bucketMs;
+        final TreeMap<Long, long[]> byStart = new TreeMap<>();
+        long currentStart = Long.MIN_VALUE;
+        long[] current;
+
+        Buckets(long bucketMs) {
+            this.bucketMs = bucketMs;
+        }
+
+        void add(long ts, long min, long max, long sum, long count) {
+            if (current == null || ts < currentStart || ts - currentStart >= bucketMs) {
+                long start = Math.floorDiv(ts, bucketMs) * bucketMs;
+                currentStart = start;
+                current = byStart.get(start);
+                if (current == null) {
+                    current = new long[]{min, max, 0, 0};
+                    byStart.put(start, current);
+                }
+            }
+            current[0] = Math.min(current[0], min);
+            current[1] = Math.max(current[1], max);
+            current[2] += sum;
+            current[3] += count;
+        }
+    }
+
+    private static void bindRange(PreparedStatement pstmt, int item, long from, long to) throws SQLException {
+        pstmt.setInt(1, item);
+        pstmt.setLong(2, to);
+        pstmt.setLong(3, from);
+        pstmt.setLong(4, to);
+    }
+
+    private static void appendPoint(StringBuilder points, long ts, long stock) {
+        if (points.length() > 0) points.append(',');
+        points.append('[').append(ts).append(',').append(stock).append(']');
+    }
+
+    private static StringBuilder header(int item, long from, long to, long bucketMs, long count) {
+        StringBuilder json = new StringBuilder("{\"item\":").append(item)
+                .append(",\"from\":").append(from)
+                .append(",\"to\":").append(to);
+        if (bucketMs > 0) {
+            json.append(",\"bucket\":").append(bucketMs);
+        }
+        return json.append(",\"count\":").append(count).append(',');
+    }
+}
@@ -0,0 +1,273 @@
+package com.topbloc.codechallenge.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Single writer thread for all database mutations.
+ *
+ * Callers enqueue an operation and block on its future. The writer drains whatever is pending
+ * (up to maxBatch operations), runs them in one transaction with a savepoint around each so a
+ * failing operation does not undo the others, commits once, and then completes every future
+ * with its own result. Work registered with afterCommit() runs after the commit, before the
+ * listener hears of it and before callers are released, so derived state and change
+ * notifications never describe uncommitted data; work registered by an operation whose
+ * savepoint is rolled back is dropped with it. A BatchListener sees
+ * every batch transaction begin, commit and roll back. Whatever an operation or listener throws,
+ * the writer keeps running: the operation's savepoint, or else the whole batch, is rolled back
+ * and the callers affected get the failure.
+ */
+final class WriteQueue {
+
+    /**
+     * Callbacks run on the writer thread around every batch transaction
+     */
+    interface BatchListener {
+        /** The batch holds the write lock and no operation has run yet */
+        void begun(Connection conn);
+
+        /** Every operation has run and the batch is about to commit */
+        void committing(Connection conn);
+
+        /** The batch committed and its afterCommit() work is about to run */
+        void applying();
+
+        /** The batch committed and its afterCommit() work has run */
+        void committed();
+
+        /** The batch failed to commit and was rolled back */
+        void rolledBack();
+    }
+
+    private static final class Task {
+        final Supplier<String> operation;
+        final boolean exclusive;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Task(Supplier<String> operation, boolean exclusive) {
+            this.operation = operation;
+            this.exclusive = exclusive;
+        }
+    }
+
+    private final BlockingQueue<Task> pending = new LinkedBlockingQueue<>();
+    private final Supplier<Connection> connection;
+    private final BatchListener listener;
+    private volatile int maxBatch;
+    private final Thread writer;
+    private final List<Runnable> afterCommit = new ArrayList<>();
+    private boolean inTransaction;
+
+    /**
+     * @param connection Supplies the connection to write through, read at the start of every batch
+     * @param listener Told about every batch transaction, e.g. to resync derived state after a rollback
+     * @param maxBatch Maximum number of operations committed together
+     */
+    WriteQueue(Supplier<Connection> connection, BatchListener listener, int maxBatch) {
+        this.connection = connection;
+        this.listener = listener;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.writer = new Thread(this::run, "db-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    void setMaxBatch(int maxBatch) {
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * Run a mutation on the writer thread as part of the next batch and wait for its result.
+     */
+    String submit(Supplier<String> operation) {
+        return enqueue(operation, false);
+    }
+
+    /**
+     * Queue a mutation for the next batch without waiting for it. The future completes with its
+     * result once the batch has committed, so operations queued back to back commit together.
+     */
+    CompletableFuture<String> submitAsync(Supplier<String> operation) {
+        Task task = new Task(operation, false);
+        pending.add(task);
+        return task.result.copy();
+    }
+
+    /**
+     * Run an operation on the writer thread on its own, outside any transaction
+     * (used for work that replaces the connection, such as a reset).
+     */
+    String submitExclusive(Supplier<String> operation) {
+        return enqueue(operation, true);
+    }
+
+    /**
+     * Defer work until the current batch has committed. Dropped if the operation registering it
+     * fails and is rolled back; runs immediately when not called from inside a batch.
+     */
+    void afterCommit(Runnable action) {
+        if (Thread.currentThread() == writer && inTransaction) {
+            afterCommit.add(action);
+        } else {
+            action.run();
+        }
+    }
+
+    private String enqueue(Supplier<String> operation, boolean exclusive) {
+        if (Thread.currentThread() == writer) {
+            // Nested call from an operation that is already running on the writer
+            return operation.get();
+        }
+        Task task = new Task(operation, exclusive);
+        pending.add(task);
+        try {
+            return task.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void run() {
+        List<Task> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            pending.drainTo(batch, maxBatch - 1);
+
+            try {
+                List<Task> transactional = new ArrayList<>();
+                for (Task task : batch) {
+                    if (task.exclusive) {
+                        // Keep ordering: commit everything queued ahead of the exclusive task first
+                        runBatch(transactional);
+                        transactional.clear();
+                        runAlone(task);
+                    } else {
+                        transactional.add(task);
+                    }
+                }
+                runBatch(transactional);
+            } catch (Throwable e) {
+                // Never let the only writer die: every caller would wait forever
+                System.out.println("Writer failed, dropping the rest of the batch: " + e);
+                for (Task task : batch) {
+                    task.result.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void runAlone(Task task) {
+        try {
+            task.result.complete(task.operation.get());
+        } catch (Throwable e) {
+            task.result.completeExceptionally(e);
+        }
+    }
+
+    private void runBatch(List<Task> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Connection conn = connection.get();
+        List<String> results = new ArrayList<>(batch.size());
+        List<Throwable> failures = new ArrayList<>(batch.size());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("BEGIN IMMEDIATE");
+            inTransaction = true;
+            listener.begun(conn);
+            for (Task task : batch) {
+                stmt.execute("SAVEPOINT write_op");
+                int deferred = afterCommit.size();
+                String result;
+                try {
+                    result = task.operation.get();
+                } catch (Throwable e) {
+                    stmt.execute("ROLLBACK TO write_op");
+                    stmt.execute("RELEASE write_op");
+                    afterCommit.subList(deferred, afterCommit.size()).clear();
+                    results.add(null);
+                    failures.add(e);
+                    continue;
+                }
+                stmt.execute("RELEASE write_op");
+                results.add(result);
+                failures.add(null);
+            }
+            listener.committing(conn);
+            stmt.execute("COMMIT");
+        } catch (Throwable e) {
+            // A failed statement, or a listener that threw: nothing in the batch is kept
+            System.out.println("Write batch of " + batch.size() + " failed, rolling back: " + e);
+            rollback(conn);
+            inTransaction = false;
+            afterCommit.clear();
+            try {
+                listener.rolledBack();
+            } catch (Throwable listenerError) {
+                System.out.println("Rollback listener failed: " + listenerError);
+            }
+            String error = "{\"success\": false, \"message\": \"Database error: "
+                    + String.valueOf(e.getMessage()).replace("\"", "'") + "\"}";
+            for (Task task : batch) {
+                task.result.complete(error);
+            }
+            return;
+        }
+        inTransaction = false;
+
+        try {
+            listener.applying();
+        } catch (Throwable e) {
+            System.out.println("Commit listener failed: " + e);
+        }
+        for (Runnable action : afterCommit) {
+            try {
+                action.run();
+            } catch (Throwable e) {
+                System.out.println("After-commit action failed: " + e);
+            }
+        }
+        afterCommit.clear();
+        try {
+            listener.committed();
+        } catch (Throwable e) {
+            System.out.println("Commit listener failed: " + e);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (failures.get(i) != null) {
+                batch.get(i).result.completeExceptionally(failures.get(i));
+            } else {
+                batch.get(i).result.complete(results.get(i));
+            }
+        }
+    }
+
+    private static void rollback(Connection conn) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ROLLBACK");
+        } catch (SQLException e) {
+            // No transaction was open
+        }
+    }
+}
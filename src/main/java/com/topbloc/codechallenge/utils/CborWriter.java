@@ -0,0 +1,144 @@
+package com.topbloc.codechallenge.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal CBOR (RFC 8949) encoder for query results.
+ * Covers what the database returns: integers, floating point numbers, text, blobs and null.
+ * Containers are written as headers followed by their elements; indefinite-length containers
+ * are closed with end().
+ */
+public final class CborWriter {
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int INDEFINITE = 0x1f;
+    private static final int FLOAT32 = 0xfa;
+    private static final int FLOAT64 = 0xfb;
+    private static final int NULL = 0xf6;
+    private static final int BREAK = 0xff;
+
+    private final ByteArrayOutputStream out;
+
+    public CborWriter(int initialCapacity) {
+        this.out = new ByteArrayOutputStream(initialCapacity);
+    }
+
+    public CborWriter startArray(int size) {
+        writeHeader(MAJOR_ARRAY, size);
+        return this;
+    }
+
+    public CborWriter startIndefiniteArray() {
+        out.write((MAJOR_ARRAY << 5) | INDEFINITE);
+        return this;
+    }
+
+    public CborWriter startMap(int size) {
+        writeHeader(MAJOR_MAP, size);
+        return this;
+    }
+
+    /**
+     * Close the innermost indefinite-length container
+     */
+    public CborWriter end() {
+        out.write(BREAK);
+        return this;
+    }
+
+    public CborWriter writeLong(long value) {
+        if (value >= 0) {
+            writeHeader(MAJOR_UNSIGNED, value);
+        } else {
+            writeHeader(MAJOR_NEGATIVE, -1 - value);
+        }
+        return this;
+    }
+
+    /**
+     * Write a double as a 4-byte float when that loses nothing, otherwise as an 8-byte float
+     */
+    public CborWriter writeDouble(double value) {
+        float narrow = (float) value;
+        if (narrow == value || Double.isNaN(value)) {
+            out.write(FLOAT32);
+            writeBytes(Float.floatToIntBits(narrow), 4);
+        } else {
+            out.write(FLOAT64);
+            writeBytes(Double.doubleToLongBits(value), 8);
+        }
+        return this;
+    }
+
+    public CborWriter writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeHeader(MAJOR_TEXT, bytes.length);
+        out.write(bytes, 0, bytes.length);
+        return this;
+    }
+
+    public CborWriter writeBytes(byte[] value) {
+        writeHeader(MAJOR_BYTES, value.length);
+        out.write(value, 0, value.length);
+        return this;
+    }
+
+    public CborWriter writeNull() {
+        out.write(NULL);
+        return this;
+    }
+
+    /**
+     * Write a value as returned by ResultSet.getObject
+     */
+    public CborWriter writeValue(Object value) {
+        if (value == null) {
+            return writeNull();
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return writeLong(((Number) value).longValue());
+        }
+        if (value instanceof Number) {
+            return writeDouble(((Number) value).doubleValue());
+        }
+        if (value instanceof byte[]) {
+            return writeBytes((byte[]) value);
+        }
+        return writeString(value.toString());
+    }
+
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    // Major type in the top 3 bits, then the argument in the shortest form that holds it
+    private void writeHeader(int majorType, long argument) {
+        int major = majorType << 5;
+        if (argument < 24) {
+            out.write(major | (int) argument);
+        } else if (argument < 0x100) {
+            out.write(major | 24);
+            writeBytes(argument, 1);
+        } else if (argument < 0x10000) {
+            out.write(major | 25);
+            writeBytes(argument, 2);
+        } else if (argument < 0x100000000L) {
+            out.write(major | 26);
+            writeBytes(argument, 4);
+        } else {
+            out.write(major | 27);
+            writeBytes(argument, 8);
+        }
+    }
+
+    private void writeBytes(long value, int count) {
+        for (int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xff);
+        }
+    }
+}
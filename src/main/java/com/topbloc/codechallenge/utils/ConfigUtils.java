@@ -0,0 +1,56 @@
+package com.topbloc.codechallenge.utils;
+
+/**
+ * Utility class for reading runtime configuration.
+ * A setting named "server.threads.max" is read from the system property of the same name
+ * (-Dserver.threads.max=...) or, failing that, from the environment variable SERVER_THREADS_MAX.
+ */
+public final class ConfigUtils {
+
+    // Private constructor to prevent instantiation
+    private ConfigUtils() {}
+
+    /**
+     * Read a string setting
+     * @param name Setting name in dotted form
+     * @param defaultValue Value used when the setting is absent
+     * @return The configured value or the default
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            value = System.getenv(name.replace('.', '_').replace('-', '_').toUpperCase());
+        }
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Read an integer setting, falling back to the default if it is absent or malformed
+     * @param name Setting name in dotted form
+     * @param defaultValue Value used when the setting is absent or invalid
+     * @return The configured value or the default
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Read a boolean setting ("true"/"false")
+     * @param name Setting name in dotted form
+     * @param defaultValue Value used when the setting is absent
+     * @return The configured value or the default
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
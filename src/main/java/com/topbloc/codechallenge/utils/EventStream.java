@@ -0,0 +1,168 @@
+package com.topbloc.codechallenge.utils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Server-Sent Events response written with non-blocking servlet output.
+ *
+ * The request is put in async mode and the handling thread returns to the pool, so an open
+ * stream holds no thread. send() queues an event and writes as much as the socket accepts
+ * without waiting; the container calls onWritePossible() when it can take the rest. A client
+ * that falls more than maxBufferedBytes behind is disconnected rather than buffered without
+ * bound - an EventSource reconnects on its own.
+ */
+public final class EventStream implements WriteListener, AsyncListener {
+    private final AsyncContext async;
+    private final ServletOutputStream out;
+    private final int maxBufferedBytes;
+    private final Runnable onClose;
+    private final Queue<byte[]> pending = new ArrayDeque<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private int bufferedBytes;
+    // Written since the last flush, still in the container's buffer
+    private boolean unflushed;
+
+    private EventStream(AsyncContext async, ServletOutputStream out, int maxBufferedBytes, Runnable onClose) {
+        this.async = async;
+        this.out = out;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Detach a request from its thread and start an event stream on it. The status and headers
+     * already set on the response are sent right away, so the framework leaves the committed
+     * response alone once the route returns.
+     * @param request The raw request
+     * @param response The raw response, with the event stream headers set
+     * @param maxBufferedBytes Events a slow client may have queued before it is disconnected
+     * @param onClose Called once when the stream ends, whichever side ends it
+     */
+    public static EventStream open(HttpServletRequest request, HttpServletResponse response, int maxBufferedBytes,
+                                   Runnable onClose) throws IOException {
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+        response.flushBuffer();
+        EventStream stream = new EventStream(async, response.getOutputStream(), maxBufferedBytes, onClose);
+        async.addListener(stream);
+        stream.out.setWriteListener(stream);
+        return stream;
+    }
+
+    /**
+     * Queue an event and write what the connection accepts now
+     * @param event One or more complete events, each ending with a blank line
+     * @throws IllegalStateException if the stream is closed, or is closed because the client is too far behind
+     */
+    public void send(String event) {
+        byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            if (closed.get()) {
+                throw new IllegalStateException("Stream closed");
+            }
+            if (bufferedBytes + bytes.length > maxBufferedBytes) {
+                close();
+                throw new IllegalStateException("Client is more than " + maxBufferedBytes + " bytes behind");
+            }
+            pending.add(bytes);
+            bufferedBytes += bytes.length;
+            drain();
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * Bytes queued and not yet handed to the connection
+     */
+    public synchronized int bufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * End the response. Safe to call more than once and from any thread.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            pending.clear();
+            bufferedBytes = 0;
+        }
+        try {
+            async.complete();
+        } catch (IllegalStateException e) {
+            // The container already completed the request
+        }
+        onClose.run();
+    }
+
+    // Write queued events until the connection stops accepting, then flush. Called with the lock held;
+    // when isReady() returns false the container calls onWritePossible() once it can take more.
+    private void drain() {
+        try {
+            while (!closed.get() && out.isReady()) {
+                byte[] next = pending.poll();
+                if (next == null) {
+                    if (!unflushed) {
+                        return;
+                    }
+                    unflushed = false;
+                    out.flush();
+                    continue;
+                }
+                bufferedBytes -= next.length;
+                out.write(next);
+                unflushed = true;
+            }
+        } catch (IOException | IllegalStateException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void onWritePossible() {
+        synchronized (this) {
+            drain();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // Not restarted
+    }
+}
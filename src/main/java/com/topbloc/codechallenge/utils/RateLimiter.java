@@ -0,0 +1,224 @@
+package com.topbloc.codechallenge.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free per-client token buckets, one per client and route class.
+ *
+ * Each bucket is a single "theoretical arrival time" updated with compare-and-set (the GCRA
+ * form of a token bucket): a request is admitted if it would not push the bucket more than
+ * burst requests ahead of the refill rate. Buckets that have refilled and stayed idle are
+ * evicted, and once maxClients buckets exist new clients share one overflow bucket per class.
+ * Clients are charged by remote address unless they present one of the configured API keys. Behind
+ * a trusted proxy such as a load balancer, the address is the one the proxy forwarded the request for.
+ */
+public final class RateLimiter {
+
+    public enum RouteClass { READS, WRITES, EXPORTS, STREAMS }
+
+    private static final String OVERFLOW_CLIENT = "*";
+
+    private static final class Limit {
+        final long intervalNanos;
+        final long burstNanos;
+
+        Limit(double perSecond, int burst) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+            this.burstNanos = intervalNanos * Math.max(1, burst);
+        }
+    }
+
+    private final Map<RouteClass, Limit> limits = new EnumMap<>(RouteClass.class);
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final int maxClients;
+    private final long idleNanos;
+    private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+    private volatile Set<String> apiKeys = Collections.emptySet();
+    private volatile Set<String> trustedProxies = Collections.emptySet();
+
+    /**
+     * @param maxClients Upper bound on tracked buckets before clients share an overflow bucket
+     * @param idleTimeoutMs How long a full bucket is kept before it is evicted
+     */
+    public RateLimiter(int maxClients, long idleTimeoutMs) {
+        this.maxClients = maxClients;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+    }
+
+    /**
+     * Set the limit for a route class. A class without a limit is not rate limited.
+     * @param routeClass Route class to limit
+     * @param perSecond Sustained requests per second, or 0 for no limit
+     * @param burst Requests allowed at once on top of the sustained rate
+     */
+    public void setLimit(RouteClass routeClass, double perSecond, int burst) {
+        if (perSecond > 0) {
+            limits.put(routeClass, new Limit(perSecond, burst));
+        } else {
+            limits.remove(routeClass);
+        }
+    }
+
+    /**
+     * Set the API keys that are charged to a bucket of their own rather than to the caller's address
+     */
+    public void setApiKeys(Collection<String> keys) {
+        apiKeys = trimmedSet(keys);
+    }
+
+    /**
+     * Set the addresses of the proxies (load balancers) whose forwarding headers are believed
+     */
+    public void setTrustedProxies(Collection<String> addresses) {
+        trustedProxies = trimmedSet(addresses);
+    }
+
+    /**
+     * Address of the client a request came from. Requests from a trusted proxy are charged to the
+     * address it forwarded them for: the nearest hop in the Forwarded header (or X-Forwarded-For when
+     * there is none) that is not itself a trusted proxy. From anyone else the headers are ignored,
+     * since a caller could send a different made-up address with every request.
+     * @param remoteAddress Address of the connection's peer
+     * @param forwarded The Forwarded header, or null
+     * @param forwardedFor The X-Forwarded-For header, or null
+     */
+    public String clientAddress(String remoteAddress, String forwarded, String forwardedFor) {
+        Set<String> proxies = trustedProxies;
+        if (!proxies.contains(remoteAddress)) {
+            return remoteAddress;
+        }
+        List<String> hops = forwarded != null ? forwardedHops(forwarded) : new ArrayList<>();
+        if (hops.isEmpty() && forwardedFor != null) {
+            for (String hop : forwardedFor.split(",")) {
+                if (!hop.trim().isEmpty()) {
+                    hops.add(hop.trim());
+                }
+            }
+        }
+        // Proxies append the address they received from, so the client is the last untrusted hop
+        for (int i = hops.size() - 1; i >= 0; i--) {
+            if (!proxies.contains(hops.get(i))) {
+                return hops.get(i);
+            }
+        }
+        return hops.isEmpty() ? remoteAddress : hops.get(0);
+    }
+
+    // The for= addresses of an RFC 7239 Forwarded header, without quotes, brackets or ports
+    private static List<String> forwardedHops(String header) {
+        List<String> hops = new ArrayList<>();
+        for (String element : header.split(",")) {
+            for (String pair : element.split(";")) {
+                int eq = pair.indexOf('=');
+                if (eq < 0 || !pair.substring(0, eq).trim().equalsIgnoreCase("for")) {
+                    continue;
+                }
+                String value = pair.substring(eq + 1).trim().replace("\"", "");
+                if (value.startsWith("[")) {
+                    int close = value.indexOf(']');
+                    value = close > 0 ? value.substring(1, close) : value.substring(1);
+                } else if (value.indexOf(':') == value.lastIndexOf(':') && value.indexOf(':') > 0) {
+                    value = value.substring(0, value.indexOf(':'));
+                }
+                if (!value.isEmpty()) {
+                    hops.add(value);
+                }
+            }
+        }
+        return hops;
+    }
+
+    /**
+     * Identity a request is charged to. A key that is not configured is ignored: otherwise a caller
+     * could send a new key with every request, get a fresh bucket each time and fill the table.
+     * @param apiKey The X-API-Key header, or null
+     * @param remoteAddress The caller's address
+     */
+    public String clientId(String apiKey, String remoteAddress) {
+        if (apiKey != null && apiKeys.contains(apiKey.trim())) {
+            return "key:" + apiKey.trim();
+        }
+        return "ip:" + remoteAddress;
+    }
+
+    /**
+     * Take one token for a client
+     * @param clientId Client identity, from clientId()
+     * @param routeClass Route class of the request
+     * @return 0 if the request is admitted, otherwise the nanoseconds until it would be
+     */
+    public long tryAcquire(String clientId, RouteClass routeClass) {
+        Limit limit = limits.get(routeClass);
+        if (limit == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        AtomicLong bucket = bucketFor(clientId, routeClass, now);
+        while (true) {
+            long arrival = bucket.get();
+            long start = arrival - now > 0 ? arrival : now;
+            long next = start + limit.intervalNanos;
+            long wait = next - now - limit.burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Drop buckets that have been full for longer than the idle timeout
+     * @return Number of evicted buckets
+     */
+    public int evictIdle() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Map.Entry<String, AtomicLong> entry : buckets.entrySet()) {
+            if (now - entry.getValue().get() > idleNanos && buckets.remove(entry.getKey(), entry.getValue())) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private AtomicLong bucketFor(String clientId, RouteClass routeClass, long now) {
+        String key = clientId + "|" + routeClass.name();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxClients) {
+            // Scan for idle buckets at most once a second so a flood of new clients cannot force constant scans
+            long last = lastEviction.get();
+            if (now - last > TimeUnit.SECONDS.toNanos(1) && lastEviction.compareAndSet(last, now)) {
+                evictIdle();
+            }
+            if (buckets.size() >= maxClients) {
+                key = OVERFLOW_CLIENT + "|" + routeClass.name();
+            }
+        }
+        return buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+
+    private static Set<String> trimmedSet(Collection<String> values) {
+        Set<String> set = new HashSet<>();
+        for (String value : values) {
+            if (!value.trim().isEmpty()) {
+                set.add(value.trim());
+            }
+        }
+        return Collections.unmodifiableSet(set);
+    }
+}
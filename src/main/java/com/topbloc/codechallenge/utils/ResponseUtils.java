@@ -49,6 +49,75 @@ public final class ResponseUtils {
         res.header(AppConstants.Headers.CORS_HEADERS, AppConstants.Headers.CACHE_CONTROL);
     }
     
+    /**
+     * Pick the response media type for an Accept header
+     * @param accept Accept header value, may be null
+     * @param offered Media types the route can produce, the first being the default
+     * @return The offered type the client ranks highest; the default on ties, when the header
+     *         is missing, or when the client accepts none of them
+     */
+    public static String negotiate(String accept, String... offered) {
+        if (accept == null || accept.trim().isEmpty()) {
+            return offered[0];
+        }
+        String best = offered[0];
+        double bestQuality = 0;
+        for (String type : offered) {
+            double quality = acceptQuality(accept, type);
+            if (quality > bestQuality) {
+                best = type;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    // Quality the Accept header gives a media type, using its most specific matching range
+    private static double acceptQuality(String accept, String type) {
+        String major = type.substring(0, type.indexOf('/'));
+        double quality = 0;
+        int specificity = -1;
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String name = parts[0].trim().toLowerCase();
+            int rangeSpecificity;
+            if (name.equals(type)) {
+                rangeSpecificity = 2;
+            } else if (name.equals(major + "/*")) {
+                rangeSpecificity = 1;
+            } else if (name.equals("*/*")) {
+                rangeSpecificity = 0;
+            } else {
+                continue;
+            }
+            if (rangeSpecificity > specificity) {
+                specificity = rangeSpecificity;
+                quality = qualityOf(parts);
+            }
+        }
+        return quality;
+    }
+
+    /**
+     * The q parameter of one element of an Accept-style header
+     * @param parts The element split on ';', its name first
+     * @return the quality, 1 when it is not given and 0 when it is malformed
+     */
+    static double qualityOf(String[] parts) {
+        double quality = 1;
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    quality = Double.parseDouble(param.substring(2));
+                } catch (NumberFormatException e) {
+                    quality = 0;
+                }
+            }
+        }
+        return quality;
+    }
+
     /**
      * Set response status based on result content
      * @param res Spark Response object
@@ -77,6 +146,35 @@ public final class ResponseUtils {
         }
     }
     
+    /**
+     * Parse a duration given in milliseconds, or as a number with an s, m, h or d suffix
+     * @param param Parameter string, may be null
+     * @return Duration in milliseconds, or 0 when the parameter is missing or empty
+     * @throws NumberFormatException if the duration is malformed or not positive
+     */
+    public static long parseDurationMs(String param) throws NumberFormatException {
+        if (param == null || param.trim().isEmpty()) {
+            return 0;
+        }
+        String value = param.trim().toLowerCase();
+        long unit = 1;
+        switch (value.charAt(value.length() - 1)) {
+            case 's': unit = 1000L; break;
+            case 'm': unit = 60000L; break;
+            case 'h': unit = 3600000L; break;
+            case 'd': unit = 86400000L; break;
+            default: break;
+        }
+        long amount = Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1));
+        if (amount <= 0) {
+            throw new NumberFormatException("Invalid duration " + param);
+        }
+        if (amount > Long.MAX_VALUE / unit) {
+            throw new NumberFormatException("Invalid duration " + param);
+        }
+        return amount * unit;
+    }
+
     /**
      * Parse double parameter with proper error handling
      * @param param Parameter string
@@ -0,0 +1,66 @@
+package com.topbloc.codechallenge.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls with the same key into one execution whose result is shared by all callers.
+ * Only calls that overlap in time are coalesced - once an execution finishes, the next call runs again.
+ * @param <T> Result type
+ */
+public final class SingleFlight<T> {
+    private final ConcurrentHashMap<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+
+    /**
+     * Run the supplier for this key, or wait for and share the result of an identical call already running
+     * @param key Identity of the call - callers with equal keys must expect the same result
+     * @param supplier Computation to run if no identical call is in flight
+     * @return The computed or shared result
+     */
+    public T execute(String key, Supplier<T> supplier) {
+        CompletableFuture<T> flight = new CompletableFuture<>();
+        CompletableFuture<T> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            joined.incrementAndGet();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        executions.incrementAndGet();
+        try {
+            T result = supplier.get();
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return Number of calls that ran their supplier
+     */
+    public long executions() {
+        return executions.get();
+    }
+
+    /**
+     * @return Number of calls that shared the result of an identical call already running
+     */
+    public long joined() {
+        return joined.get();
+    }
+}
@@ -0,0 +1,267 @@
+package com.topbloc.codechallenge.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import org.eclipse.jetty.server.HttpOutput;
+import spark.Request;
+import spark.Response;
+
+/**
+ * In-memory cache of static files (the streaming dashboard and the built frontend), read once
+ * and served with a strong ETag, a gzip copy compressed at load time, and cache headers.
+ *
+ * Files up to MAPPED_THRESHOLD bytes are held on the heap. Larger ones are memory-mapped, and
+ * the mapped buffer is handed to Jetty, which writes it to the socket straight from the page
+ * cache instead of copying it through the heap.
+ */
+public final class StaticAssets {
+    // Files larger than this are memory-mapped rather than read onto the heap
+    static final int MAPPED_THRESHOLD = 256 * 1024;
+    // A gzip copy is only kept if it saves at least this fraction of the size
+    private static final double MIN_GZIP_SAVING = 0.1;
+
+    /** Content-hashed files never change under the same name */
+    public static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable";
+    /** Files whose name stays the same across builds are revalidated with their ETag */
+    public static final String CACHE_REVALIDATE = "no-cache";
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("json", "application/json; charset=utf-8");
+        CONTENT_TYPES.put("map", "application/json; charset=utf-8");
+        CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+    }
+
+    /**
+     * One cached file
+     */
+    public static final class Asset {
+        final String contentType;
+        final String cacheControl;
+        final String etag;
+        final String gzipEtag;
+        // Read-only view of the content: a heap buffer, or a mapped one for large files
+        final ByteBuffer content;
+        // Null when the file does not compress usefully
+        final byte[] gzip;
+
+        Asset(String contentType, String cacheControl, ByteBuffer content) throws IOException {
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+            this.content = content.asReadOnlyBuffer();
+            String hash = hash(content.duplicate());
+            this.etag = "\"" + hash + "\"";
+            this.gzipEtag = "\"" + hash + "-gzip\"";
+            byte[] compressed = compressible(contentType) ? gzip(content.duplicate()) : null;
+            this.gzip = compressed != null && compressed.length <= content.remaining() * (1 - MIN_GZIP_SAVING) ? compressed : null;
+        }
+
+        public int size() {
+            return content.remaining();
+        }
+    }
+
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>();
+
+    /**
+     * Cache a classpath resource under a path
+     * @param path Request path the asset is served for
+     * @param resource Absolute classpath resource name
+     * @param cacheControl Cache-Control value to send with it
+     */
+    public void addResource(String path, String resource, String cacheControl) throws IOException {
+        try (InputStream in = StaticAssets.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Resource not found: " + resource);
+            }
+            assets.put(path, new Asset(contentType(resource), cacheControl, ByteBuffer.wrap(in.readAllBytes())));
+        }
+    }
+
+    /**
+     * Cache every file under a directory, each under prefix + its relative path. Files in a
+     * static/ directory (the content-hashed output of the frontend build) are marked immutable;
+     * the rest are revalidated.
+     * @param root Directory to load
+     * @param prefix Request path prefix, e.g. "/app"
+     * @return the number of files cached
+     */
+    public int addDirectory(Path root, String prefix) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String relative = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+            String cacheControl = relative.startsWith("static/") ? CACHE_IMMUTABLE : CACHE_REVALIDATE;
+            assets.put(prefix + "/" + relative, new Asset(contentType(relative), cacheControl, read(file)));
+        }
+        return files.size();
+    }
+
+    /**
+     * @return the asset cached for a path, or null
+     */
+    public Asset get(String path) {
+        return assets.get(path);
+    }
+
+    /**
+     * Write an asset as the response: 304 if the client's copy is current, otherwise the gzip
+     * copy when the client accepts it, otherwise the content itself.
+     * @return the route result (an empty body - the content is written directly)
+     */
+    public static Object serve(Request req, Response res, Asset asset) throws IOException {
+        boolean gzip = asset.gzip != null && acceptsGzip(req.headers("Accept-Encoding"));
+        String etag = gzip ? asset.gzipEtag : asset.etag;
+        res.header("Cache-Control", asset.cacheControl);
+        res.header("ETag", etag);
+        if (asset.gzip != null) {
+            res.header("Vary", "Accept-Encoding");
+        }
+        if (matches(req.headers("If-None-Match"), asset)) {
+            res.status(304);
+            return "";
+        }
+        res.status(200);
+        res.type(asset.contentType);
+        OutputStream out = res.raw().getOutputStream();
+        if (gzip) {
+            res.header("Content-Encoding", "gzip");
+            res.raw().setContentLength(asset.gzip.length);
+            out.write(asset.gzip);
+            return "";
+        }
+        ByteBuffer content = asset.content.duplicate();
+        res.raw().setContentLength(content.remaining());
+        if (content.hasArray()) {
+            out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        } else if (out instanceof HttpOutput) {
+            // Jetty writes a mapped buffer to the socket without copying it onto the heap
+            ((HttpOutput) out).sendContent(content);
+        } else {
+            WritableByteChannel channel = Channels.newChannel(out);
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+        return "";
+    }
+
+    // Either representation's ETag (or *) in If-None-Match means the client's copy is current
+    private static boolean matches(String ifNoneMatch, Asset asset) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            String value = tag.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(asset.etag) || value.equals(asset.gzipEtag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        // An explicit gzip entry wins over *
+        double gzipQuality = -1;
+        double anyQuality = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim().toLowerCase();
+            if (coding.equals("gzip")) {
+                gzipQuality = ResponseUtils.qualityOf(params);
+            } else if (coding.equals("*")) {
+                anyQuality = ResponseUtils.qualityOf(params);
+            }
+        }
+        return (gzipQuality >= 0 ? gzipQuality : anyQuality) > 0;
+    }
+
+    private static ByteBuffer read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAPPED_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until full
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static String contentType(String name) {
+        int dot = name.lastIndexOf('.');
+        String type = dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase());
+        return type != null ? type : "application/octet-stream";
+    }
+
+    private static boolean compressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.startsWith("application/javascript")
+                || contentType.startsWith("application/json") || contentType.startsWith("image/svg");
+    }
+
+    private static byte[] gzip(ByteBuffer content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, content.remaining() / 3));
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            WritableByteChannel channel = Channels.newChannel(out);
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    private static String hash(ByteBuffer content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content);
+            StringBuilder hex = new StringBuilder();
+            byte[] bytes = digest.digest();
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", bytes[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+}